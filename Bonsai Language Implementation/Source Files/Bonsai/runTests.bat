@@ -9,4 +9,7 @@ java -classpath ./bin Sili < test08.sil
 java -classpath ./bin Sili < test09.sil
 java -classpath ./bin Sili < test10.sil
 java -classpath ./bin Sili < test11.sil
+java -classpath ./bin Sili < test12.sil
+java -classpath ./bin Sili < test13.sil
+java -classpath ./bin Sili < test14.sil
 java -classpath ./bin Sili < test-math.sil
\ No newline at end of file
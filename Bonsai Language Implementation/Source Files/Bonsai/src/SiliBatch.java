@@ -0,0 +1,7 @@
+/** Convenient runner for many Sili programs in one JVM. */
+
+public class SiliBatch {
+	public static void main(String[] args) {
+		uk.ac.derby.ldi.sili2.interpreter.BatchRunner.main(args);
+	}
+}
@@ -0,0 +1,7 @@
+/** Convenient runner for the Sili benchmark suite. */
+
+public class SiliBench {
+	public static void main(String[] args) {
+		uk.ac.derby.ldi.sili2.interpreter.BenchmarkSuite.main(args);
+	}
+}
@@ -0,0 +1,67 @@
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.script.ScriptContext;
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineManager;
+import javax.script.ScriptException;
+
+/** Runner for a Sili program on standard input through the javax.script engine, as a Java program embedding Sili would run it.
+ *
+ * Each <name>=<value> argument is put in the engine bindings before the program runs, as an Integer,
+ * Double or Boolean if it reads as one and otherwise as a String.  -bindings lists the engine bindings,
+ * with their Java types, after the program ends.
+ */
+
+public class SiliScript {
+	private static void usage() {
+		System.out.println("Usage: siliscript [-bindings] [<name>=<value>]...");
+		System.out.println("          -bindings -- list the engine bindings after the program ends");
+		System.out.println("          <name>=<value> -- give the program's variable <name> a value");
+	}
+
+	// Convert an argument's value to the Java object a program embedding Sili would give
+	private static Object toObject(String value) {
+		if (value.matches("-?[0-9]{1,9}"))
+			return Integer.valueOf(value);
+		if (value.matches("-?[0-9]+\\.[0-9]+"))
+			return Double.valueOf(value);
+		if (value.equals("true") || value.equals("false"))
+			return Boolean.valueOf(value);
+		return value;
+	}
+
+	public static void main(String[] args) {
+		ScriptEngine sili = new ScriptEngineManager().getEngineByName("sili");
+		if (sili == null) {
+			System.err.println("The sili script engine is not registered; put META-INF on the classpath with the classes.");
+			return;
+		}
+		boolean listBindings = false;
+		for (String arg: args) {
+			if (arg.equals("-bindings"))
+				listBindings = true;
+			else if (arg.matches("[A-Za-z_][A-Za-z0-9_]*=.*")) {
+				int equals = arg.indexOf('=');
+				sili.put(arg.substring(0, equals), toObject(arg.substring(equals + 1)));
+			} else {
+				usage();
+				return;
+			}
+		}
+		PrintWriter out = new PrintWriter(System.out);
+		sili.getContext().setWriter(out);
+		try {
+			sili.eval(new InputStreamReader(System.in));
+		} catch (ScriptException e) {
+			out.println(e.getMessage());
+		} finally {
+			if (listBindings)
+				for (Map.Entry<String, Object> binding: new TreeMap<String, Object>(sili.getBindings(ScriptContext.ENGINE_SCOPE)).entrySet())
+					out.println(binding.getKey() + " = " + binding.getValue() + " (" + binding.getValue().getClass().getSimpleName() + ")");
+			out.flush();
+		}
+	}
+}
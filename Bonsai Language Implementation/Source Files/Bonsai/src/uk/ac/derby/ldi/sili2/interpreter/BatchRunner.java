@@ -0,0 +1,210 @@
+package uk.ac.derby.ldi.sili2.interpreter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import uk.ac.derby.ldi.sili2.parser.ast.ASTCode;
+import uk.ac.derby.ldi.sili2.parser.ast.Sili;
+
+/** Runs many Sili programs in one JVM, so that JVM startup and warm-up are paid once.
+ *
+ * Each program is parsed and run by its own Parser, or virtual machine, with its own
+ * display, and its output is captured separately.  EXIT ends only the program that executes
+ * it.  Programs can run in parallel on a number of threads, each with a stack of the size
+ * the interpreter would use.  Outputs are written in the order the programs were given,
+ * each under a heading as runTests does, or to a file per program.  The time each program
+ * took, and the total throughput, are reported on standard error.
+ */
+public class BatchRunner {
+
+	/** A program to run, and what became of it. */
+	private static final class Script {
+		final File file;
+		byte[] output;
+		long time;
+		boolean failed = false;
+
+		Script(File file) {
+			this.file = file;
+		}
+	}
+
+	// The size of the buffer of output for a program, in bytes
+	private static final int outputCapacity = 8192;
+
+	private boolean useVM = false;
+	private boolean optimise = false;
+	private int threads = 1;
+	private File outputDirectory = null;
+	private long stackSize = Interpreter.getDefaultStackSize();
+	private ArrayList<Script> scripts = new ArrayList<Script>();
+
+	private static void usage() {
+		System.out.println("Usage: silibatch [-O] [-vm] [-threads <n>] [-stack <megabytes>] [-outdir <directory>] [-list <file>] <file or directory>...");
+		System.out.println("          -O -- fold constant expressions and remove branches that never run");
+		System.out.println("          -vm -- compile to bytecode and run on the virtual machine");
+		System.out.println("          -threads <n> -- programs to run at once, or 0 for one per processor (default 1)");
+		System.out.println("          -stack <megabytes> -- memory for nested function calls in each program");
+		System.out.println("          -outdir <directory> -- write the output of each program to <directory>/<name>.out");
+		System.out.println("          -list <file> -- also run the programs named in <file>, one per line");
+		System.out.println("       A directory stands for the .sil files in it.");
+	}
+
+	// Add a program, or the programs in a directory
+	private void add(File file) {
+		if (file.isDirectory()) {
+			File[] files = file.listFiles();
+			Arrays.sort(files);
+			for (File member: files)
+				if (member.isFile() && member.getName().endsWith(".sil"))
+					scripts.add(new Script(member));
+		} else
+			scripts.add(new Script(file));
+	}
+
+	// Run a program, capturing its output
+	private void run(Script script) {
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		OutputSink out = new OutputSink(buffer, Charset.defaultCharset(), outputCapacity, false);
+		long start = System.nanoTime();
+		try {
+			Reader in = new FileReader(script.file);
+			try {
+				if (useVM)
+					Program.compile(in, optimise).execute(out, stackSize, null);
+				else {
+					ASTCode program = new Sili(in).code();
+					if (optimise)
+						new Optimiser().optimise(program);
+					Parser parser = new Parser();
+					parser.setOutput(out);
+					program.jjtAccept(parser, null);
+				}
+			} finally {
+				in.close();
+			}
+		} catch (ExceptionExit e) {
+			// EXIT has ended the program
+		} catch (StackOverflowError e) {
+			out.println(Interpreter.getRecursionMessage(stackSize));
+			script.failed = true;
+		} catch (Throwable e) {
+			out.println(e.getMessage());
+			script.failed = true;
+		}
+		script.time = System.nanoTime() - start;
+		out.flush();
+		script.output = buffer.toByteArray();
+	}
+
+	// Write the output of a program that has finished, and report its time
+	private void report(Script script) throws IOException {
+		if (outputDirectory == null) {
+			System.out.println("=== " + script.file.getName() + " ===");
+			System.out.write(script.output);
+			System.out.flush();
+		} else {
+			String name = script.file.getName().replaceAll("\\.sil$", "") + ".out";
+			FileOutputStream out = new FileOutputStream(new File(outputDirectory, name));
+			try {
+				out.write(script.output);
+			} finally {
+				out.close();
+			}
+		}
+		System.err.println(String.format("%s: %.1f ms%s", script.file.getPath(), script.time / 1e6, script.failed ? " (failed)" : ""));
+	}
+
+	// Run every program, reporting each in turn
+	private void runAll() throws IOException, InterruptedException {
+		long start = System.nanoTime();
+		int count = (threads == 0) ? Runtime.getRuntime().availableProcessors() : threads;
+		ExecutorService workers = Executors.newFixedThreadPool(count, new ThreadFactory() {
+			private int created = 0;
+
+			public synchronized Thread newThread(Runnable task) {
+				Thread thread = new Thread(null, task, "Sili batch " + created++, stackSize);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		ArrayList<Future<?>> finished = new ArrayList<Future<?>>();
+		for (final Script script: scripts)
+			finished.add(workers.submit(new Runnable() {
+				public void run() {
+					BatchRunner.this.run(script);
+				}
+			}));
+		int failures = 0;
+		try {
+			for (int i=0; i<scripts.size(); i++) {
+				finished.get(i).get();
+				report(scripts.get(i));
+				if (scripts.get(i).failed)
+					failures++;
+			}
+		} catch (ExecutionException e) {
+			throw new ExceptionSemantic("Batch failed: " + e.getCause());
+		} finally {
+			workers.shutdownNow();
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.err.println(String.format("%d programs, %d failed, in %.2f s on %d thread%s: %.1f programs per second",
+			scripts.size(), failures, seconds, count, (count == 1) ? "" : "s", scripts.size() / seconds));
+	}
+
+	public static void main(String args[]) {
+		BatchRunner batch = new BatchRunner();
+		for (int i=0; i<args.length; i++) {
+			String arg = args[i];
+			boolean hasValue = i + 1 < args.length;
+			if (arg.equals("-O"))
+				batch.optimise = true;
+			else if (arg.equals("-vm"))
+				batch.useVM = true;
+			else if (arg.equals("-threads") && hasValue && args[i + 1].matches("[0-9]{1,4}"))
+				batch.threads = Integer.parseInt(args[++i]);
+			else if (arg.equals("-stack") && hasValue && args[i + 1].matches("[1-9][0-9]{0,5}"))
+				batch.stackSize = Long.parseLong(args[++i]) << 20;
+			else if (arg.equals("-outdir") && hasValue && new File(args[i + 1]).isDirectory())
+				batch.outputDirectory = new File(args[++i]);
+			else if (arg.equals("-list") && hasValue && new File(args[i + 1]).isFile()) {
+				try {
+					for (String line: Files.readAllLines(new File(args[++i]).toPath()))
+						if (line.trim().length() > 0)
+							batch.add(new File(line.trim()));
+				} catch (IOException e) {
+					System.out.println(e.getMessage());
+					return;
+				}
+			} else if (!arg.startsWith("-") && new File(arg).exists())
+				batch.add(new File(arg));
+			else {
+				usage();
+				return;
+			}
+		}
+		if (batch.scripts.isEmpty()) {
+			usage();
+			return;
+		}
+		try {
+			batch.runAll();
+		} catch (IOException | InterruptedException e) {
+			System.out.println(e.getMessage());
+		}
+	}
+}
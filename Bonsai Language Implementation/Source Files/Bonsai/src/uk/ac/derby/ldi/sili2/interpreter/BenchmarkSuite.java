@@ -0,0 +1,427 @@
+package uk.ac.derby.ldi.sili2.interpreter;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.regex.Pattern;
+
+import uk.ac.derby.ldi.sili2.parser.ast.ASTCode;
+import uk.ac.derby.ldi.sili2.parser.ast.ParseException;
+import uk.ac.derby.ldi.sili2.parser.ast.Sili;
+import uk.ac.derby.ldi.sili2.parser.ast.SiliConstants;
+import uk.ac.derby.ldi.sili2.parser.ast.SiliTokenManager;
+import uk.ac.derby.ldi.sili2.parser.ast.SimpleCharStream;
+import uk.ac.derby.ldi.sili2.parser.ast.SimpleNode;
+import uk.ac.derby.ldi.sili2.parser.ast.Token;
+import uk.ac.derby.ldi.sili2.values.*;
+
+/** Measures the interpreter's hot paths in one warmed-up JVM, rather than timing a new JVM per program.
+ *
+ * Each benchmark is an operation that is repeated for a fixed time per iteration.  The first
+ * iterations warm up the JVM and are discarded, and the rest give the average time per operation.
+ * The corpus is every bench-*.sil in a directory.  Each corpus program is parsed, run by the Parser
+ * and run on the virtual machine.  Other benchmarks time function calls, Value arithmetic, array
+ * elements and PRINT.  Output of the programs is discarded.  Results are written as JSON.
+ *
+ * Given -generate, a source file of that many megabytes is generated, and lexing and parsing
+ * it are timed reading through a Reader, as from standard input, and reading the file mapped
+ * into memory.  Statements are parsed one at a time and dropped, so that the size of the tree
+ * doesn't limit the size of the file.  These benchmarks also report megabytes per second.
+ */
+public class BenchmarkSuite {
+
+	private static final int defaultWarmup = 3;
+	private static final int defaultIterations = 5;
+	private static final int defaultTime = 1000;
+	private static final String defaultResults = "benchmark-results.json";
+
+	/** An operation to be timed.  Its result is consumed so that it can't be optimised away. */
+	private static abstract class Benchmark {
+		final String name;
+		final long bytes;
+
+		Benchmark(String name) {
+			this(name, 0);
+		}
+
+		/** Ctor, given the bytes of source each operation reads. */
+		Benchmark(String name, long bytes) {
+			this.name = name;
+			this.bytes = bytes;
+		}
+
+		abstract Object run() throws ParseException, IOException;
+	}
+
+	/** The times of a benchmark's measured iterations, in milliseconds per operation. */
+	private static final class Result {
+		final String name;
+		final double[] times;
+		final long bytes;
+
+		Result(String name, double[] times, long bytes) {
+			this.name = name;
+			this.times = times;
+			this.bytes = bytes;
+		}
+
+		double getMegabytesPerSecond() {
+			return bytes / 1e6 / (getMean() / 1000);
+		}
+
+		double getMean() {
+			double sum = 0;
+			for (double time: times)
+				sum += time;
+			return sum / times.length;
+		}
+
+		double getDeviation() {
+			if (times.length < 2)
+				return 0;
+			double mean = getMean();
+			double sum = 0;
+			for (double time: times)
+				sum += (time - mean) * (time - mean);
+			return Math.sqrt(sum / (times.length - 1));
+		}
+	}
+
+	private int warmup = defaultWarmup;
+	private int iterations = defaultIterations;
+	private long iterationTime = defaultTime;
+	private Pattern filter = null;
+	private File corpus = new File(".");
+	private String resultFile = defaultResults;
+	private int generate = 0;
+
+	private ArrayList<Benchmark> benchmarks = new ArrayList<Benchmark>();
+	private ArrayList<Result> results = new ArrayList<Result>();
+
+	// Hash of every result, so that no operation is dead code
+	private int consumed = 0;
+
+	// Standard output, which is replaced while benchmarks run
+	private PrintStream console = System.out;
+
+	private static void usage() {
+		System.out.println("Usage: silibench [-warmup <n>] [-iterations <n>] [-time <ms>] [-filter <regex>] [-corpus <directory>] [-generate <megabytes>] [-out <file>]");
+		System.out.println("          -warmup <n> -- iterations to discard before measuring (default " + defaultWarmup + ")");
+		System.out.println("          -iterations <n> -- iterations to measure (default " + defaultIterations + ")");
+		System.out.println("          -time <ms> -- length of each iteration (default " + defaultTime + ")");
+		System.out.println("          -filter <regex> -- only run benchmarks whose names contain a match");
+		System.out.println("          -corpus <directory> -- directory holding the bench-*.sil programs (default .)");
+		System.out.println("          -generate <megabytes> -- time lexing and parsing a generated source of this size");
+		System.out.println("          -out <file> -- where to write the JSON results (default " + defaultResults + ")");
+	}
+
+	// Parse a program
+	private static ASTCode parse(String source) throws ParseException {
+		return new Sili(new StringReader(source)).code();
+	}
+
+	// Add the benchmarks of a program in the corpus
+	private void addProgram(String name, final String source) {
+		benchmarks.add(new Benchmark("parse." + name) {
+			Object run() throws ParseException {
+				return parse(source);
+			}
+		});
+		benchmarks.add(new Benchmark("parser." + name) {
+			Object run() throws ParseException {
+				ASTCode program = parse(source);
+				Parser parser = new Parser();
+				program.jjtAccept(parser, null);
+				return parser;
+			}
+		});
+		benchmarks.add(new Benchmark("vm." + name) {
+			Object run() throws ParseException {
+				FunctionDefinition main = new VMCompiler().compile(parse(source));
+				new VirtualMachine(Interpreter.getDefaultStackSize(), null).execute(main);
+				return main;
+			}
+		});
+	}
+
+	// Write a source of at least a number of megabytes, of functions with loops, conditionals,
+	// arithmetic and calls, each followed by statements that call it.  Names are reused after
+	// a thousand functions, as a program reuses its names.
+	private static File generateSource(int megabytes) throws IOException {
+		File file = File.createTempFile("silibench", ".sil");
+		file.deleteOnExit();
+		long size = (long)megabytes << 20;
+		BufferedWriter out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8));
+		try {
+			long written = 0;
+			for (int n = 0; written < size; n++) {
+				int name = n % 1000;
+				String unit = "fn function" + name + "(count, limit) {\n"
+					+ "\ttotal = 0\n"
+					+ "\tfor (index = 0; index < count; index = index + 1) {\n"
+					+ "\t\tif (index == limit and total <> 0)\n"
+					+ "\t\t\ttotal = total + sqrt(index) * 2.5\n"
+					+ "\t\telse\n"
+					+ "\t\t\ttotal = total - (index / 3 + " + n + ")\n"
+					+ "\t}\n"
+					+ "\treturn total\n"
+					+ "}\n"
+					+ "value" + name + " = function" + name + "(" + (n % 100) + ", 7) + 1.5 * 2\n"
+					+ "while (value" + name + " > 100)\n"
+					+ "\tvalue" + name + " = value" + name + " / 2\n"
+					+ "print(\"value \" + value" + name + ")\n";
+				out.write(unit);
+				written += unit.length();
+			}
+		} finally {
+			out.close();
+		}
+		return file;
+	}
+
+	// Return the last token of a source, read by a token manager
+	private static Token lex(SiliTokenManager tokens) {
+		Token token;
+		do
+			token = tokens.getNextToken();
+		while (token.kind != SiliConstants.EOF);
+		return token;
+	}
+
+	// Return the last statement of a source, parsing one statement at a time
+	private static SimpleNode parseStatements(Sili parser) throws ParseException {
+		SimpleNode last = null;
+		for (SimpleNode statement; (statement = parser.topStatement()) != null; )
+			last = statement;
+		return last;
+	}
+
+	// Open a source file as a Reader, as standard input is read
+	private static Reader open(File file) throws IOException {
+		return new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8);
+	}
+
+	// Add the benchmarks of lexing and parsing a generated source
+	private void addGenerated() throws IOException {
+		final File file = generateSource(generate);
+		long bytes = file.length();
+		benchmarks.add(new Benchmark("lex.reader", bytes) {
+			Object run() throws IOException {
+				try (Reader reader = open(file)) {
+					return lex(new SiliTokenManager(new SimpleCharStream(reader)));
+				}
+			}
+		});
+		benchmarks.add(new Benchmark("lex.mapped", bytes) {
+			Object run() throws IOException {
+				return lex(MappedCharStream.tokenManager(file));
+			}
+		});
+		benchmarks.add(new Benchmark("parse.reader", bytes) {
+			Object run() throws ParseException, IOException {
+				try (Reader reader = open(file)) {
+					return parseStatements(new Sili(reader));
+				}
+			}
+		});
+		benchmarks.add(new Benchmark("parse.mapped", bytes) {
+			Object run() throws ParseException, IOException {
+				return parseStatements(MappedCharStream.parser(file));
+			}
+		});
+	}
+
+	// Add the benchmarks
+	private void addBenchmarks() throws IOException {
+		if (generate > 0)
+			addGenerated();
+		File[] files = corpus.listFiles();
+		if (files != null) {
+			Arrays.sort(files);
+			for (File file: files)
+				if (file.getName().startsWith("bench-") && file.getName().endsWith(".sil"))
+					addProgram(file.getName().substring(0, file.getName().length() - 4), new String(Files.readAllBytes(file.toPath())));
+		}
+		// 100000 calls of a function that does nothing but return its argument
+		addProgram("calls", "fn id(x) {\n\treturn x\n}\nfor (i = 0; i < 100000; i = i + 1)\n\tid(i)\n");
+		// 10000 PRINTs, whose output is discarded
+		addProgram("print", "for (i = 0; i < 10000; i = i + 1)\n\tprint(\"line \" + i)\n");
+		benchmarks.add(new Benchmark("arithmetic.integer") {
+			Object run() {
+				Value sum = ValueInteger.valueOf(0);
+				Value three = ValueInteger.valueOf(3);
+				for (long i=0; i<1000; i++) {
+					Value x = ValueInteger.valueOf(i);
+					sum = sum.add(x.mult(three)).subtract(x.div(three));
+				}
+				return sum;
+			}
+		});
+		benchmarks.add(new Benchmark("arithmetic.rational") {
+			Object run() {
+				Value sum = new ValueRational(0);
+				Value three = new ValueRational(3);
+				for (long i=0; i<1000; i++) {
+					Value x = new ValueRational(i);
+					sum = sum.add(x.mult(three)).subtract(x.div(three));
+				}
+				return sum;
+			}
+		});
+		final Value[] zeros = new Value[100];
+		Arrays.fill(zeros, ValueInteger.valueOf(0));
+		benchmarks.add(new Benchmark("array.store") {
+			final ValueArray array = new ValueArray(zeros);
+			Object run() {
+				for (int i=0; i<1000; i++)
+					array.set(i % 100, ValueInteger.valueOf(i));
+				return array;
+			}
+		});
+		benchmarks.add(new Benchmark("array.load") {
+			final ValueArray array = new ValueArray(new Value[] {ValueInteger.valueOf(1), new ValueRational(2), ValueBoolean.TRUE});
+			Object run() {
+				Value last = null;
+				for (int i=0; i<1000; i++)
+					last = array.get(i % 3);
+				return last;
+			}
+		});
+	}
+
+	// Run one iteration of a benchmark for iterationTime.  Return the milliseconds per operation.
+	private double iterate(Benchmark benchmark) throws ParseException, IOException {
+		long deadline = System.nanoTime() + iterationTime * 1000000;
+		long start = System.nanoTime();
+		long operations = 0;
+		long now;
+		do {
+			consumed += System.identityHashCode(benchmark.run());
+			operations++;
+			now = System.nanoTime();
+		} while (now < deadline);
+		return (now - start) / 1e6 / operations;
+	}
+
+	// Warm up and measure a benchmark
+	private void measure(Benchmark benchmark) throws ParseException, IOException {
+		console.print(benchmark.name + ":");
+		for (int i=0; i<warmup; i++)
+			iterate(benchmark);
+		double[] times = new double[iterations];
+		for (int i=0; i<iterations; i++)
+			times[i] = iterate(benchmark);
+		Result result = new Result(benchmark.name, times, benchmark.bytes);
+		results.add(result);
+		if (result.bytes > 0)
+			console.println(String.format(" %.4f ms/op (deviation %.4f), %.1f MB/s", result.getMean(), result.getDeviation(), result.getMegabytesPerSecond()));
+		else
+			console.println(String.format(" %.4f ms/op (deviation %.4f)", result.getMean(), result.getDeviation()));
+	}
+
+	// Run the benchmarks that pass the filter, with standard output discarded
+	private void run() throws ParseException, IOException {
+		System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+		try {
+			for (Benchmark benchmark: benchmarks)
+				if (filter == null || filter.matcher(benchmark.name).find())
+					measure(benchmark);
+		} finally {
+			System.setOut(console);
+		}
+	}
+
+	// Return a JSON string literal
+	private static String json(String s) {
+		return "\"" + s.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+	}
+
+	// Return a JSON number
+	private static String json(double d) {
+		return String.format("%.6f", d);
+	}
+
+	// Write the results
+	private void write() throws IOException {
+		StringBuilder out = new StringBuilder("{\n");
+		out.append("\t\"date\": " + json(String.format("%tFT%<tT", new Date())) + ",\n");
+		out.append("\t\"jvm\": " + json(System.getProperty("java.vm.name") + " " + System.getProperty("java.version")) + ",\n");
+		out.append("\t\"warmupIterations\": " + warmup + ",\n");
+		out.append("\t\"measurementIterations\": " + iterations + ",\n");
+		out.append("\t\"iterationTimeMs\": " + iterationTime + ",\n");
+		out.append("\t\"benchmarks\": [");
+		for (int i=0; i<results.size(); i++) {
+			Result result = results.get(i);
+			out.append((i > 0) ? ",\n" : "\n");
+			out.append("\t\t{\"benchmark\": " + json(result.name) + ", \"unit\": \"ms/op\", \"score\": " + json(result.getMean())
+				+ ", \"deviation\": " + json(result.getDeviation()));
+			if (result.bytes > 0)
+				out.append(", \"megabytesPerSecond\": " + json(result.getMegabytesPerSecond()));
+			out.append(", \"iterations\": [");
+			for (int j=0; j<result.times.length; j++)
+				out.append(((j > 0) ? ", " : "") + json(result.times[j]));
+			out.append("]}");
+		}
+		out.append("\n\t]\n}\n");
+		FileWriter writer = new FileWriter(resultFile);
+		try {
+			writer.write(out.toString());
+		} finally {
+			writer.close();
+		}
+	}
+
+	public static void main(String[] args) {
+		final BenchmarkSuite suite = new BenchmarkSuite();
+		for (int i=0; i<args.length; i++) {
+			String arg = args[i];
+			boolean hasValue = i + 1 < args.length;
+			if (arg.equals("-warmup") && hasValue && args[i + 1].matches("[0-9]{1,4}"))
+				suite.warmup = Integer.parseInt(args[++i]);
+			else if (arg.equals("-iterations") && hasValue && args[i + 1].matches("[1-9][0-9]{0,3}"))
+				suite.iterations = Integer.parseInt(args[++i]);
+			else if (arg.equals("-time") && hasValue && args[i + 1].matches("[1-9][0-9]{0,6}"))
+				suite.iterationTime = Long.parseLong(args[++i]);
+			else if (arg.equals("-filter") && hasValue)
+				suite.filter = Pattern.compile(args[++i]);
+			else if (arg.equals("-corpus") && hasValue)
+				suite.corpus = new File(args[++i]);
+			else if (arg.equals("-generate") && hasValue && args[i + 1].matches("[1-9][0-9]{0,3}"))
+				suite.generate = Integer.parseInt(args[++i]);
+			else if (arg.equals("-out") && hasValue)
+				suite.resultFile = args[++i];
+			else {
+				usage();
+				return;
+			}
+		}
+		// The Parser recurses on the Java stack, so the suite runs on a thread with the interpreter's stack
+		CompiledRuntime.run(new Runnable() {
+			public void run() {
+				try {
+					suite.addBenchmarks();
+					suite.run();
+					suite.write();
+					System.out.println("Results written to " + suite.resultFile);
+				} catch (ParseException | IOException e) {
+					throw new ExceptionSemantic(e.getMessage());
+				}
+			}
+		}, Interpreter.getDefaultStackSize());
+	}
+
+}
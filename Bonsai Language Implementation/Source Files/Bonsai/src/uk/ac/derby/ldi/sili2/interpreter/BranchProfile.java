@@ -0,0 +1,127 @@
+package uk.ac.derby.ldi.sili2.interpreter;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+
+import uk.ac.derby.ldi.sili2.parser.ast.*;
+
+/** Counts how often the conditionals of a program go each way.
+ *
+ * For an IF, WHILE or FOR, a branch is taken when its test is true.  For an AND or OR, it
+ * is taken when the left operand decides the result, so the right one isn't evaluated.
+ * The Parser counts every test it executes, and keeps the counts in the node.
+ * TierGenerator uses them to lay out the branch taken most often first.  The counts keep
+ * the line of the conditional and the first and last tokens of its test, but not the node,
+ * and the source of the test is only made from the tokens when a report is written.
+ */
+class BranchProfile {
+
+	/** The counts of one conditional. */
+	static final class Branch {
+		private final String kind;
+		private final String function;
+		private final int line;
+		private final Token first;
+		private final Token last;
+		long taken = 0;
+		long notTaken = 0;
+
+		private Branch(ConditionalNode node, String function) {
+			kind = getKind(node);
+			this.function = function;
+			line = node.line;
+			first = node.first;
+			last = node.last;
+		}
+
+		/** Count a test. */
+		void count(boolean isTaken) {
+			if (isTaken)
+				taken++;
+			else
+				notTaken++;
+		}
+
+		/** True if the branch has been taken less often than not. */
+		boolean isUnlikely() {
+			return taken < notTaken;
+		}
+	}
+
+	private ArrayList<Branch> branches = null;
+
+	/** Keep every conditional that is tested, for report(). */
+	void enableReport() {
+		if (branches == null)
+			branches = new ArrayList<Branch>();
+	}
+
+	/** Get the counts of a conditional in a function, starting them at its first test. */
+	Branch get(ConditionalNode node, FunctionDefinition function) {
+		Branch branch = getBranch(node);
+		if (branch == null) {
+			branch = new Branch(node, function.getName());
+			node.branch = branch;
+			if (branches != null)
+				branches.add(branch);
+		}
+		return branch;
+	}
+
+	/** Get the counts of a conditional, or null if it has not been tested. */
+	static Branch getBranch(ConditionalNode node) {
+		return node.branch;
+	}
+
+	/** Write the counts of every conditional tested since enableReport(), most often tested first. */
+	void report(PrintStream out) {
+		if (branches == null)
+			return;
+		ArrayList<Branch> sorted = new ArrayList<Branch>(branches);
+		Collections.sort(sorted, new Comparator<Branch>() {
+			public int compare(Branch a, Branch b) {
+				return Long.compare(b.taken + b.notTaken, a.taken + a.notTaken);
+			}
+		});
+		for (Branch branch: sorted)
+			out.println(getLocation(branch) + ": " + branch.kind + " " + getSource(branch)
+				+ ": taken " + branch.taken + ", not taken " + branch.notTaken);
+	}
+
+	// Get the source of a conditional's test, from its first token to its last, with a space
+	// wherever the source had one
+	private static String getSource(Branch branch) {
+		if (branch.first == null)
+			return "?";
+		StringBuilder source = new StringBuilder(branch.first.image);
+		for (Token token = branch.first; token != branch.last && token.next != null; token = token.next) {
+			Token next = token.next;
+			if (next.beginLine != token.endLine || next.beginColumn > token.endColumn + 1)
+				source.append(' ');
+			source.append(next.image);
+		}
+		return source.toString();
+	}
+
+	// Get the line and function of a conditional
+	private static String getLocation(Branch branch) {
+		String function = branch.function.startsWith("%") ? "" : " in " + branch.function;
+		return ((branch.line == 0) ? "line ?" : "line " + branch.line) + function;
+	}
+
+	// Get the name of a conditional's kind
+	private static String getKind(ConditionalNode node) {
+		if (node instanceof ASTIfStatement)
+			return "IF";
+		if (node instanceof ASTWhileLoop)
+			return "WHILE";
+		if (node instanceof ASTForLoop)
+			return "FOR";
+		if (node instanceof ASTAnd)
+			return "AND";
+		return "OR";
+	}
+
+}
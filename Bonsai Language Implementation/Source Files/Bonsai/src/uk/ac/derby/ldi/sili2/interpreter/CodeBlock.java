@@ -0,0 +1,38 @@
+package uk.ac.derby.ldi.sili2.interpreter;
+
+import uk.ac.derby.ldi.sili2.values.Value;
+
+/** Compiled instructions for the main program or a single function, as produced by
+ * VMCompiler and executed by VirtualMachine.
+ */
+class CodeBlock {
+
+	// Name of the function, or %main
+	final String name;
+
+	// Instructions.  See Opcodes.
+	final int[] code;
+
+	// Literal values referenced by LITERAL
+	final Value[] literals;
+
+	// Identifiers and error messages referenced by instruction operands
+	final String[] names;
+
+	// Function definitions referenced by FNDEF and FRAME
+	final FunctionDefinition[] functions;
+
+	// Maximum operand stack depth needed by this block
+	final int maxStack;
+
+	/** Ctor */
+	CodeBlock(String name, int[] code, Value[] literals, String[] names, FunctionDefinition[] functions, int maxStack) {
+		this.name = name;
+		this.code = code;
+		this.literals = literals;
+		this.names = names;
+		this.functions = functions;
+		this.maxStack = maxStack;
+	}
+
+}
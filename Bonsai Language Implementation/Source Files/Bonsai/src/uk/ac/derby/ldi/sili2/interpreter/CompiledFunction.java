@@ -0,0 +1,11 @@
+package uk.ac.derby.ldi.sili2.interpreter;
+
+import uk.ac.derby.ldi.sili2.values.Value;
+
+/** A Sili function compiled to the JVM by TieredCompiler. */
+interface CompiledFunction {
+
+	/** Invoke the function.  Arguments have already been checked against its parameters. */
+	Value invoke(Value[] arguments);
+
+}
@@ -0,0 +1,129 @@
+package uk.ac.derby.ldi.sili2.interpreter;
+
+import uk.ac.derby.ldi.sili2.values.Value;
+import uk.ac.derby.ldi.sili2.values.ValueArray;
+import uk.ac.derby.ldi.sili2.values.ValueBoolean;
+import uk.ac.derby.ldi.sili2.values.ValueInteger;
+
+/** Run-time support for Sili programs compiled to JVM classes by JavaGenerator.
+ *
+ * Each method reproduces the checks, and error messages, of the corresponding
+ * Parser visitor.
+ */
+public final class CompiledRuntime {
+
+	private CompiledRuntime() {}
+
+	/** Fail with a semantic error.  Declared to return a Value so it can be used in an expression. */
+	public static Value fail(String message) {
+		throw new ExceptionSemantic(message);
+	}
+
+	/** Fail with a semantic error once the given arguments have been evaluated. */
+	public static Value fail(String message, Value... arguments) {
+		throw new ExceptionSemantic(message);
+	}
+
+	/** Discard the result of a function called as a statement. */
+	public static void discard(Value value) {
+	}
+
+	/** Return the value of a variable, which must have been assigned. */
+	public static Value get(Value value, String name) {
+		if (value == null)
+			throw new ExceptionSemantic("Variable or parameter " + name + " is undefined.");
+		return value;
+	}
+
+	/** Return the value of the test expression of an IF, FOR or WHILE. */
+	public static boolean test(Value value, String message) {
+		if (!(value instanceof ValueBoolean))
+			throw new ExceptionSemantic(message);
+		return ((ValueBoolean)value).booleanValue();
+	}
+
+	/** True if the left operand of an AND or OR is the value that decides its result by itself. */
+	public static boolean decides(Value left, boolean decider) {
+		return left == (decider ? ValueBoolean.TRUE : ValueBoolean.FALSE);
+	}
+
+	/** Fail if the variable being defined as an array already holds one. */
+	public static void arrayUndefined(Value variable, String identifier) {
+		if (variable instanceof ValueArray)
+			throw new ExceptionSemantic("Array " + identifier + " is already defined.");
+	}
+
+	/** Return the array a variable holds, or fail. */
+	public static ValueArray array(Value variable, String identifier) {
+		if (!(variable instanceof ValueArray))
+			throw new ExceptionSemantic("Array " + identifier + " is undefined.");
+		return (ValueArray)variable;
+	}
+
+	/** Check an array index. */
+	public static int index(ValueArray array, Value index) {
+		if (!(index instanceof ValueInteger))
+			throw new ExceptionSemantic("Array index must be integer value.");
+		long indexValue = index.longValue();
+		if (indexValue < 0 || indexValue >= array.size())
+			throw new ExceptionSemantic("Array out of bounds " + indexValue);
+		return (int)indexValue;
+	}
+
+	/** Assign an array element. */
+	public static void arraySet(ValueArray array, int index, Value value) {
+		array.set(index, value);
+	}
+
+	/** Print a value. */
+	public static void print(Value value) {
+		print(OutputSink.getStandardOutput(), value);
+	}
+
+	/** Print a value to a sink.  Functions compiled by TieredCompiler print to the Parser's. */
+	static void print(OutputSink out, Value value) {
+		out.println(value);
+	}
+
+	/** Run a program on a thread with a Java stack of the given size, in bytes, and report
+	 * any error that stops it.  Recursion that overflows the stack is reported as such.
+	 * Standard output is flushed when the program ends.
+	 */
+	public static void run(final Runnable program, final long stackSize) {
+		Thread thread = new Thread(null, new Runnable() {
+			public void run() {
+				try {
+					program.run();
+				} catch (ExceptionExit e) {
+					// EXIT has ended the program
+				} catch (StackOverflowError e) {
+					OutputSink.getStandardOutput().println(Interpreter.getRecursionMessage(stackSize));
+				} catch (Throwable e) {
+					OutputSink.getStandardOutput().println(e.getMessage());
+				} finally {
+					OutputSink.getStandardOutput().flush();
+				}
+			}
+		}, "Sili", stackSize);
+		thread.start();
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			thread.interrupt();
+		}
+	}
+
+	/** Terminate the program. */
+	public static void exit() {
+		exit(OutputSink.getStandardOutput());
+	}
+
+	/** Terminate the program, saying so to a sink. */
+	static void exit(OutputSink out) {
+		ExceptionExit exit = new ExceptionExit();
+		out.println(exit.getMessage());
+		out.flush();
+		throw exit;
+	}
+
+}
@@ -0,0 +1,36 @@
+package uk.ac.derby.ldi.sili2.interpreter;
+
+import uk.ac.derby.ldi.sili2.parser.ast.Sili;
+import uk.ac.derby.ldi.sili2.parser.ast.SimpleNode;
+import uk.ac.derby.ldi.sili2.parser.ast.Token;
+
+/** The base class of the IF, WHILE, FOR, AND and OR nodes, whose tests can go either way.
+ *
+ * JJTree generates the other node classes.  These five are kept in the source tree,
+ * where JJTree leaves them alone, so that only conditionals carry a profile.
+ */
+public abstract class ConditionalNode extends SimpleNode {
+	// The line of the conditional, and the first and last tokens of its test, for BranchProfile.
+	// The parser unlinks the last token from the tokens after it, so only the test's are kept.
+	int line = 0;
+	Token first = null;
+	Token last = null;
+
+	// The counts of how often the conditional has gone each way, once it has been tested
+	BranchProfile.Branch branch = null;
+
+	public ConditionalNode(int id) {
+		super(id);
+	}
+
+	public ConditionalNode(Sili p, int id) {
+		super(p, id);
+	}
+
+	/** Set where the conditional is, and the first and last tokens of its test. */
+	public void setTest(int line, Token first, Token last) {
+		this.line = line;
+		this.first = first;
+		this.last = last;
+	}
+}
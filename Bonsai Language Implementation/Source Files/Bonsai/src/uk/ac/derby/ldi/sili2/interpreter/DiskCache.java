@@ -0,0 +1,118 @@
+package uk.ac.derby.ldi.sili2.interpreter;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.net.URL;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import uk.ac.derby.ldi.sili2.parser.ast.ASTCode;
+import uk.ac.derby.ldi.sili2.parser.ast.ParseException;
+import uk.ac.derby.ldi.sili2.parser.ast.Sili;
+
+/** Programs compiled by VMCompiler, kept in a directory so that later runs of the same
+ * source don't parse or compile it.
+ *
+ * A program is kept in a file named by the SHA-256 hash of its source, whether it was
+ * optimised, and the version of the interpreter, so a change to any of them compiles the
+ * program again.  The file is in the form written by ProgramFile, and is read by mapping
+ * it into memory.  A file that can't be read or written is ignored, and the program is
+ * compiled as if there were no cache.
+ */
+class DiskCache {
+
+	private static final String suffix = ".silc";
+
+	private final File directory;
+	private final String version;
+
+	/** Ctor, given the directory to keep programs in.  It is created when first needed. */
+	DiskCache(File directory) {
+		this.directory = directory;
+		version = getVersion();
+	}
+
+	// Identify this build of the interpreter by the format version and when its compiler was built
+	private static String getVersion() {
+		String version = VMCompiler.class.getPackage().getImplementationVersion();
+		if (version == null) {
+			try {
+				URL compiler = VMCompiler.class.getResource("VMCompiler.class");
+				version = (compiler == null) ? "" : Long.toString(compiler.openConnection().getLastModified());
+			} catch (IOException e) {
+				version = "";
+			}
+		}
+		return ProgramFile.formatVersion + ":" + version;
+	}
+
+	// Get the file that holds, or would hold, a program
+	private File getFile(String source, boolean optimise) {
+		return new File(directory, ProgramCache.hash(version + (optimise ? ":O:" : "::") + source) + suffix);
+	}
+
+	/** Get the main definition of a program, compiled from its source unless it is kept. */
+	FunctionDefinition get(String source, boolean optimise) throws ParseException {
+		File file = getFile(source, optimise);
+		FunctionDefinition main = load(file);
+		if (main != null)
+			return main;
+		ASTCode program = new Sili(new StringReader(source)).code();
+		if (optimise)
+			new Optimiser().optimise(program);
+		main = new VMCompiler().compile(program);
+		store(main, file);
+		return main;
+	}
+
+	// Read a kept program.  Return null if there isn't one, or it can't be read.
+	private static FunctionDefinition load(File file) {
+		if (!file.isFile())
+			return null;
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			return ProgramFile.read(buffer);
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	// Keep a program.  It is written to a temporary file that is then renamed, so that
+	// another run never reads half a file.
+	private void store(FunctionDefinition main, File file) {
+		File temporary = null;
+		try {
+			directory.mkdirs();
+			temporary = File.createTempFile("sili", ".tmp", directory);
+			OutputStream out = new BufferedOutputStream(new FileOutputStream(temporary));
+			try {
+				ProgramFile.write(main, out);
+			} finally {
+				out.close();
+			}
+			Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			if (temporary != null)
+				temporary.delete();
+		}
+	}
+
+	/** Delete every kept program.  Return how many were deleted. */
+	int clear() {
+		int count = 0;
+		File[] files = directory.listFiles();
+		if (files != null)
+			for (File file: files)
+				if (file.getName().endsWith(suffix) && file.delete())
+					count++;
+		return count;
+	}
+
+}
@@ -31,26 +31,45 @@ class Display {
 		Value getValue() {
 			return display[displayDepth].getValue(slotNumber);
 		}
+		
+		/** Get the level of the function that owns the slot. */
+		int getDepth() {
+			return displayDepth;
+		}
+		
+		/** Get the slot number. */
+		int getSlot() {
+			return slotNumber;
+		}
 	}
 	
-	/** Ctor */
-	Display() {
+	/** Ctor, given the definition of the main program produced by Resolver. */
+	Display(FunctionDefinition main) {
+		this(new FunctionInvocation(main));
+	}
+	
+	/** Ctor, given an invocation of the main program whose variables may already have values. */
+	Display(FunctionInvocation main) {
 		// root or 0th scope
 		currentLevel = 0;
-		display[currentLevel] = new FunctionInvocation(new FunctionDefinition("%main", currentLevel));
+		display[currentLevel] = main;
 	}
 	
-	/** Execute a function in its scope, using a specified parser. */
-	Value execute(FunctionInvocation fn, Parser p) {
+	/** Make a function invocation current at its level.  Return the invocation it displaced.
+	 * The caller must remember getLevel() beforehand and pass both to leave().
+	 */
+	FunctionInvocation enter(FunctionInvocation fn) {
 		int changeLevel = fn.getLevel();
 		FunctionInvocation oldContext = display[changeLevel];
-		int oldLevel = currentLevel;
 		display[changeLevel] = fn;
 		currentLevel = changeLevel;
-		Value v = display[currentLevel].execute(p);
-		display[changeLevel] = oldContext;
+		return oldContext;
+	}
+	
+	/** Undo enter(), restoring the displaced invocation and the previous level. */
+	void leave(FunctionInvocation fn, FunctionInvocation oldContext, int oldLevel) {
+		display[fn.getLevel()] = oldContext;
 		currentLevel = oldLevel;
-		return v;
 	}
 	
 	/** Get the current scope nesting level. */
@@ -58,43 +77,24 @@ class Display {
 		return currentLevel;
 	}
 	
-	/** Return a Reference to a variable or parameter.  Return null if it doesn't exist. */
-	Reference findReference(String name) {
-		int level = currentLevel;
-		while (level >= 0) {
-			int offset = display[level].findSlotNumber(name);
-			if (offset >= 0)
-				return new Reference(level, offset);
-			level--;
-		}
-		return null;		
-	}
-
-	/** Create a variable in the current level and return its Reference. */
-	Reference defineVariable(String name) {
-		return new Reference(currentLevel, display[currentLevel].defineVariable(name));
+	/** Get the definition of the function executing at the current level. */
+	FunctionDefinition getCurrentDefinition() {
+		return display[currentLevel].getFunctionDefinition();
 	}
-
-	/** Find a function.  Return null if it doesn't exist. */
-	FunctionDefinition findFunction(String name) {
-		int level = currentLevel;
-		while (level >= 0) {
-			FunctionDefinition definition = display[level].findFunction(name);
-			if (definition != null)
-				return definition;
-			level--;
-		}
-		return null;
+	
+	/** Return a Reference to a variable or parameter resolved by Resolver. */
+	Reference getReference(SlotReference reference) {
+		return new Reference(reference.depth, reference.slot);
 	}
-
-	/** Find a function in the current level.  Return null if it doesn't exist. */
-	FunctionDefinition findFunctionInCurrentLevel(String name) {
-		return display[currentLevel].findFunction(name);
+	
+	/** Get the value of a variable or parameter resolved by Resolver. */
+	Value getValue(int depth, int slot) {
+		return display[depth].getValue(slot);
 	}
 	
-	/** Add a function to the current level. */
-	void addFunction(FunctionDefinition definition) {
-		display[currentLevel].addFunction(definition);
+	/** Set the value of a variable or parameter resolved by Resolver. */
+	void setValue(int depth, int slot, Value value) {
+		display[depth].setValue(slot, value);
 	}
 	
 }
@@ -0,0 +1,13 @@
+package uk.ac.derby.ldi.sili2.interpreter;
+/**
+ * This exception is thrown by EXIT to end the program that executes it.
+ */
+public class ExceptionExit extends Error {
+
+	static final long serialVersionUID = 0;
+	
+	public ExceptionExit() {
+		super("Program has been terminated ...");
+	}
+
+}
@@ -0,0 +1,220 @@
+package uk.ac.derby.ldi.sili2.interpreter;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+import uk.ac.derby.ldi.sili2.parser.ast.*;
+
+/** A program held in a few arrays rather than as a tree of nodes, so that a large program
+ * takes a fraction of the memory.
+ *
+ * The nodes are numbered in the order they were parsed, a node before its children, and
+ * the top-level statements follow one another from node 0.  For each node there is its kind,
+ * one of SiliTreeConstants, the number of the node after its last descendant, which is its
+ * next sibling, and an index into a pool of names and literals for the node's token value,
+ * or -1.  The children of a node are the node after it, that node's next sibling, and so on
+ * up to the node's own next sibling.  The only tokens are the first and last tokens of the
+ * tests of conditionals, which the parser leaves for BranchProfile.
+ *
+ * A top-level statement is made back into nodes by inflate(), so that Resolver and Parser
+ * can work on it; neither walks the arrays themselves.
+ */
+final class FlatTree {
+
+	private int[] kinds = new int[1024];
+	private int[] next = new int[1024];
+	private int[] operands = new int[1024];
+	private int size = 0;
+
+	private String[] pool = new String[256];
+	private int poolSize = 0;
+	private HashMap<String, Integer> poolIndex = new HashMap<String, Integer>();
+
+	// The conditionals that have tokens, in order, and their lines and first and last tokens
+	private int[] marked = new int[64];
+	private int[] lines = new int[64];
+	private Token[] firsts = new Token[64];
+	private Token[] lasts = new Token[64];
+	private int markCount = 0;
+
+	private FlatTree() {
+	}
+
+	/** Parse a program into a FlatTree, a top-level statement at a time, so that the whole
+	 * program is never held as nodes.  Fold its constants first if optimise is true.
+	 */
+	static FlatTree read(Sili parser, boolean optimise) throws ParseException {
+		FlatTree tree = new FlatTree();
+		Optimiser optimiser = optimise ? new Optimiser() : null;
+		SimpleNode statement;
+		while ((statement = parser.topStatement()) != null) {
+			if (optimiser != null)
+				statement = optimiser.optimiseStatement(statement);
+			tree.add(statement);
+		}
+		tree.trim();
+		return tree;
+	}
+
+	/** Get the number of nodes. */
+	int size() {
+		return size;
+	}
+
+	/** Get the kind of a node, one of SiliTreeConstants. */
+	int getKind(int node) {
+		return kinds[node];
+	}
+
+	/** Get the node after the last descendant of a node. */
+	int getNext(int node) {
+		return next[node];
+	}
+
+	/** Get the token value of a node, or null. */
+	String getTokenValue(int node) {
+		return (operands[node] < 0) ? null : pool[operands[node]];
+	}
+
+	// Add a node and its descendants
+	private void add(SimpleNode node) {
+		int index = size;
+		if (size == kinds.length) {
+			kinds = Arrays.copyOf(kinds, size * 2);
+			next = Arrays.copyOf(next, size * 2);
+			operands = Arrays.copyOf(operands, size * 2);
+		}
+		kinds[index] = node.getId();
+		operands[index] = (node.tokenValue == null) ? -1 : intern(node.tokenValue);
+		size++;
+		if (node instanceof ConditionalNode && ((ConditionalNode)node).first != null)
+			mark(index, (ConditionalNode)node);
+		for (int i=0; i<node.jjtGetNumChildren(); i++)
+			add((SimpleNode)node.jjtGetChild(i));
+		next[index] = size;
+	}
+
+	// Get the index of a string in the pool, adding it if it isn't there
+	private int intern(String value) {
+		Integer index = poolIndex.get(value);
+		if (index != null)
+			return index.intValue();
+		if (poolSize == pool.length)
+			pool = Arrays.copyOf(pool, poolSize * 2);
+		pool[poolSize] = value;
+		poolIndex.put(value, Integer.valueOf(poolSize));
+		return poolSize++;
+	}
+
+	// Keep the line and tokens of a conditional
+	private void mark(int node, ConditionalNode conditional) {
+		if (markCount == marked.length) {
+			marked = Arrays.copyOf(marked, markCount * 2);
+			lines = Arrays.copyOf(lines, markCount * 2);
+			firsts = Arrays.copyOf(firsts, markCount * 2);
+			lasts = Arrays.copyOf(lasts, markCount * 2);
+		}
+		marked[markCount] = node;
+		lines[markCount] = conditional.line;
+		firsts[markCount] = conditional.first;
+		lasts[markCount++] = conditional.last;
+	}
+
+	// Drop the room left for growth, and the index of the pool
+	private void trim() {
+		kinds = Arrays.copyOf(kinds, size);
+		next = Arrays.copyOf(next, size);
+		operands = Arrays.copyOf(operands, size);
+		pool = Arrays.copyOf(pool, poolSize);
+		poolIndex = null;
+		marked = Arrays.copyOf(marked, markCount);
+		lines = Arrays.copyOf(lines, markCount);
+		firsts = Arrays.copyOf(firsts, markCount);
+		lasts = Arrays.copyOf(lasts, markCount);
+	}
+
+	/** Make a node and its descendants back into a tree of nodes. */
+	SimpleNode inflate(int node) {
+		SimpleNode inflated = create(kinds[node]);
+		if (operands[node] >= 0)
+			inflated.tokenValue = pool[operands[node]];
+		int mark = Arrays.binarySearch(marked, node);
+		if (mark >= 0)
+			((ConditionalNode)inflated).setTest(lines[mark], firsts[mark], lasts[mark]);
+		int count = 0;
+		for (int child = node + 1; child < next[node]; child = next[child])
+			count++;
+		if (count > 0) {
+			// Adding the last child first makes the array of children the right size at once
+			inflated.jjtAddChild(null, count - 1);
+			int i = 0;
+			for (int child = node + 1; child < next[node]; child = next[child]) {
+				SimpleNode inflatedChild = inflate(child);
+				inflated.jjtAddChild(inflatedChild, i++);
+				inflatedChild.jjtSetParent(inflated);
+			}
+		}
+		return inflated;
+	}
+
+	// Make a node of a kind
+	private static SimpleNode create(int kind) {
+		switch (kind) {
+		case SiliTreeConstants.JJTCODE: return new ASTCode(kind);
+		case SiliTreeConstants.JJTASSIGNMENT: return new ASTAssignment(kind);
+		case SiliTreeConstants.JJTCALL: return new ASTCall(kind);
+		case SiliTreeConstants.JJTARRAYDEFINE: return new ASTArrayDefine(kind);
+		case SiliTreeConstants.JJTARRAYASSIGNMENT: return new ASTArrayAssignment(kind);
+		case SiliTreeConstants.JJTARRAYPARAMLIST: return new ASTArrayParamList(kind);
+		case SiliTreeConstants.JJTPRINT: return new ASTPrint(kind);
+		case SiliTreeConstants.JJTEXIT: return new ASTExit(kind);
+		case SiliTreeConstants.JJTBLOCK: return new ASTBlock(kind);
+		case SiliTreeConstants.JJTPARMLIST: return new ASTParmlist(kind);
+		case SiliTreeConstants.JJTFNBODY: return new ASTFnBody(kind);
+		case SiliTreeConstants.JJTFNDEF: return new ASTFnDef(kind);
+		case SiliTreeConstants.JJTRETURNEXPRESSION: return new ASTReturnExpression(kind);
+		case SiliTreeConstants.JJTIFSTATEMENT: return new ASTIfStatement(kind);
+		case SiliTreeConstants.JJTWHILELOOP: return new ASTWhileLoop(kind);
+		case SiliTreeConstants.JJTFORLOOP: return new ASTForLoop(kind);
+		case SiliTreeConstants.JJTARGLIST: return new ASTArgList(kind);
+		case SiliTreeConstants.JJTOR: return new ASTOr(kind);
+		case SiliTreeConstants.JJTAND: return new ASTAnd(kind);
+		case SiliTreeConstants.JJTCOMPEQUAL: return new ASTCompEqual(kind);
+		case SiliTreeConstants.JJTCOMPNEQUAL: return new ASTCompNequal(kind);
+		case SiliTreeConstants.JJTCOMPGTE: return new ASTCompGTE(kind);
+		case SiliTreeConstants.JJTCOMPLTE: return new ASTCompLTE(kind);
+		case SiliTreeConstants.JJTCOMPGT: return new ASTCompGT(kind);
+		case SiliTreeConstants.JJTCOMPLT: return new ASTCompLT(kind);
+		case SiliTreeConstants.JJTADD: return new ASTAdd(kind);
+		case SiliTreeConstants.JJTSUBTRACT: return new ASTSubtract(kind);
+		case SiliTreeConstants.JJTTIMES: return new ASTTimes(kind);
+		case SiliTreeConstants.JJTDIVIDE: return new ASTDivide(kind);
+		case SiliTreeConstants.JJTUNARYNOT: return new ASTUnaryNot(kind);
+		case SiliTreeConstants.JJTUNARYPLUS: return new ASTUnaryPlus(kind);
+		case SiliTreeConstants.JJTUNARYMINUS: return new ASTUnaryMinus(kind);
+		case SiliTreeConstants.JJTFNINVOKE: return new ASTFnInvoke(kind);
+		case SiliTreeConstants.JJTARRAYINVOKE: return new ASTArrayInvoke(kind);
+		case SiliTreeConstants.JJTIDENTIFIER: return new ASTIdentifier(kind);
+		case SiliTreeConstants.JJTDEREFERENCE: return new ASTDereference(kind);
+		case SiliTreeConstants.JJTCHARACTER: return new ASTCharacter(kind);
+		case SiliTreeConstants.JJTINTEGER: return new ASTInteger(kind);
+		case SiliTreeConstants.JJTRATIONAL: return new ASTRational(kind);
+		case SiliTreeConstants.JJTTRUE: return new ASTTrue(kind);
+		case SiliTreeConstants.JJTFALSE: return new ASTFalse(kind);
+		case SiliTreeConstants.JJTSQUAREROOT: return new ASTSquareRoot(kind);
+		case SiliTreeConstants.JJTCEIL: return new ASTCeil(kind);
+		case SiliTreeConstants.JJTABSOLUTEVALUE: return new ASTAbsoluteValue(kind);
+		case SiliTreeConstants.JJTFACTORIAL: return new ASTFactorial(kind);
+		case SiliTreeConstants.JJTFLOOR: return new ASTFloor(kind);
+		case SiliTreeConstants.JJTPOWER: return new ASTPower(kind);
+		case SiliTreeConstants.JJTSINE: return new ASTSine(kind);
+		case SiliTreeConstants.JJTCOSINE: return new ASTCosine(kind);
+		case SiliTreeConstants.JJTTANGENT: return new ASTTangent(kind);
+		case SiliTreeConstants.JJTDEGREES: return new ASTDegrees(kind);
+		case SiliTreeConstants.JJTRADIANS: return new ASTRadians(kind);
+		case SiliTreeConstants.JJTPI: return new ASTPi(kind);
+		default: throw new ExceptionSemantic("Unknown node kind " + kind + ".");
+		}
+	}
+
+}
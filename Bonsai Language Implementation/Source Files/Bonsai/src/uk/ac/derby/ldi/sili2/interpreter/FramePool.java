@@ -0,0 +1,34 @@
+package uk.ac.derby.ldi.sili2.interpreter;
+
+import java.util.Arrays;
+
+/** Function invocation contexts that have returned, kept for reuse by later calls.
+ *
+ * A context is only referenced by the display while its invocation is executing, so
+ * once the invocation returns it can be reused.  Contexts are handed out in LIFO order,
+ * so the pool never holds more than the deepest recursion seen so far.
+ */
+class FramePool {
+
+	private FunctionInvocation[] free = new FunctionInvocation[16];
+	private int freeCount = 0;
+
+	/** Get a context for a new invocation of a given function. */
+	FunctionInvocation acquire(FunctionDefinition fndef) {
+		if (freeCount == 0)
+			return new FunctionInvocation(fndef);
+		FunctionInvocation invocation = free[--freeCount];
+		free[freeCount] = null;
+		invocation.reset(fndef);
+		return invocation;
+	}
+
+	/** Return the context of an invocation that has finished. */
+	void release(FunctionInvocation invocation) {
+		invocation.clear();
+		if (freeCount == free.length)
+			free = Arrays.copyOf(free, freeCount * 2);
+		free[freeCount++] = invocation;
+	}
+
+}
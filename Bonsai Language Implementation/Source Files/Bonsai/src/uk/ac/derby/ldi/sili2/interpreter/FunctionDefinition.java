@@ -5,15 +5,14 @@ import java.util.Vector;
 import uk.ac.derby.ldi.sili2.parser.ast.SimpleNode;
 
 import java.util.HashMap;
-import java.io.Serializable;
+import java.util.Map;
 
 /** This class captures information about the function currently being defined.
  * 
  * @author dave
  *
  */
-class FunctionDefinition implements Comparable<Object>, Serializable {
-	private static final long serialVersionUID = 0;
+class FunctionDefinition implements Comparable<Object> {
 
 	private String name;
 	private String parmSignature = "";
@@ -22,12 +21,20 @@ class FunctionDefinition implements Comparable<Object>, Serializable {
 	private HashMap<String, FunctionDefinition> functions = new HashMap<String, FunctionDefinition>();
 	private SimpleNode ASTFunctionBody = null;
 	private SimpleNode ASTFunctionReturnExpression = null;
+	private CodeBlock code = null;
+	private volatile CompiledFunction compiled = null;
+	private int hotness = 0;
+	private boolean defined = false;
+	private boolean pure = false;
+	private boolean returnsValue = false;
 	private int depth;
+	private int number;
 	
-	/** Ctor for function definition. */
-	FunctionDefinition(String functionName, int level) {
+	/** Ctor for function definition, given its level and its number among the functions of its program. */
+	FunctionDefinition(String functionName, int level, int functionNumber) {
 		name = functionName;
 		depth = level;
+		number = functionNumber;
 	}
 	
 	/** Get the depth of this definition.
@@ -40,11 +47,36 @@ class FunctionDefinition implements Comparable<Object>, Serializable {
 		return depth;
 	}
 	
+	/** Get the number of this function among the functions of its program.  The main program is 0. */
+	int getNumber() {
+		return number;
+	}
+	
 	/** Get the name of this function. */
 	String getName() {
 		return name;
 	}
 	
+	/** Note that the definition of this function has been executed, so it may be called. */
+	void setDefined() {
+		defined = true;
+	}
+	
+	/** True if the definition of this function has been executed. */
+	boolean isDefined() {
+		return defined;
+	}
+	
+	/** Note whether this function is pure, as decided by Resolver. */
+	void setPure(boolean pure) {
+		this.pure = pure;
+	}
+	
+	/** True if this function returns a value that only depends on its arguments, and does nothing else. */
+	boolean isPure() {
+		return pure;
+	}
+	
 	/** Set the function body of this function. */
 	void setFunctionBody(SimpleNode node) {
 		ASTFunctionBody = node;
@@ -58,6 +90,7 @@ class FunctionDefinition implements Comparable<Object>, Serializable {
 	/** Set the return expression of this function. */
 	void setFunctionReturnExpression(SimpleNode node) {
 		ASTFunctionReturnExpression = node;
+		returnsValue = (node != null);
 	}
 	
 	/** Get the return expression of this function. */
@@ -65,14 +98,49 @@ class FunctionDefinition implements Comparable<Object>, Serializable {
 		return ASTFunctionReturnExpression;
 	}
 	
+	/** Set the compiled body of this function, for use by the VirtualMachine. */
+	void setCode(CodeBlock block) {
+		code = block;
+	}
+	
+	/** Get the compiled body of this function.  Null if it has not been compiled. */
+	CodeBlock getCode() {
+		return code;
+	}
+	
+	/** Install a JVM-compiled version of this function.  Calls made after this use it. */
+	void setCompiled(CompiledFunction function) {
+		compiled = function;
+	}
+	
+	/** Get the JVM-compiled version of this function.  Null if it has not been compiled. */
+	CompiledFunction getCompiled() {
+		return compiled;
+	}
+	
+	/** Count an invocation, or a loop iteration, of this function.  Return the new count. */
+	int heat() {
+		return ++hotness;
+	}
+	
+	/** Reset the count maintained by heat(). */
+	void cool() {
+		hotness = 0;
+	}
+	
 	/** Get the signature of this function. */
 	String getSignature() {
 		return (hasReturn() ? "value " : "") + getName() + "(" + parmSignature + ")";
 	}
 	
+	/** Note that this function has a return value, for a definition that has no AST. */
+	void setHasReturn() {
+		returnsValue = true;
+	}
+	
 	/** True if this function has a return value. */
 	boolean hasReturn() {
-		return (ASTFunctionReturnExpression != null);
+		return returnsValue;
 	}
 	
 	/** Comparison operator.  Functions of the same name are the same. */
@@ -112,6 +180,14 @@ class FunctionDefinition implements Comparable<Object>, Serializable {
 		return slot.intValue();
 	}
 	
+	/** Get the names of the variables and parameters, in slot order. */
+	String[] getVariableNames() {
+		String[] names = new String[slots.size()];
+		for (Map.Entry<String, Integer> slot: slots.entrySet())
+			names[slot.getValue().intValue()] = slot.getKey();
+		return names;
+	}
+	
 	/** Define a variable.  Return its slot number. */
 	int defineVariable(String name) {
 		Integer slot = slots.get(name);
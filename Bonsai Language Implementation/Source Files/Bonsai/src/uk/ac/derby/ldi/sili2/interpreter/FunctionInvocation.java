@@ -1,6 +1,6 @@
 package uk.ac.derby.ldi.sili2.interpreter;
 
-import java.util.Vector;
+import java.util.Arrays;
 
 import uk.ac.derby.ldi.sili2.values.Value;
 
@@ -9,18 +9,36 @@ class FunctionInvocation {
 
 	private FunctionDefinition function;
 	private int argumentCount = 0;
-	private Vector<Value> slots;
-	
-	private final void setSlot(int n, Value v) {
-		if (n >= slots.size())
-			slots.setSize(n + 1);
-		slots.set(n, v);
-	}
+	private Value[] slots;
 	
 	/** Ctor for user-defined function. */
 	FunctionInvocation(FunctionDefinition fndef) {
 		function = fndef;
-		slots = new Vector<Value>(function.getLocalCount());
+		slots = new Value[function.getLocalCount()];
+	}
+	
+	/** Reuse this context for an invocation of a given function.  Used by FramePool. */
+	void reset(FunctionDefinition fndef) {
+		function = fndef;
+		argumentCount = 0;
+		if (slots.length < function.getLocalCount())
+			slots = new Value[function.getLocalCount()];
+	}
+	
+	/** Make room for variables defined in the function since this context was created. */
+	void grow() {
+		if (slots.length < function.getLocalCount())
+			slots = Arrays.copyOf(slots, function.getLocalCount());
+	}
+	
+	/** Drop the values held by this context, so a pooled context doesn't keep them alive. */
+	void clear() {
+		Arrays.fill(slots, null);
+	}
+	
+	/** Get the associated function definition. */
+	FunctionDefinition getFunctionDefinition() {
+		return function;
 	}
 	
 	/** Get the level of the associated function. */
@@ -33,7 +51,7 @@ class FunctionInvocation {
 		if (argumentCount >= function.getParameterCount())
 			throw new ExceptionSemantic("Function " + function.getSignature() + " expected " + function.getParameterCount() + " arguments but got " + (argumentCount + 1) + ".");
 		// First slots are always arguments
-		setSlot(argumentCount++, v);
+		slots[argumentCount++] = v;
 	}
 	
 	/** Check argument count. */
@@ -42,42 +60,19 @@ class FunctionInvocation {
 			throw new ExceptionSemantic("Function " + function.getSignature() + " expected " + function.getParameterCount() + " arguments but got " + (argumentCount + 1) + ".");		
 	}
 	
-	/** Execute this invocation. */
-	Value execute(Parser parser) {
-		parser.doChildren(function.getFunctionBody(), null);
-		if (function.hasReturn())
-			return parser.doChild(function.getFunctionReturnExpression(), 0);
-		return null;
-	}
-
-	/** Get the slot number of a given variable or parameter name.  Return -1 if not found. */
-	int findSlotNumber(String name) {
-		return function.getLocalSlotNumber(name);
+	/** Get the argument values. */
+	Value[] getArguments() {
+		return Arrays.copyOf(slots, argumentCount);
 	}
 	
 	/** Get a variable or parameter value given a slot number. */
 	Value getValue(int slotNumber) {
-		return slots.get(slotNumber);
+		return slots[slotNumber];
 	}
 
 	/** Given a slot number, set its value. */
 	void setValue(int slotNumber, Value value) {
-		setSlot(slotNumber, value);
-	}
-
-	/** Define a variable in the function definition.  Return its slot number. */
-	int defineVariable(String name) {
-		return function.defineVariable(name);
-	}
-	
-	/** Add a function definition. */
-	void addFunction(FunctionDefinition definition) {
-		function.addFunction(definition);
-	}
-	
-	/** Find a function definition.  Return null if it doesn't exist. */
-	FunctionDefinition findFunction(String name) {
-		return function.findFunction(name);
+		slots[slotNumber] = value;
 	}
 	
 }
@@ -1,37 +1,258 @@
 package uk.ac.derby.ldi.sili2.interpreter;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Map;
+
+import javax.lang.model.SourceVersion;
+
 import uk.ac.derby.ldi.sili2.parser.ast.ASTCode;
+import uk.ac.derby.ldi.sili2.parser.ast.ParseException;
 import uk.ac.derby.ldi.sili2.parser.ast.Sili;
 import uk.ac.derby.ldi.sili2.parser.ast.SiliVisitor;
 
 public class Interpreter {
-	
+
+	private static final int defaultThreshold = 10000;
+	private static final int defaultStack = 256;
+
 	private static void usage() {
-		System.out.println("Usage: sili [-d1] < <source>");
+		System.out.println("Usage: sili [-d1] [-O] [-vm] [-stream] [-flat] [-jit] [-jitthreshold <n>] [-jittrace] [-jitwait] [-specstats] [-memo <entries>] [-memostats] [-branchstats] [-stack <megabytes>] [-flush line|full] [-cache <directory>] [-clearcache] [--compile <classname>] [<source file>]");
 		System.out.println("          -d1 -- output AST");
+		System.out.println("          -O -- fold constant expressions and remove branches that never run");
+		System.out.println("          -vm -- compile to bytecode and run on the virtual machine");
+		System.out.println("          -stream -- run each top-level statement as soon as it is parsed, without -vm");
+		System.out.println("          -flat -- parse the whole program into a compact form, then run it a top-level statement at a time, without -vm");
+		System.out.println("          -jit -- compile hot functions to the JVM while the program runs");
+		System.out.println("          -jitthreshold <n> -- invocations and loop iterations before a function is hot (default " + defaultThreshold + ")");
+		System.out.println("          -jittrace -- report functions being compiled");
+		System.out.println("          -jitwait -- compile a hot function before going on, instead of in the background");
+		System.out.println("          -specstats -- report type specialisation of arithmetic and comparisons");
+		System.out.println("          -memo <entries> -- remember up to <entries> results of pure functions");
+		System.out.println("          -memostats -- report memoisation hits, misses and evictions");
+		System.out.println("          -branchstats -- report how often each conditional went each way");
+		System.out.println("          -stack <megabytes> -- memory for nested function calls (default " + defaultStack + ")");
+		System.out.println("          -flush line|full -- write output after every line, or only when 64 KB is waiting and when the program ends (default line if the program has a console, else full)");
+		System.out.println("          -cache <directory> -- with -vm, read the whole source first, and keep its compiled program in <directory> to run when the source is the same");
+		System.out.println("          -clearcache -- delete the compiled programs kept in the -cache directory");
+		System.out.println("          --compile <classname> -- compile to <classname>.class in the current directory");
+		System.out.println("          <source file> -- read the program from <source file>, mapped into memory, instead of standard input");
+	}
+
+	// Compile a program to class files in the current directory
+	private static void compile(ASTCode program, String className) throws IOException {
+		String source = new JavaGenerator(className).generate(program, stackSize);
+		Map<String, byte[]> classFiles = new JavaClassCompiler().compile(className, source);
+		for (Map.Entry<String, byte[]> classFile: classFiles.entrySet()) {
+			FileOutputStream out = new FileOutputStream(classFile.getKey() + ".class");
+			try {
+				out.write(classFile.getValue());
+			} finally {
+				out.close();
+			}
+		}
+	}
+
+	// Report specialisation counters on standard error when the program ends, including by EXIT
+	private static void reportSpecialisation(final Specialiser specialiser) {
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			public void run() {
+				System.err.println("Specialised nodes: " + specialiser.getSpecialisedCount()
+					+ ", deoptimised: " + specialiser.getDeoptimisedCount()
+					+ ", generic from the start: " + specialiser.getGenericCount());
+			}
+		});
+	}
+
+	// Report memoisation counters on standard error when the program ends, including by EXIT
+	private static void reportMemoisation(final Memoiser memoiser) {
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			public void run() {
+				System.err.println("Memoised calls: " + memoiser.getHitCount()
+					+ ", executed: " + memoiser.getMissCount()
+					+ ", results evicted: " + memoiser.getEvictionCount());
+			}
+		});
+	}
+
+	// Report branch counts on standard error when the program ends, including by EXIT
+	private static void reportBranches(final BranchProfile branches) {
+		branches.enableReport();
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			public void run() {
+				branches.report(System.err);
+			}
+		});
+	}
+
+	/** Get the default size of the stack for nested function calls, in bytes. */
+	static long getDefaultStackSize() {
+		return (long)defaultStack << 20;
+	}
+
+	/** Get the message for recursion that needs more than a given stack size, in bytes. */
+	static String getRecursionMessage(long stackSize) {
+		return "Recursion is too deep for a stack of " + (stackSize >> 20) + " megabytes.";
+	}
+
+	// Options from the command line
+	private static boolean debugAST = false;
+	private static boolean optimise = false;
+	private static boolean useVM = false;
+	private static boolean streaming = false;
+	private static boolean flat = false;
+	private static String className = null;
+	private static boolean useTiers = false;
+	private static int threshold = defaultThreshold;
+	private static boolean traceTiers = false;
+	private static boolean waitForTiers = false;
+	private static boolean specialisationStatistics = false;
+	private static int memoCapacity = 0;
+	private static boolean memoStatistics = false;
+	private static boolean branchStatistics = false;
+	private static long stackSize = getDefaultStackSize();
+	private static File cacheDirectory = null;
+	private static boolean clearCache = false;
+	private static File sourceFile = null;
+
+	// Return a parser for the source file, or standard input if there isn't one
+	private static Sili getParser() throws IOException {
+		return (sourceFile != null) ? MappedCharStream.parser(sourceFile) : new Sili(System.in);
+	}
+
+	// Parse and run the program
+	private static void run() throws ParseException, IOException {
+		Memoiser memoiser = (memoCapacity > 0) ? new Memoiser(memoCapacity) : null;
+		if (memoiser != null && memoStatistics)
+			reportMemoisation(memoiser);
+		if (useVM && !debugAST && className == null && cacheDirectory != null) {
+			// The source is read whole, since the cache finds a program by its hash
+			String source = new String((sourceFile != null) ? Files.readAllBytes(sourceFile.toPath()) : System.in.readAllBytes());
+			new VirtualMachine(stackSize, memoiser).execute(new DiskCache(cacheDirectory).get(source, optimise));
+			return;
+		}
+		if (streaming && !useVM && !debugAST && className == null) {
+			stream(memoiser);
+			return;
+		}
+		if (flat && !useVM && className == null) {
+			runFlat(memoiser);
+			return;
+		}
+		ASTCode parser = getParser().code();
+		if (optimise)
+			new Optimiser().optimise(parser);
+		if (className != null && !debugAST) {
+			compile(parser, className);
+			return;
+		}
+		if (useVM && !debugAST) {
+			new VirtualMachine(stackSize, memoiser).execute(new VMCompiler().compile(parser));
+			return;
+		}
+		SiliVisitor nodeVisitor;
+		if (debugAST)
+			nodeVisitor = new ParserDebugger();
+		else
+			nodeVisitor = createInterpreter(memoiser);
+		parser.jjtAccept(nodeVisitor, null);
+	}
+
+	// Get a tree-walking interpreter with the options from the command line
+	private static Parser createInterpreter(Memoiser memoiser) {
+		Parser interpreter = new Parser();
+		if (useTiers)
+			interpreter.enableTiers(threshold, traceTiers, waitForTiers);
+		if (memoiser != null)
+			interpreter.enableMemoisation(memoiser);
+		if (specialisationStatistics)
+			reportSpecialisation(interpreter.getSpecialiser());
+		if (branchStatistics)
+			reportBranches(interpreter.getBranchProfile());
+		return interpreter;
+	}
+
+	// Run the program one top-level statement at a time
+	private static void stream(Memoiser memoiser) throws ParseException, IOException {
+		createInterpreter(memoiser).execute(getParser(), optimise);
 	}
-	
+
+	// Parse the whole program into a FlatTree, then dump it, or run it a top-level statement at a time
+	private static void runFlat(Memoiser memoiser) throws ParseException, IOException {
+		FlatTree program = FlatTree.read(getParser(), optimise);
+		if (debugAST)
+			new ParserDebugger().dump(program);
+		else
+			createInterpreter(memoiser).execute(program);
+	}
+
 	public static void main(String args[]) {
-		boolean debugAST = false;
-		if (args.length == 1) {
-			if (args[0].equals("-d1"))
+		for (int i=0; i<args.length; i++) {
+			String arg = args[i];
+			if (arg.equals("-d1"))
 				debugAST = true;
+			else if (arg.equals("-O"))
+				optimise = true;
+			else if (arg.equals("-vm"))
+				useVM = true;
+			else if (arg.equals("-stream"))
+				streaming = true;
+			else if (arg.equals("-flat"))
+				flat = true;
+			else if (arg.equals("-jit"))
+				useTiers = true;
+			else if (arg.equals("-jitthreshold") && i + 1 < args.length && args[i + 1].matches("[1-9][0-9]{0,8}"))
+				threshold = Integer.parseInt(args[++i]);
+			else if (arg.equals("-jittrace"))
+				traceTiers = true;
+			else if (arg.equals("-jitwait"))
+				waitForTiers = true;
+			else if (arg.equals("-specstats"))
+				specialisationStatistics = true;
+			else if (arg.equals("-memo") && i + 1 < args.length && args[i + 1].matches("[1-9][0-9]{0,8}"))
+				memoCapacity = Integer.parseInt(args[++i]);
+			else if (arg.equals("-memostats"))
+				memoStatistics = true;
+			else if (arg.equals("-branchstats"))
+				branchStatistics = true;
+			else if (arg.equals("-stack") && i + 1 < args.length && args[i + 1].matches("[1-9][0-9]{0,5}"))
+				stackSize = Long.parseLong(args[++i]) << 20;
+			else if (arg.equals("-flush") && i + 1 < args.length && (args[i + 1].equals("line") || args[i + 1].equals("full")))
+				OutputSink.setStandardFlushLines(args[++i].equals("line"));
+			else if (arg.equals("-cache") && i + 1 < args.length)
+				cacheDirectory = new File(args[++i]);
+			else if (arg.equals("-clearcache"))
+				clearCache = true;
+			else if (arg.equals("--compile") && i + 1 < args.length && SourceVersion.isName(args[i + 1]) && args[i + 1].indexOf('.') < 0)
+				className = args[++i];
+			else if (sourceFile == null && !arg.startsWith("-"))
+				sourceFile = new File(arg);
 			else {
 				usage();
 				return;
 			}
 		}
-		Sili language = new Sili(System.in);
-		try {
-			ASTCode parser = language.code();
-			SiliVisitor nodeVisitor;
-			if (debugAST)
-				nodeVisitor = new ParserDebugger();
-			else
-				nodeVisitor = new Parser();
-			parser.jjtAccept(nodeVisitor, null);
-		} catch (Throwable e) {
-			System.out.println(e.getMessage());
+		if (clearCache && cacheDirectory == null) {
+			usage();
+			return;
 		}
+		if (sourceFile != null && !sourceFile.isFile()) {
+			System.err.println("Cannot read " + sourceFile);
+			return;
+		}
+		if (clearCache)
+			System.err.println("Deleted " + new DiskCache(cacheDirectory).clear() + " compiled programs from " + cacheDirectory);
+		// The tree-walking interpreter recurses on the Java stack, so it runs on a thread whose stack is the size asked for
+		CompiledRuntime.run(new Runnable() {
+			public void run() {
+				try {
+					Interpreter.run();
+				} catch (ParseException | IOException e) {
+					throw new ExceptionSemantic(e.getMessage());
+				}
+			}
+		}, stackSize);
 	}
 }
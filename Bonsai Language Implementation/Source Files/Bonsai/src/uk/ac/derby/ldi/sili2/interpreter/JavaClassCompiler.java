@@ -0,0 +1,79 @@
+package uk.ac.derby.ldi.sili2.interpreter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+/** Compiles Java source, such as that produced by JavaGenerator, to class files in memory. */
+class JavaClassCompiler {
+
+	// Java source held in memory
+	private static class Source extends SimpleJavaFileObject {
+		private String text;
+
+		Source(String className, String text) {
+			super(URI.create("string:///" + className.replace('.', '/') + Kind.SOURCE.extension), Kind.SOURCE);
+			this.text = text;
+		}
+
+		public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+			return text;
+		}
+	}
+
+	// A class file held in memory
+	private static class ClassFile extends SimpleJavaFileObject {
+		private ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+		ClassFile(String className) {
+			super(URI.create("bytes:///" + className.replace('.', '/') + Kind.CLASS.extension), Kind.CLASS);
+		}
+
+		public OutputStream openOutputStream() {
+			return bytes;
+		}
+	}
+
+	/** Compile a class.  Return the class files it produces, by class name. */
+	Map<String, byte[]> compile(String className, String source) {
+		JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+		if (compiler == null)
+			throw new ExceptionSemantic("No Java compiler is available.  Run Sili on a JDK rather than a JRE.");
+		final HashMap<String, ClassFile> classFiles = new HashMap<String, ClassFile>();
+		StandardJavaFileManager standard = compiler.getStandardFileManager(null, null, null);
+		JavaFileManager manager = new ForwardingJavaFileManager<StandardJavaFileManager>(standard) {
+			public JavaFileObject getJavaFileForOutput(Location location, String name, JavaFileObject.Kind kind, FileObject sibling) {
+				ClassFile classFile = new ClassFile(name);
+				classFiles.put(name, classFile);
+				return classFile;
+			}
+		};
+		ArrayList<String> options = new ArrayList<String>();
+		options.add("-classpath");
+		options.add(System.getProperty("java.class.path"));
+		options.add("-g:none");
+		StringWriter diagnostics = new StringWriter();
+		boolean success = compiler.getTask(diagnostics, manager, null, options, null, Collections.singletonList(new Source(className, source))).call();
+		if (!success)
+			throw new ExceptionSemantic("Compilation of " + className + " failed:\n" + diagnostics);
+		HashMap<String, byte[]> result = new HashMap<String, byte[]>();
+		for (Map.Entry<String, ClassFile> entry: classFiles.entrySet())
+			result.put(entry.getKey(), entry.getValue().bytes.toByteArray());
+		return result;
+	}
+
+}
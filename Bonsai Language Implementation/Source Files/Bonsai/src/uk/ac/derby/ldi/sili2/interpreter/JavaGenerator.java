@@ -0,0 +1,612 @@
+package uk.ac.derby.ldi.sili2.interpreter;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+
+import uk.ac.derby.ldi.sili2.parser.ast.*;
+
+/** Translates a Sili program into the Java source of a class with a main method.
+ *
+ * Each Sili function becomes a static method.  Variables of the main program become
+ * static fields, and variables of functions become Java locals, except for those used
+ * by nested functions.  Those live in a frame array that is installed in a display,
+ * exactly as Display does for the Parser.  Scopes are resolved by Resolver.
+ */
+class JavaGenerator implements SiliVisitor {
+
+	// Top-level statements per generated method, to stay clear of the JVM's method size limit
+	private static final int statementsPerMethod = 100;
+
+	String className;
+	private Resolver resolver;
+
+	// Java names of generated functions
+	IdentityHashMap<FunctionDefinition, String> methodNames = new IdentityHashMap<FunctionDefinition, String>();
+
+	// Static field declarations and initialisers
+	StringBuilder fields = new StringBuilder();
+	private int literalCount = 0;
+
+	// Generated methods
+	StringBuilder methods = new StringBuilder();
+
+	// The method being generated, and the number of temporaries it declares
+	private StringBuilder out;
+	private int indent;
+	private int temporaries;
+	FunctionDefinition function;
+
+	/** Ctor */
+	JavaGenerator(String className) {
+		this.className = className;
+	}
+
+	/** Generate a class for the given program, which runs with a Java stack of the given size
+	 * in bytes.  Return its source.
+	 */
+	String generate(ASTCode program, long stackSize) {
+		resolver = new Resolver(program);
+		resolver.checkReferences();
+		function = resolver.getMain();
+		for (int i=0; i<function.getLocalCount(); i++)
+			fields.append("\tprivate static Value g" + i + ";\n");
+		fields.append("\tprivate static final Value[][] display = new Value[64][];\n");
+		StringBuilder main = new StringBuilder();
+		int chunk = 0;
+		for (int i=0; i<program.jjtGetNumChildren(); i += statementsPerMethod, chunk++) {
+			main.append("\t\tmain" + chunk + "();\n");
+			beginMethod("private static void main" + chunk + "()");
+			for (int j=i; j<Math.min(i + statementsPerMethod, program.jjtGetNumChildren()); j++)
+				statement(program, j);
+			endMethod();
+		}
+		StringBuilder source = new StringBuilder();
+		source.append("import uk.ac.derby.ldi.sili2.values.*;\n");
+		source.append("import static uk.ac.derby.ldi.sili2.interpreter.CompiledRuntime.*;\n\n");
+		source.append("/** Compiled Sili program. */\n");
+		source.append("public class " + className + " {\n\n");
+		source.append(fields);
+		source.append("\n\tpublic static void main(String[] args) {\n");
+		source.append("\t\trun(" + className + "::program, " + stackSize + "L);\n");
+		source.append("\t}\n");
+		source.append("\n\tprivate static void program() {\n");
+		source.append(main);
+		source.append("\t}\n");
+		source.append(methods);
+		source.append("\n}\n");
+		return source.toString();
+	}
+
+	// Start a new method
+	void beginMethod(String header) {
+		out = new StringBuilder();
+		out.append("\n\t" + header + " {\n");
+		indent = 2;
+		temporaries = 0;
+	}
+
+	// Finish the current method, declaring its temporaries after the header
+	void endMethod() {
+		out.append("\t}\n");
+		if (temporaries > 0) {
+			StringBuilder declaration = new StringBuilder("\t\tValue t0");
+			for (int i=1; i<temporaries; i++)
+				declaration.append(", t" + i);
+			out.insert(out.indexOf("{\n") + 2, declaration.append(";\n"));
+		}
+		methods.append(out);
+	}
+
+	// Return the name of a new temporary of the current method
+	private String temporary() {
+		return "t" + temporaries++;
+	}
+
+	// Emit a line of the current method
+	void line(String text) {
+		for (int i=0; i<indent; i++)
+			out.append('\t');
+		out.append(text);
+		out.append('\n');
+	}
+
+	/** Return a Java string literal for a given string. */
+	static String quote(String s) {
+		StringBuilder sb = new StringBuilder("\"");
+		for (int i=0; i<s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '"' || c == '\\')
+				sb.append('\\').append(c);
+			else if (c >= ' ' && c < 127)
+				sb.append(c);
+			else
+				sb.append(String.format("\\u%04x", (int)c));
+		}
+		return sb.append('"').toString();
+	}
+
+	// Declare a static literal.  Return its name.
+	String literal(String initialiser) {
+		String name = "L" + literalCount++;
+		fields.append("\tprivate static final Value " + name + " = " + initialiser + ";\n");
+		return name;
+	}
+
+	// Get the ith child of a given node.
+	static SimpleNode getChild(SimpleNode node, int childIndex) {
+		return (SimpleNode)node.jjtGetChild(childIndex);
+	}
+
+	// Get the token value of the ith child of a given node.
+	static String getTokenOfChild(SimpleNode node, int childIndex) {
+		return getChild(node, childIndex).tokenValue;
+	}
+
+	// Generate a statement
+	private void statement(SimpleNode node, int childIndex) {
+		node.jjtGetChild(childIndex).jjtAccept(this, null);
+	}
+
+	// Generate all child statements
+	private void statements(SimpleNode node) {
+		node.childrenAccept(this, null);
+	}
+
+	// Return an expression for the ith child
+	String expression(SimpleNode node, int childIndex) {
+		return (String)node.jjtGetChild(childIndex).jjtAccept(this, null);
+	}
+
+	// Return an expression for an AND or OR, which only evaluates the second child if the first,
+	// held in a temporary, doesn't decide the result
+	private String shortCircuit(SimpleNode node, String method, boolean decider) {
+		String left = temporary();
+		return "(decides(" + left + " = " + expression(node, 0) + ", " + decider + ") ? " + left + " : "
+			+ left + "." + method + "(" + expression(node, 1) + "))";
+	}
+
+	// Return an expression that applies a method of Value to the first child and, optionally, the second
+	private String apply(SimpleNode node, String method) {
+		String receiver = expression(node, 0);
+		if (node.jjtGetNumChildren() == 1)
+			return receiver + "." + method + "()";
+		return receiver + "." + method + "(" + expression(node, 1) + ")";
+	}
+
+	// Return the Java name of the method for a function
+	String methodName(FunctionDefinition definition) {
+		String name = methodNames.get(definition);
+		if (name == null) {
+			StringBuilder sb = new StringBuilder("f" + methodNames.size() + "_");
+			for (char c: definition.getName().toCharArray())
+				sb.append((c < 128 && Character.isLetterOrDigit(c)) ? c : '_');
+			name = sb.toString();
+			methodNames.put(definition, name);
+		}
+		return name;
+	}
+
+	// Return the Java name of a function's "defined" flag
+	private String definedFlag(FunctionDefinition definition) {
+		return "defined_" + methodName(definition);
+	}
+
+	// Return the Java lvalue for a variable
+	private String variable(SlotReference reference) {
+		if (reference.depth == 0)
+			return "g" + reference.slot;
+		if (reference.depth < function.getLevel())
+			return "display[" + reference.depth + "][" + reference.slot + "]";
+		if (isCaptured(function, reference.slot))
+			return "frame[" + reference.slot + "]";
+		return "l" + reference.slot;
+	}
+
+	// Return a Java expression for the value of the variable a node refers to, which is null if the
+	// variable has not been assigned.  Return null if the node's name was not resolved.
+	String load(SimpleNode node) {
+		SlotReference reference = resolver.getReference(node);
+		if (reference == null)
+			return null;
+		return variable(reference);
+	}
+
+	// Return a Java statement that assigns the variable a node refers to
+	String store(SimpleNode node, String value) {
+		return variable(resolver.getReference(node)) + " = " + value + ";";
+	}
+
+	// True if a variable of a function is kept in its frame, because a nested function uses it
+	boolean isCaptured(FunctionDefinition definition, int slot) {
+		return resolver.isCaptured(definition, slot);
+	}
+
+	// Return an argument list, or a call to fail() that evaluates the arguments first, as Parser does
+	String arguments(SimpleNode call, FunctionDefinition callee, String callExpression) {
+		SimpleNode arglist = getChild(call, 1);
+		int count = arglist.jjtGetNumChildren();
+		int expected = callee.getParameterCount();
+		StringBuilder sb = new StringBuilder();
+		if (count == expected) {
+			for (int i=0; i<count; i++)
+				sb.append((i > 0 ? ", " : "") + expression(arglist, i));
+			return callExpression + "(" + sb + ")";
+		}
+		// Parser stops at the first surplus argument, or after the last one if there are too few
+		int evaluated = (count > expected) ? expected + 1 : count;
+		for (int i=0; i<evaluated; i++)
+			sb.append(", " + expression(arglist, i));
+		int got = (count > expected) ? expected + 1 : count + 1;
+		String message = "Function " + callee.getSignature() + " expected " + expected + " arguments but got " + got + ".";
+		return "fail(" + quote(message) + sb + ")";
+	}
+
+	// Return an expression invoking a function
+	String invoke(SimpleNode node, boolean needsReturn) {
+		String fnname = getTokenOfChild(node, 0);
+		FunctionDefinition callee = resolver.getCallee(node);
+		String undefined = "fail(" + quote("Function " + fnname + " is undefined.") + ")";
+		if (callee == null)
+			return undefined;
+		String call;
+		if (needsReturn && !callee.hasReturn())
+			call = "fail(" + quote("Function " + fnname + " is being invoked in an expression but does not have a return value.") + ")";
+		else
+			call = arguments(node, callee, methodName(callee));
+		return "(" + definedFlag(callee) + " ? " + call + " : " + undefined + ")";
+	}
+
+	// Generate the method for a function
+	void generateFunction(FunctionDefinition definition) {
+		StringBuilder outerOut = out;
+		int outerIndent = indent;
+		int outerTemporaries = temporaries;
+		FunctionDefinition outerFunction = function;
+		function = definition;
+		int level = definition.getLevel();
+		StringBuilder header = new StringBuilder("private static Value " + methodName(definition) + "(");
+		for (int i=0; i<definition.getParameterCount(); i++)
+			header.append((i > 0 ? ", " : "") + "Value l" + i);
+		header.append(")");
+		beginMethod(header.toString());
+		line("// " + definition.getSignature().replace('\n', ' '));
+		boolean hasFrame = false;
+		for (int i=0; i<definition.getLocalCount(); i++)
+			if (isCaptured(definition, i))
+				hasFrame = true;
+		if (hasFrame) {
+			line("Value[] frame = new Value[" + definition.getLocalCount() + "];");
+			for (int i=0; i<definition.getParameterCount(); i++)
+				if (isCaptured(definition, i))
+					line("frame[" + i + "] = l" + i + ";");
+		}
+		for (int i=definition.getParameterCount(); i<definition.getLocalCount(); i++)
+			if (!isCaptured(definition, i))
+				line("Value l" + i + " = null;");
+		if (hasFrame) {
+			line("Value[] displaced = display[" + level + "];");
+			line("display[" + level + "] = frame;");
+			line("try {");
+			indent++;
+		}
+		definition.getFunctionBody().jjtAccept(this, null);
+		if (definition.hasReturn())
+			line("return " + definition.getFunctionReturnExpression().jjtAccept(this, null) + ";");
+		else
+			line("return null;");
+		if (hasFrame) {
+			indent--;
+			line("} finally {");
+			line("\tdisplay[" + level + "] = displaced;");
+			line("}");
+		}
+		endMethod();
+		out = outerOut;
+		indent = outerIndent;
+		temporaries = outerTemporaries;
+		function = outerFunction;
+	}
+
+	public Object visit(SimpleNode node, Object data) {
+		throw new ExceptionSemantic(node + ": compiler not implemented for this node.");
+	}
+
+	public Object visit(ASTCode node, Object data) {
+		statements(node);
+		return data;
+	}
+
+	public Object visit(ASTBlock node, Object data) {
+		line("{");
+		indent++;
+		statements(node);
+		indent--;
+		line("}");
+		return data;
+	}
+
+	// Function definition.  The function becomes a method; the definition itself just marks it as defined.
+	public Object visit(ASTFnDef node, Object data) {
+		FunctionDefinition definition = resolver.getDefinition(node);
+		FunctionDefinition existing = resolver.getDuplicate(node);
+		if (existing != null) {
+			line("if (" + definedFlag(existing) + ") fail(" + quote("Function " + definition.getName() + " already exists.") + ");");
+			return data;
+		}
+		fields.append("\tprivate static boolean " + definedFlag(definition) + ";\n");
+		line(definedFlag(definition) + " = true;");
+		generateFunction(definition);
+		return data;
+	}
+
+	public Object visit(ASTParmlist node, Object data) {
+		return data;
+	}
+
+	public Object visit(ASTFnBody node, Object data) {
+		statements(node);
+		return data;
+	}
+
+	public Object visit(ASTReturnExpression node, Object data) {
+		return expression(node, 0);
+	}
+
+	// Function call
+	public Object visit(ASTCall node, Object data) {
+		String call = invoke(node, false);
+		line("discard(" + call + ");");
+		return data;
+	}
+
+	// Function invocation in an expression
+	public Object visit(ASTFnInvoke node, Object data) {
+		return invoke(node, true);
+	}
+
+	public Object visit(ASTArgList node, Object data) {
+		return data;
+	}
+
+	// IF
+	// The ELSE comes first if the Parser has run it more often
+	public Object visit(ASTIfStatement node, Object data) {
+		String test = "test(" + expression(node, 0) + ", \"The test expression of an if statement must be boolean.\")";
+		BranchProfile.Branch branch = BranchProfile.getBranch(node);
+		boolean elseFirst = node.hasElse() && branch != null && branch.isUnlikely();
+		line(elseFirst ? "if (!" + test + ") {" : "if (" + test + ") {");
+		indent++;
+		statement(node, elseFirst ? 2 : 1);
+		indent--;
+		if (node.hasElse()) {
+			line("} else {");
+			indent++;
+			statement(node, elseFirst ? 1 : 2);
+			indent--;
+		}
+		line("}");
+		return data;
+	}
+
+	// FOR
+	public Object visit(ASTForLoop node, Object data) {
+		statement(node, 0);
+		line("while (test(" + expression(node, 1) + ", \"The test expression of a for loop must be boolean.\")) {");
+		indent++;
+		statement(node, 3);
+		statement(node, 2);
+		indent--;
+		line("}");
+		return data;
+	}
+
+	public Object visit(ASTIdentifier node, Object data) {
+		return data;
+	}
+
+	// Dereference a variable or parameter
+	public Object visit(ASTDereference node, Object data) {
+		String variable = load(node);
+		if (variable == null)
+			return "fail(" + quote("Variable or parameter " + node.tokenValue + " is undefined.") + ")";
+		return "get(" + variable + ", " + quote(node.tokenValue) + ")";
+	}
+
+	// Assignment
+	public Object visit(ASTAssignment node, Object data) {
+		line(store(node, expression(node, 1)));
+		return data;
+	}
+
+	public Object visit(ASTOr node, Object data) {
+		return shortCircuit(node, "or", true);
+	}
+
+	public Object visit(ASTAnd node, Object data) {
+		return shortCircuit(node, "and", false);
+	}
+
+	public Object visit(ASTCompEqual node, Object data) {
+		return apply(node, "eq");
+	}
+
+	public Object visit(ASTCompNequal node, Object data) {
+		return apply(node, "neq");
+	}
+
+	public Object visit(ASTCompGTE node, Object data) {
+		return apply(node, "gte");
+	}
+
+	public Object visit(ASTCompLTE node, Object data) {
+		return apply(node, "lte");
+	}
+
+	public Object visit(ASTCompGT node, Object data) {
+		return apply(node, "gt");
+	}
+
+	public Object visit(ASTCompLT node, Object data) {
+		return apply(node, "lt");
+	}
+
+	public Object visit(ASTAdd node, Object data) {
+		return apply(node, "add");
+	}
+
+	public Object visit(ASTSubtract node, Object data) {
+		return apply(node, "subtract");
+	}
+
+	public Object visit(ASTTimes node, Object data) {
+		return apply(node, "mult");
+	}
+
+	public Object visit(ASTDivide node, Object data) {
+		return apply(node, "div");
+	}
+
+	public Object visit(ASTUnaryNot node, Object data) {
+		return apply(node, "not");
+	}
+
+	public Object visit(ASTUnaryPlus node, Object data) {
+		return apply(node, "unary_plus");
+	}
+
+	public Object visit(ASTUnaryMinus node, Object data) {
+		return apply(node, "unary_minus");
+	}
+
+	public Object visit(ASTCharacter node, Object data) {
+		return literal("ValueString.stripDelimited(" + quote(node.tokenValue) + ")");
+	}
+
+	public Object visit(ASTInteger node, Object data) {
+		try {
+			Long.parseLong(node.tokenValue);
+		} catch (NumberFormatException e) {
+			// Fail at run-time, as Parser does
+			return "new ValueInteger(Long.parseLong(" + quote(node.tokenValue) + "))";
+		}
+		return literal("new ValueInteger(Long.parseLong(" + quote(node.tokenValue) + "))");
+	}
+
+	public Object visit(ASTRational node, Object data) {
+		return literal("new ValueRational(Double.parseDouble(" + quote(node.tokenValue) + "))");
+	}
+
+	public Object visit(ASTTrue node, Object data) {
+		return literal("ValueBoolean.TRUE");
+	}
+
+	public Object visit(ASTFalse node, Object data) {
+		return literal("ValueBoolean.FALSE");
+	}
+
+	// WHILE
+	public Object visit(ASTWhileLoop node, Object data) {
+		line("while (test(" + expression(node, 0) + ", \"While loop expects boolean condition.\")) {");
+		indent++;
+		statement(node, 1);
+		indent--;
+		line("}");
+		return data;
+	}
+
+	// Array definition
+	public Object visit(ASTArrayDefine node, Object data) {
+		line("arrayUndefined(" + load(node) + ", " + quote(getTokenOfChild(node, 0)) + ");");
+		StringBuilder elements = new StringBuilder();
+		SimpleNode parameters = getChild(node, 1);
+		for (int i=0; i<parameters.jjtGetNumChildren(); i++)
+			elements.append((i > 0 ? ", " : "") + expression(parameters, i));
+		line(store(node, "new ValueArray(new Value[] {" + elements + "})"));
+		return data;
+	}
+
+	public Object visit(ASTArrayParamList node, Object data) {
+		return data;
+	}
+
+	// Return a Java expression for the array an array assignment or invocation refers to
+	private String array(SimpleNode node) {
+		String variable = load(node);
+		String identifier = quote(getTokenOfChild(node, 0));
+		if (variable == null)
+			return "array(null, " + identifier + ")";
+		return "array(" + variable + ", " + identifier + ")";
+	}
+
+	// Array assignment
+	public Object visit(ASTArrayAssignment node, Object data) {
+		String array = array(node);
+		line("arraySet(" + array + ", index(" + array + ", " + expression(node, 1) + "), " + expression(node, 2) + ");");
+		return data;
+	}
+
+	// Array invocation
+	public Object visit(ASTArrayInvoke node, Object data) {
+		String array = array(node);
+		return array + ".get(index(" + array + ", " + expression(node, 1) + "))";
+	}
+
+	// PRINT
+	public Object visit(ASTPrint node, Object data) {
+		line("print(" + expression(node, 0) + ");");
+		return data;
+	}
+
+	public Object visit(ASTExit node, Object data) {
+		line("exit();");
+		return data;
+	}
+
+	public Object visit(ASTSquareRoot node, Object data) {
+		return apply(node, "sqrt");
+	}
+
+	public Object visit(ASTCeil node, Object data) {
+		return apply(node, "ceil");
+	}
+
+	public Object visit(ASTFloor node, Object data) {
+		return apply(node, "floor");
+	}
+
+	public Object visit(ASTAbsoluteValue node, Object data) {
+		return apply(node, "abs");
+	}
+
+	public Object visit(ASTFactorial node, Object data) {
+		return apply(node, "factorial");
+	}
+
+	public Object visit(ASTPower node, Object data) {
+		return apply(node, "power");
+	}
+
+	public Object visit(ASTSine node, Object data) {
+		return apply(node, "sine");
+	}
+
+	public Object visit(ASTCosine node, Object data) {
+		return apply(node, "cosine");
+	}
+
+	public Object visit(ASTTangent node, Object data) {
+		return apply(node, "tangent");
+	}
+
+	public Object visit(ASTDegrees node, Object data) {
+		return apply(node, "degrees");
+	}
+
+	public Object visit(ASTRadians node, Object data) {
+		return apply(node, "radians");
+	}
+
+	public Object visit(ASTPi node, Object data) {
+		return literal("new ValueRational(0).pi()");
+	}
+}
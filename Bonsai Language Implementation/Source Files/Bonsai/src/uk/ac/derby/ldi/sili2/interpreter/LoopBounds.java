@@ -0,0 +1,165 @@
+package uk.ac.derby.ldi.sili2.interpreter;
+
+import java.util.ArrayList;
+
+import uk.ac.derby.ldi.sili2.parser.ast.*;
+import uk.ac.derby.ldi.sili2.values.*;
+
+/** Bounds check elimination for the Parser.
+ *
+ * Finds counted loops of the form
+ *
+ *     for (i = start; i < limit; i = i + 1) ... a[i] ...
+ *
+ * where limit is a variable or an integer literal, and the body assigns neither i, limit
+ * nor a.  When such a loop starts, one check that start is a non-negative integer, and
+ * that every such array a has at least limit elements, proves that every a[i] in the body
+ * is in range.  The accesses then skip their own checks.
+ *
+ * A call in the body could assign any variable a called function can see, so a loop whose
+ * body makes calls only qualifies if all its variables are local to a function and not
+ * used by functions nested in it.
+ */
+class LoopBounds {
+
+	/** The check made when a loop starts, and whether it passed for the current execution. */
+	static final class Guard {
+		private final Display.Reference index;
+		private final SimpleNode limit;
+		private final ArrayList<Display.Reference> arrays = new ArrayList<Display.Reference>();
+		boolean proven = false;
+
+		private Guard(Display.Reference index, SimpleNode limit) {
+			this.index = index;
+			this.limit = limit;
+		}
+
+		/** True if the array accesses of the loop are in range for every iteration. */
+		boolean check() {
+			Value start = index.getValue();
+			Value end = (limit instanceof ASTInteger) ? (Value)limit.optimised : ((Display.Reference)limit.optimised).getValue();
+			if (!(start instanceof ValueInteger) || start.longValue() < 0 || !(end instanceof ValueInteger))
+				return false;
+			for (Display.Reference reference: arrays) {
+				Value array = reference.getValue();
+				if (!(array instanceof ValueArray) || ((ValueArray)array).size() < end.longValue())
+					return false;
+			}
+			return true;
+		}
+	}
+
+	/** An array access covered by a Guard.  It replaces the Display.Reference in the node's optimised slot. */
+	static final class Access {
+		final Display.Reference array;
+		final Guard guard;
+
+		private Access(Display.Reference array, Guard guard) {
+			this.array = array;
+			this.guard = guard;
+		}
+	}
+
+	private Resolver resolver;
+
+	/** Ctor */
+	LoopBounds(Resolver resolver) {
+		this.resolver = resolver;
+	}
+
+	/** Get the array referenced by an ASTArrayAssignment or ASTArrayInvoke the Parser has bound. */
+	static Display.Reference getReference(SimpleNode node) {
+		if (node.optimised instanceof Access)
+			return ((Access)node.optimised).array;
+		return (Display.Reference)node.optimised;
+	}
+
+	/** Find the loops in a program, or a top-level statement, the Parser has bound, and guard them. */
+	void apply(SimpleNode program) {
+		apply(resolver.getMain(), program);
+	}
+
+	// Find the loops in a function body
+	private void apply(FunctionDefinition definition, SimpleNode node) {
+		if (node instanceof ASTFnDef) {
+			FunctionDefinition inner = resolver.getDefinition((ASTFnDef)node);
+			apply(inner, inner.getFunctionBody());
+			if (inner.hasReturn())
+				apply(inner, inner.getFunctionReturnExpression());
+			return;
+		}
+		if (node instanceof ASTForLoop)
+			guard(definition, (ASTForLoop)node);
+		for (int i=0; i<node.jjtGetNumChildren(); i++)
+			apply(definition, getChild(node, i));
+	}
+
+	// Guard a loop if it has the right form
+	private void guard(FunctionDefinition definition, ASTForLoop node) {
+		SimpleNode initialise = getChild(node, 0);
+		SimpleNode test = getChild(node, 1);
+		SimpleNode increment = getChild(node, 2);
+		SimpleNode body = getChild(node, 3);
+		String index = getChild(initialise, 0).tokenValue;
+		if (!(test instanceof ASTCompLT) || !isVariable(getChild(test, 0), index))
+			return;
+		SimpleNode limit = getChild(test, 1);
+		if (!(limit instanceof ASTDereference) && !(limit instanceof ASTInteger))
+			return;
+		if (limit instanceof ASTInteger) {
+			try {
+				limit.optimised = ValueInteger.valueOf(Long.parseLong(limit.tokenValue));
+			} catch (NumberFormatException e) {
+				return;
+			}
+		} else if (limit.optimised == null || limit.tokenValue.equals(index))
+			return;
+		SimpleNode step = getChild(increment, 1);
+		if (!getChild(increment, 0).tokenValue.equals(index) || !(step instanceof ASTAdd)
+				|| !isVariable(getChild(step, 0), index) || !(getChild(step, 1) instanceof ASTInteger)
+				|| !getChild(step, 1).tokenValue.equals("1"))
+			return;
+		ArrayList<String> assigned = new ArrayList<String>();
+		ArrayList<SimpleNode> accesses = new ArrayList<SimpleNode>();
+		boolean calls = scan(body, index, assigned, accesses);
+		if (assigned.contains(index) || (limit instanceof ASTDereference && assigned.contains(limit.tokenValue)))
+			return;
+		if (calls && (!resolver.isPrivate(definition, initialise) || (limit instanceof ASTDereference && !resolver.isPrivate(definition, limit))))
+			return;
+		Guard guard = new Guard((Display.Reference)initialise.optimised, limit);
+		for (SimpleNode access: accesses) {
+			if (assigned.contains(getChild(access, 0).tokenValue) || access.optimised == null || (calls && !resolver.isPrivate(definition, access)))
+				continue;
+			Display.Reference array = getReference(access);
+			guard.arrays.add(array);
+			access.optimised = new Access(array, guard);
+		}
+		if (!guard.arrays.isEmpty())
+			node.optimised = guard;
+	}
+
+	// Collect the variables a loop body assigns, and its accesses of the form a[index].  Return true if it makes calls.
+	private static boolean scan(SimpleNode node, String index, ArrayList<String> assigned, ArrayList<SimpleNode> accesses) {
+		boolean calls = false;
+		if (node instanceof ASTAssignment || node instanceof ASTArrayDefine)
+			assigned.add(getChild(node, 0).tokenValue);
+		else if (node instanceof ASTCall || node instanceof ASTFnInvoke)
+			calls = true;
+		else if ((node instanceof ASTArrayInvoke || node instanceof ASTArrayAssignment) && isVariable(getChild(node, 1), index))
+			accesses.add(node);
+		for (int i=0; i<node.jjtGetNumChildren(); i++)
+			calls |= scan(getChild(node, i), index, assigned, accesses);
+		return calls;
+	}
+
+	// True if a node dereferences a given variable
+	private static boolean isVariable(SimpleNode node, String name) {
+		return node instanceof ASTDereference && node.tokenValue.equals(name);
+	}
+
+	// Get the ith child of a given node.
+	private static SimpleNode getChild(SimpleNode node, int childIndex) {
+		return (SimpleNode)node.jjtGetChild(childIndex);
+	}
+
+}
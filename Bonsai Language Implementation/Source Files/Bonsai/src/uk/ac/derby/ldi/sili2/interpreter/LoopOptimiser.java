@@ -0,0 +1,347 @@
+package uk.ac.derby.ldi.sili2.interpreter;
+
+import java.util.ArrayList;
+
+import uk.ac.derby.ldi.sili2.parser.ast.*;
+import uk.ac.derby.ldi.sili2.values.*;
+
+/** Loop-invariant code motion and counted loops for the Parser.
+ *
+ * An expression in a FOR or WHILE loop that only combines literals and variables the
+ * loop doesn't assign has the same value on every iteration.  The largest such
+ * expressions are marked invariant, and each is evaluated the first time it runs after
+ * the loop starts, then reused until the loop ends.  Evaluating it lazily, rather than
+ * before the loop, means an expression that fails, or that is never reached, behaves
+ * exactly as before.
+ *
+ * A loop of the form
+ *
+ *     for (i = start; i < limit; i = i + step) ...
+ *     while (i < limit) { ... i = i + step }
+ *
+ * with any comparison but equality, where step is an integer literal, limit is invariant
+ * and nothing else in the loop assigns i, is counted.  While i and limit are integers, the
+ * Parser keeps i in a long and tests it directly, instead of evaluating the test and
+ * the increment.  i is still assigned on every iteration, so the body sees it as usual.
+ *
+ * As for LoopBounds, a loop whose body makes calls only qualifies for either if the
+ * variables concerned are local to a function and not used by functions nested in it.
+ * This runs after LoopBounds, and keeps its Guard.
+ */
+class LoopOptimiser {
+
+	/** A loop's optimisations, kept in its node's optimised slot. */
+	static final class Loop {
+		final LoopBounds.Guard guard;
+		private final Invariant[] invariants;
+		// A call in the body may run the loop again, recursively
+		private final boolean reentrant;
+
+		// For a counted loop: the counter, its test and step, and the statements of an
+		// iteration, excluding the increment.  counter is null if the loop isn't counted.
+		private Display.Reference counter = null;
+		private int comparison;
+		private long step;
+		private SimpleNode[] statements;
+
+		private Loop(LoopBounds.Guard guard, Invariant[] invariants, boolean reentrant) {
+			this.guard = guard;
+			this.invariants = invariants;
+			this.reentrant = reentrant;
+		}
+
+		/** Start running the loop.  Return what exit() needs to restore an outer run of it. */
+		Value[] enter() {
+			Value[] outer = null;
+			if (reentrant && invariants.length > 0) {
+				outer = new Value[invariants.length];
+				for (int i=0; i<invariants.length; i++)
+					outer[i] = invariants[i].value;
+			}
+			for (Invariant invariant: invariants)
+				invariant.value = null;
+			return outer;
+		}
+
+		/** Finish running the loop. */
+		void exit(Value[] outer) {
+			if (outer != null)
+				for (int i=0; i<invariants.length; i++)
+					invariants[i].value = outer[i];
+		}
+
+		/** True if the loop is counted. */
+		boolean isCounted() {
+			return counter != null;
+		}
+
+		/** Get the counter of a counted loop. */
+		Display.Reference getCounter() {
+			return counter;
+		}
+
+		/** Get the amount a counted loop adds to its counter on each iteration. */
+		long getStep() {
+			return step;
+		}
+
+		/** Get the statements of an iteration of a counted loop, excluding the increment. */
+		SimpleNode[] getStatements() {
+			return statements;
+		}
+
+		/** The test of a counted loop. */
+		boolean test(long counter, long limit) {
+			switch (comparison) {
+			case Specialiser.NEQ: return counter != limit;
+			case Specialiser.GTE: return counter >= limit;
+			case Specialiser.LTE: return counter <= limit;
+			case Specialiser.GT: return counter > limit;
+			default: return counter < limit;
+			}
+		}
+	}
+
+	/** An invariant expression, put in the tree in place of the expression, which becomes its
+	 * only child.  The Parser evaluates the expression once per run of the loop and keeps its
+	 * value here, which is null until then; any other visitor sees just the expression.
+	 */
+	static final class Invariant extends SimpleNode {
+		Value value = null;
+
+		private Invariant(SimpleNode expression) {
+			super(expression.getId());
+		}
+
+		/** Get the invariant expression. */
+		SimpleNode getExpression() {
+			return (SimpleNode)jjtGetChild(0);
+		}
+
+		public Object jjtAccept(SiliVisitor visitor, Object data) {
+			if (visitor instanceof Parser)
+				return ((Parser)visitor).invariant(this);
+			return getExpression().jjtAccept(visitor, data);
+		}
+	}
+
+	private Resolver resolver;
+
+	/** Ctor */
+	LoopOptimiser(Resolver resolver) {
+		this.resolver = resolver;
+	}
+
+	/** Find the loops in a program, or a top-level statement, the Parser has bound, and optimise them. */
+	void apply(SimpleNode program) {
+		apply(resolver.getMain(), program);
+	}
+
+	// Find the loops in a function body.  Outer loops come first, so an expression
+	// invariant in both an outer and an inner loop is reused across the whole outer loop.
+	private void apply(FunctionDefinition definition, SimpleNode node) {
+		if (node instanceof ASTFnDef) {
+			FunctionDefinition inner = resolver.getDefinition((ASTFnDef)node);
+			apply(inner, inner.getFunctionBody());
+			if (inner.hasReturn())
+				apply(inner, inner.getFunctionReturnExpression());
+			return;
+		}
+		if (node instanceof ASTForLoop || node instanceof ASTWhileLoop)
+			optimise(definition, node);
+		for (int i=0; i<node.jjtGetNumChildren(); i++)
+			apply(definition, getChild(node, i));
+	}
+
+	// Optimise a loop
+	private void optimise(FunctionDefinition definition, SimpleNode node) {
+		// The initialisation of a FOR loop only runs once
+		int first = (node instanceof ASTForLoop) ? 1 : 0;
+		ArrayList<String> assigned = new ArrayList<String>();
+		boolean calls = false;
+		for (int i=first; i<node.jjtGetNumChildren(); i++)
+			calls |= scan(getChild(node, i), assigned);
+		ArrayList<Invariant> invariants = new ArrayList<Invariant>();
+		for (int i=first; i<node.jjtGetNumChildren(); i++)
+			if (hoist(definition, getChild(node, i), assigned, calls, invariants))
+				mark(node, i, invariants);
+		Loop loop = new Loop((LoopBounds.Guard)node.optimised, invariants.toArray(new Invariant[invariants.size()]), calls);
+		if (node instanceof ASTForLoop)
+			countFor(definition, (ASTForLoop)node, loop, assigned, calls);
+		else
+			countWhile(definition, (ASTWhileLoop)node, loop, assigned, calls);
+		if (loop.guard != null || loop.invariants.length > 0 || loop.counter != null)
+			node.optimised = loop;
+	}
+
+	// Make a FOR loop counted if it has the right form
+	private void countFor(FunctionDefinition definition, ASTForLoop node, Loop loop, ArrayList<String> assigned, boolean calls) {
+		SimpleNode initialise = getChild(node, 0);
+		SimpleNode body = getChild(node, 3);
+		ArrayList<String> bodyAssigned = new ArrayList<String>();
+		scan(body, bodyAssigned);
+		if (!isCountable(definition, initialise, getChild(node, 1), getChild(node, 2), assigned, calls)
+				|| bodyAssigned.contains(getChild(initialise, 0).tokenValue))
+			return;
+		count(loop, getChild(node, 1), getChild(node, 2), new SimpleNode[] {body});
+	}
+
+	// Make a WHILE loop counted if it has the right form.  Its increment must be its last statement.
+	private void countWhile(FunctionDefinition definition, ASTWhileLoop node, Loop loop, ArrayList<String> assigned, boolean calls) {
+		SimpleNode body = getChild(node, 1);
+		SimpleNode block = getChild(body, 0);
+		if (!(block instanceof ASTBlock) || block.jjtGetNumChildren() == 0)
+			return;
+		SimpleNode increment = getChild(getChild(block, block.jjtGetNumChildren() - 1), 0);
+		if (!(increment instanceof ASTAssignment))
+			return;
+		SimpleNode[] statements = new SimpleNode[block.jjtGetNumChildren() - 1];
+		ArrayList<String> bodyAssigned = new ArrayList<String>();
+		for (int i=0; i<statements.length; i++) {
+			statements[i] = getChild(block, i);
+			scan(statements[i], bodyAssigned);
+		}
+		if (!isCountable(definition, increment, getChild(node, 0), increment, assigned, calls)
+				|| bodyAssigned.contains(getChild(increment, 0).tokenValue))
+			return;
+		count(loop, getChild(node, 0), increment, statements);
+	}
+
+	// True if a loop's test is counter <comparison> limit, with limit invariant, and its increment
+	// is counter = counter +/- step.  definer is the assignment whose variable is the counter.
+	private boolean isCountable(FunctionDefinition definition, SimpleNode definer, SimpleNode test, SimpleNode increment,
+			ArrayList<String> assigned, boolean calls) {
+		String counter = getChild(definer, 0).tokenValue;
+		if (definer.optimised == null || (calls && !resolver.isPrivate(definition, definer)))
+			return false;
+		if (comparison(test) < 0 || !isVariable(getChild(test, 0), counter))
+			return false;
+		SimpleNode limit = getChild(test, 1);
+		if (!(limit instanceof Invariant) && !isLiteral(limit) && !isInvariantVariable(definition, limit, assigned, calls))
+			return false;
+		SimpleNode step = getChild(increment, 1);
+		if (!getChild(increment, 0).tokenValue.equals(counter) || !(step instanceof ASTAdd || step instanceof ASTSubtract)
+				|| !isVariable(getChild(step, 0), counter) || !(getChild(step, 1) instanceof ASTInteger))
+			return false;
+		try {
+			Long.parseLong(getChild(step, 1).tokenValue);
+		} catch (NumberFormatException e) {
+			return false;
+		}
+		return true;
+	}
+
+	// Record the form of a counted loop that isCountable() accepted
+	private static void count(Loop loop, SimpleNode test, SimpleNode increment, SimpleNode[] statements) {
+		SimpleNode step = getChild(increment, 1);
+		long amount = Long.parseLong(getChild(step, 1).tokenValue);
+		loop.counter = (Display.Reference)increment.optimised;
+		loop.comparison = comparison(test);
+		loop.step = (step instanceof ASTSubtract) ? -amount : amount;
+		loop.statements = statements;
+	}
+
+	// Get the Specialiser operator of a comparison a counted loop can test, or -1
+	private static int comparison(SimpleNode test) {
+		if (test instanceof ASTCompLT)
+			return Specialiser.LT;
+		if (test instanceof ASTCompLTE)
+			return Specialiser.LTE;
+		if (test instanceof ASTCompGT)
+			return Specialiser.GT;
+		if (test instanceof ASTCompGTE)
+			return Specialiser.GTE;
+		if (test instanceof ASTCompNequal)
+			return Specialiser.NEQ;
+		return -1;
+	}
+
+	// Return true if a subtree's value can't change while the loop runs.  Otherwise, mark the
+	// largest subtrees of it that can't.
+	private boolean hoist(FunctionDefinition definition, SimpleNode node, ArrayList<String> assigned, boolean calls,
+			ArrayList<Invariant> invariants) {
+		// Invariant in an enclosing loop, so in this one too
+		if (node instanceof Invariant)
+			return true;
+		// The body of a function runs when it is called, not where it is defined
+		if (node instanceof ASTFnDef)
+			return false;
+		if (node instanceof ASTDereference)
+			return isInvariantVariable(definition, node, assigned, calls);
+		if (isLiteral(node) || node instanceof ASTPi)
+			return true;
+		boolean[] invariant = new boolean[node.jjtGetNumChildren()];
+		boolean all = true;
+		for (int i=0; i<invariant.length; i++) {
+			invariant[i] = hoist(definition, getChild(node, i), assigned, calls, invariants);
+			all &= invariant[i];
+		}
+		if (all && isPure(node))
+			return true;
+		for (int i=0; i<invariant.length; i++)
+			if (invariant[i])
+				mark(node, i, invariants);
+		return false;
+	}
+
+	// Put an Invariant in place of an invariant child, unless it is a single literal or variable
+	private static void mark(SimpleNode parent, int index, ArrayList<Invariant> invariants) {
+		SimpleNode node = getChild(parent, index);
+		if (node instanceof Invariant || node.jjtGetNumChildren() == 0)
+			return;
+		Invariant invariant = new Invariant(node);
+		invariant.jjtAddChild(node, 0);
+		node.jjtSetParent(invariant);
+		parent.jjtAddChild(invariant, index);
+		invariant.jjtSetParent(parent);
+		invariants.add(invariant);
+	}
+
+	// Collect the variables a part of a loop assigns.  Return true if it makes calls.
+	private static boolean scan(SimpleNode node, ArrayList<String> assigned) {
+		if (node instanceof ASTFnDef)
+			return false;
+		boolean calls = false;
+		if (node instanceof ASTAssignment || node instanceof ASTArrayDefine)
+			assigned.add(getChild(node, 0).tokenValue);
+		else if (node instanceof ASTCall || node instanceof ASTFnInvoke)
+			calls = true;
+		for (int i=0; i<node.jjtGetNumChildren(); i++)
+			calls |= scan(getChild(node, i), assigned);
+		return calls;
+	}
+
+	// True if a variable can't be assigned while the loop runs
+	private boolean isInvariantVariable(FunctionDefinition definition, SimpleNode node, ArrayList<String> assigned, boolean calls) {
+		return node instanceof ASTDereference && node.optimised != null && !assigned.contains(node.tokenValue)
+				&& (!calls || resolver.isPrivate(definition, node));
+	}
+
+	// True if a node's value only depends on the values of its children
+	private static boolean isPure(SimpleNode node) {
+		return node instanceof ASTOr || node instanceof ASTAnd || node instanceof ASTCompEqual || node instanceof ASTCompNequal
+				|| node instanceof ASTCompGTE || node instanceof ASTCompLTE || node instanceof ASTCompGT || node instanceof ASTCompLT
+				|| node instanceof ASTAdd || node instanceof ASTSubtract || node instanceof ASTTimes || node instanceof ASTDivide
+				|| node instanceof ASTUnaryNot || node instanceof ASTUnaryPlus || node instanceof ASTUnaryMinus
+				|| node instanceof ASTSquareRoot || node instanceof ASTCeil || node instanceof ASTFloor || node instanceof ASTAbsoluteValue
+				|| node instanceof ASTFactorial || node instanceof ASTSine || node instanceof ASTCosine || node instanceof ASTTangent
+				|| node instanceof ASTDegrees || node instanceof ASTRadians;
+	}
+
+	// True if a node is a literal
+	private static boolean isLiteral(SimpleNode node) {
+		return node instanceof ASTInteger || node instanceof ASTRational || node instanceof ASTCharacter
+				|| node instanceof ASTTrue || node instanceof ASTFalse;
+	}
+
+	// True if a node dereferences a given variable
+	private static boolean isVariable(SimpleNode node, String name) {
+		return node instanceof ASTDereference && node.tokenValue.equals(name);
+	}
+
+	// Get the ith child of a given node.
+	private static SimpleNode getChild(SimpleNode node, int childIndex) {
+		return (SimpleNode)node.jjtGetChild(childIndex);
+	}
+
+}
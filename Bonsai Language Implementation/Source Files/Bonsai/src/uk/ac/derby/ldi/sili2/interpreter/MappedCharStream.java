@@ -0,0 +1,504 @@
+package uk.ac.derby.ldi.sili2.interpreter;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import uk.ac.derby.ldi.sili2.parser.ast.SimpleCharStream;
+import uk.ac.derby.ldi.sili2.parser.ast.Sili;
+import uk.ac.derby.ldi.sili2.parser.ast.SiliConstants;
+import uk.ac.derby.ldi.sili2.parser.ast.SiliTokenManager;
+import uk.ac.derby.ldi.sili2.parser.ast.Token;
+
+/** Source for the lexer read from a file mapped into memory, instead of through a Reader
+ * into SimpleCharStream's buffers.
+ *
+ * The file is copied a window at a time into one byte array, which is reused for the
+ * whole file.  Most tokens are read straight from the bytes by scan(): names and keywords,
+ * decimal integers, strings without escapes, and operators.  Anything else is left to the
+ * generated token manager, which reads the file as UTF-8 a character at a time.  Images
+ * of up to 64 bytes of ASCII are interned, so a keyword or identifier becomes a String the
+ * first time it is seen and is reused after that, and an operator's image is a constant.
+ * Lines and columns are only worked out for tokens, rather than for every character.
+ */
+class MappedCharStream extends SimpleCharStream {
+
+	// Files are mapped in pieces of 1 GB, since a buffer can't hold more than 2 GB
+	private static final int chunkShift = 30;
+	private static final int chunkMask = (1 << chunkShift) - 1;
+
+	private static final int windowSize = 1 << 16;
+	private static final int internLength = 64;
+	private static final int internBits = 16;
+	private static final int internCapacity = 1 << internBits;
+
+	/** Reads tokens with scan() where it can, and with the generated token manager where it can't. */
+	private static final class TokenManager extends SiliTokenManager {
+		private final MappedCharStream stream;
+
+		TokenManager(MappedCharStream stream) {
+			super(stream);
+			this.stream = stream;
+		}
+
+		public Token getNextToken() {
+			Token token = stream.scan();
+			return (token != null) ? token : super.getNextToken();
+		}
+	}
+
+	// Returned by peek() at the end of the file
+	private static final int end = 0x100;
+
+	// Keywords in upper case, and their kinds, by hash
+	private static final String[] keywords = new String[64];
+	private static final int[] keywordKinds = new int[64];
+
+	static {
+		for (int kind = SiliConstants.IF; kind <= SiliConstants.PI; kind++) {
+			String keyword = SiliConstants.tokenImage[kind];
+			keyword = keyword.substring(1, keyword.length() - 1);
+			int slot = keywordSlot(keywordHash(keyword));
+			while (keywords[slot] != null)
+				slot = (slot + 1) & (keywords.length - 1);
+			keywords[slot] = keyword;
+			keywordKinds[slot] = kind;
+		}
+	}
+
+	private final MappedByteBuffer[] chunks;
+	private final long length;
+
+	// The window of the file being read, where it starts in the file, and how much of it is filled
+	private byte[] window = new byte[windowSize];
+	private long base = 0;
+	private int limit = 0;
+
+	// The next byte to read, and the start of the token, in the window
+	private int index = 0;
+	private int tokenIndex = 0;
+
+	// Interned images, by hash, and how many there are
+	private String[] images = new String[internCapacity * 2];
+	private int[] hashes = new int[internCapacity * 2];
+	private int imageCount = 0;
+
+	// The last position counted to, its line, where the line starts, and how many more bytes
+	// than characters there are on the line before the position
+	private long lineOffset = 0;
+	private int line = 1;
+	private long lineStart = 0;
+	private int lineExtra = 0;
+
+	// The start and end in the file of the token last asked about, and its lines and columns
+	private long locatedBegin = -1;
+	private long locatedEnd = -1;
+	private int beginLine;
+	private int beginColumn;
+	private int endLine;
+	private int endColumn;
+
+	/** Map a file. */
+	MappedCharStream(File file) throws IOException {
+		super(new StringReader(""), 1, 1, 1);
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			length = channel.size();
+			chunks = new MappedByteBuffer[(int)((length + chunkMask) >>> chunkShift)];
+			for (int i=0; i<chunks.length; i++) {
+				long start = (long)i << chunkShift;
+				chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(length - start, 1L << chunkShift));
+			}
+		}
+	}
+
+	/** Return a token manager for a file, reading it through a MappedCharStream. */
+	static SiliTokenManager tokenManager(File file) throws IOException {
+		return new TokenManager(new MappedCharStream(file));
+	}
+
+	/** Return a parser for a file, reading it through a MappedCharStream. */
+	static Sili parser(File file) throws IOException {
+		return new Sili(tokenManager(file));
+	}
+
+	// Copy more of the file into the window, keeping the current token.  Return false at the end of the file.
+	private boolean fill() {
+		long next = base + limit;
+		if (next >= length)
+			return false;
+		if (tokenIndex > 0) {
+			System.arraycopy(window, tokenIndex, window, 0, limit - tokenIndex);
+			base += tokenIndex;
+			limit -= tokenIndex;
+			index -= tokenIndex;
+			tokenIndex = 0;
+		} else if (limit == window.length)
+			window = Arrays.copyOf(window, window.length * 2);
+		int count = (int)Math.min(window.length - limit, length - next);
+		while (count > 0) {
+			MappedByteBuffer chunk = chunks[(int)(next >>> chunkShift)];
+			int offset = (int)(next & chunkMask);
+			int size = Math.min(count, chunk.limit() - offset);
+			chunk.get(offset, window, limit, size);
+			limit += size;
+			next += size;
+			count -= size;
+		}
+		return true;
+	}
+
+	// Get the byte at a position in the file, from the window if it is there
+	private int at(long offset) {
+		long i = offset - base;
+		if (i >= 0 && i < limit)
+			return window[(int)i] & 0xff;
+		return chunks[(int)(offset >>> chunkShift)].get((int)(offset & chunkMask)) & 0xff;
+	}
+
+	public char readChar() throws IOException {
+		if (index >= limit && !fill())
+			throw new EOFException();
+		int b = window[index++];
+		return (b >= 0) ? (char)b : decodeChar(b & 0xff);
+	}
+
+	// Decode the rest of a character that doesn't fit in a byte.  A character outside the
+	// Basic Multilingual Plane is read as its high surrogate, since the lexer only needs to
+	// know it isn't a letter; its image is decoded from the bytes.
+	private char decodeChar(int b) {
+		int size = sequenceLength(b);
+		while (limit - index < size - 1 && fill())
+			;
+		if (size == 0 || limit - index < size - 1)
+			return '\ufffd';
+		int c = b & (0x7f >> size);
+		for (int i=0; i<size - 1; i++) {
+			int next = window[index + i];
+			if ((next & 0xc0) != 0x80)
+				return '\ufffd';
+			c = (c << 6) | (next & 0x3f);
+		}
+		index += size - 1;
+		return (size == 4) ? Character.highSurrogate(c) : (char)c;
+	}
+
+	// Get the number of bytes in a UTF-8 sequence from its first byte, or 0 if it can't start one
+	private static int sequenceLength(int b) {
+		if (b < 0x80)
+			return 1;
+		if (b >= 0xc0 && b < 0xe0)
+			return 2;
+		if (b >= 0xe0 && b < 0xf0)
+			return 3;
+		if (b >= 0xf0 && b < 0xf8)
+			return 4;
+		return 0;
+	}
+
+	// Get the byte some way after the next, as a signed byte, or end at the end of the file
+	private int peek(int ahead) {
+		while (index + ahead >= limit)
+			if (!fill())
+				return end;
+		return window[index + ahead];
+	}
+
+	private static boolean isNameStart(int c) {
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_' || c == '$';
+	}
+
+	private static boolean isNamePart(int c) {
+		return isNameStart(c) || (c >= '0' && c <= '9') || c == '#';
+	}
+
+	private static boolean isDigit(int c) {
+		return c >= '0' && c <= '9';
+	}
+
+	// Hash a keyword in upper case
+	private static int keywordHash(String keyword) {
+		int hash = 0;
+		for (int i=0; i<keyword.length(); i++)
+			hash = 31 * hash + keyword.charAt(i);
+		return hash;
+	}
+
+	private static int keywordSlot(int hash) {
+		return (hash * 0x9e3779b9) >>> 26;
+	}
+
+	// Get the kind of the keyword that is the token, in any case, or IDENTIFIER if it isn't one
+	private int getNameKind() {
+		int hash = 0;
+		for (int i = tokenIndex; i < index; i++) {
+			int c = window[i];
+			if (!(c >= 'a' && c <= 'z') && !(c >= 'A' && c <= 'Z'))
+				return SiliConstants.IDENTIFIER;
+			hash = 31 * hash + (c & 0xdf);
+		}
+		int size = index - tokenIndex;
+		for (int slot = keywordSlot(hash); keywords[slot] != null; slot = (slot + 1) & (keywords.length - 1)) {
+			String keyword = keywords[slot];
+			if (keyword.length() == size) {
+				int i = 0;
+				while (i < size && keyword.charAt(i) == (window[tokenIndex + i] & 0xdf))
+					i++;
+				if (i == size)
+					return keywordKinds[slot];
+			}
+		}
+		return SiliConstants.IDENTIFIER;
+	}
+
+	/** Read the next token, unless the generated token manager must read it.  Then return null,
+	 * with the token's first character next to be read.  It reads comments, which become special
+	 * tokens, numbers other than decimal integers, strings with escapes, anything that isn't
+	 * ASCII, lexical errors and the end of the file.
+	 */
+	Token scan() {
+		// Skip white space
+		tokenIndex = index;
+		int c;
+		while ((c = peek(0)) == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f')
+			index++;
+		tokenIndex = index;
+		int kind;
+		if (isNameStart(c)) {
+			do
+				index++;
+			while (isNamePart(c = peek(0)));
+			// A name may go on in letters or digits that aren't ASCII
+			if (c < 0)
+				return unscanned();
+			kind = getNameKind();
+		} else if (isDigit(c)) {
+			// Octal, hexadecimal, floating point and long literals are left to the generated token manager
+			if (c == '0' && isDigit(peek(1)))
+				return unscanned();
+			do
+				index++;
+			while (c != '0' && isDigit(c = peek(0)));
+			c = peek(0);
+			if (isDigit(c) || c == '.' || c == 'e' || c == 'E' || c == 'f' || c == 'F' || c == 'd' || c == 'D' || c == 'l' || c == 'L' || c == 'x' || c == 'X')
+				return unscanned();
+			kind = SiliConstants.INTEGER_LITERAL;
+		} else if (c == '"' || c == '\'') {
+			int quote = c;
+			index++;
+			while ((c = peek(0)) != quote) {
+				if (c == '\\' || c == '\n' || c == '\r' || c < 0 || c == end)
+					return unscanned();
+				index++;
+			}
+			index++;
+			kind = SiliConstants.STRING_LITERAL;
+		} else {
+			int next = peek(1);
+			switch (c) {
+			case '(': kind = SiliConstants.LPAREN; break;
+			case ')': kind = SiliConstants.RPAREN; break;
+			case '{': kind = SiliConstants.LBRACE; break;
+			case '}': kind = SiliConstants.RBRACE; break;
+			case '[': kind = SiliConstants.LBRACKET; break;
+			case ']': kind = SiliConstants.RBRACKET; break;
+			case ';': kind = SiliConstants.SEMICOLON; break;
+			case ',': kind = SiliConstants.COMMA; break;
+			case '?': kind = SiliConstants.HOOK; break;
+			case ':': kind = SiliConstants.COLON; break;
+			case '*': kind = SiliConstants.STAR; break;
+			case '%': kind = SiliConstants.REM; break;
+			case '.': kind = isDigit(next) ? -1 : SiliConstants.DOT; break;
+			case '+': kind = (next == '+') ? SiliConstants.PP : (next == '=') ? SiliConstants.PEQ : SiliConstants.PLUS; break;
+			case '-': kind = (next == '-') ? SiliConstants.MM : (next == '=') ? SiliConstants.MEQ : SiliConstants.SUBT; break;
+			case '=': kind = (next == '=') ? SiliConstants.EQ : SiliConstants.ASSIGN; break;
+			case '<': kind = (next == '>') ? SiliConstants.NEQ : (next == '=') ? SiliConstants.LE : SiliConstants.LT; break;
+			case '>': kind = (next == '=') ? SiliConstants.GE : SiliConstants.GT; break;
+			case '!': kind = (next == '=') ? SiliConstants.NE : -1; break;
+			case '@': kind = (next == '=') ? SiliConstants.UEQ : -1; break;
+			case '/': kind = (next == '/' || next == '*') ? -1 : SiliConstants.SLASH; break;
+			default: kind = -1;
+			}
+			if (kind < 0)
+				return unscanned();
+			index += SiliTokenManager.jjstrLiteralImages[kind].length();
+		}
+		String image = SiliTokenManager.jjstrLiteralImages[kind];
+		Token token = Token.newToken(kind, (image != null) ? image : GetImage());
+		token.beginLine = getBeginLine();
+		token.beginColumn = getBeginColumn();
+		token.endLine = getEndLine();
+		token.endColumn = getEndColumn();
+		return token;
+	}
+
+	// Leave a token to the generated token manager
+	private Token unscanned() {
+		index = tokenIndex;
+		return null;
+	}
+
+	// Get the start in the file of the character before a position
+	private long previous(long offset) {
+		offset--;
+		for (int i=1; i<4 && offset - i >= 0 && (at(offset) & 0xc0) == 0x80; i++)
+			if (sequenceLength(at(offset - i)) == i + 1)
+				return offset - i;
+		return offset;
+	}
+
+	public char BeginToken() throws IOException {
+		tokenIndex = index;
+		return readChar();
+	}
+
+	public void backup(int amount) {
+		while (amount-- > 0)
+			if ((window[--index] & 0xc0) == 0x80)
+				index = (int)(previous(base + index + 1) - base);
+	}
+
+	public String GetImage() {
+		int size = index - tokenIndex;
+		if (size > internLength)
+			return new String(window, tokenIndex, size, StandardCharsets.UTF_8);
+		int hash = 0;
+		boolean ascii = true;
+		for (int i = tokenIndex; i < index; i++) {
+			byte b = window[i];
+			hash = 31 * hash + b;
+			ascii &= b >= 0;
+		}
+		if (!ascii)
+			return new String(window, tokenIndex, size, StandardCharsets.UTF_8);
+		// Names that differ only at the end have close hashes, so they are spread out before probing
+		int mask = images.length - 1;
+		int slot = (hash * 0x9e3779b9) >>> (32 - internBits - 1);
+		for (String image = images[slot]; image != null; image = images[slot = (slot + 1) & mask])
+			if (hashes[slot] == hash && matches(image, size))
+				return image;
+		String image = new String(window, tokenIndex, size, StandardCharsets.ISO_8859_1);
+		if (imageCount < internCapacity) {
+			images[slot] = image;
+			hashes[slot] = hash;
+			imageCount++;
+		}
+		return image;
+	}
+
+	// True if an interned image is the token's ASCII
+	private boolean matches(String image, int size) {
+		if (image.length() != size)
+			return false;
+		for (int i=0; i<size; i++)
+			if (image.charAt(i) != window[tokenIndex + i])
+				return false;
+		return true;
+	}
+
+	public char[] GetSuffix(int size) {
+		String image = new String(window, tokenIndex, index - tokenIndex, StandardCharsets.UTF_8);
+		return image.substring(image.length() - size).toCharArray();
+	}
+
+	public void Done() {
+		window = null;
+		images = null;
+		hashes = null;
+	}
+
+	// Find the line of a position, by counting line ends from the last position counted to.
+	// "\r\n" is one line end, as it is for SimpleCharStream.  Return its column.
+	private int locate(long offset) {
+		if (offset < lineOffset) {
+			lineOffset = 0;
+			line = 1;
+			lineStart = 0;
+			lineExtra = 0;
+		}
+		long i = lineOffset;
+		// Most characters are in the window, and are ASCII other than line ends
+		if (i >= base && offset <= base + limit) {
+			int end = (int)(offset - base);
+			for (int j = (int)(i - base); j < end; j++) {
+				byte c = window[j];
+				if (c == '\n' || c == '\r' || c < 0)
+					count(base + j, c & 0xff);
+			}
+		} else
+			for (; i < offset; i++)
+				count(i, at(i));
+		lineOffset = offset;
+		return (int)(offset - lineStart) - lineExtra + 1;
+	}
+
+	// Count a byte at a position towards the line and column
+	private void count(long offset, int c) {
+		if (c == '\n' || (c == '\r' && (offset + 1 >= length || at(offset + 1) != '\n'))) {
+			line++;
+			lineStart = offset + 1;
+			lineExtra = 0;
+		} else if ((c & 0xc0) == 0x80)
+			lineExtra++;
+		else if (c >= 0xf0)
+			lineExtra--;	// the character is read as two, a surrogate pair
+	}
+
+	// Work out the lines and columns of the token, unless they are known
+	private void locateToken() {
+		long begin = base + tokenIndex;
+		long end = base + index;
+		if (begin == locatedBegin && end == locatedEnd)
+			return;
+		if (end > begin) {
+			beginColumn = locate(begin);
+			beginLine = line;
+			endColumn = locate(previous(end));
+		} else {
+			// The EOF token has no characters, and is at the last character, as it is for SimpleCharStream
+			beginColumn = endColumn = locate((begin > 0) ? previous(begin) : 0);
+			beginLine = line;
+		}
+		endLine = line;
+		locatedBegin = begin;
+		locatedEnd = end;
+	}
+
+	public int getBeginLine() {
+		locateToken();
+		return beginLine;
+	}
+
+	public int getBeginColumn() {
+		locateToken();
+		return beginColumn;
+	}
+
+	public int getEndLine() {
+		locateToken();
+		return endLine;
+	}
+
+	public int getEndColumn() {
+		locateToken();
+		return endColumn;
+	}
+
+	// Deprecated in SimpleCharStream, and not called by the generated code, but kept in
+	// step with the lines and columns above
+	@Deprecated
+	public int getLine() {
+		return getEndLine();
+	}
+
+	@Deprecated
+	public int getColumn() {
+		return getEndColumn();
+	}
+
+}
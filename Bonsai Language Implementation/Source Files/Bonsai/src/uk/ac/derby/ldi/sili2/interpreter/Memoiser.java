@@ -0,0 +1,136 @@
+package uk.ac.derby.ldi.sili2.interpreter;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import uk.ac.derby.ldi.sili2.values.*;
+
+/** Results of calls to pure functions, for reuse by later calls with the same arguments.
+ *
+ * Resolver decides which functions are pure.  A call is only remembered if every argument
+ * is an integer, rational, boolean or string, since an array may change after the call.
+ * At most a given number of results are kept, and the least recently used is dropped
+ * to make room for a new one.
+ */
+class Memoiser {
+
+	/** A pure function and its arguments. */
+	static final class Key {
+		private final FunctionDefinition function;
+		private final Value[] arguments;
+		private final int hash;
+
+		private Key(FunctionDefinition function, Value[] arguments) {
+			this.function = function;
+			this.arguments = arguments;
+			int hash = System.identityHashCode(function);
+			for (Value argument: arguments)
+				hash = 31 * hash + hash(argument);
+			this.hash = hash;
+		}
+
+		public int hashCode() {
+			return hash;
+		}
+
+		public boolean equals(Object o) {
+			if (!(o instanceof Key))
+				return false;
+			Key key = (Key)o;
+			if (key.function != function || key.hash != hash || key.arguments.length != arguments.length)
+				return false;
+			for (int i=0; i<arguments.length; i++)
+				if (!same(arguments[i], key.arguments[i]))
+					return false;
+			return true;
+		}
+	}
+
+	private final LinkedHashMap<Key, Value> results;
+
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+
+	/** Ctor, given the most results to keep. */
+	Memoiser(final int capacity) {
+		results = new LinkedHashMap<Key, Value>(16, 0.75f, true) {
+			private static final long serialVersionUID = 0;
+
+			protected boolean removeEldestEntry(Map.Entry<Key, Value> eldest) {
+				if (size() <= capacity)
+					return false;
+				evictions++;
+				return true;
+			}
+		};
+	}
+
+	/** Get the key for an invocation of a pure function whose arguments have been set.
+	 * Return null if the call can't be remembered.
+	 */
+	Key getKey(FunctionInvocation invocation) {
+		Value[] arguments = invocation.getArguments();
+		for (Value argument: arguments)
+			if (!(argument instanceof ValueInteger || argument instanceof ValueRational || argument instanceof ValueBoolean
+					|| argument instanceof ValueString))
+				return null;
+		return new Key(invocation.getFunctionDefinition(), arguments);
+	}
+
+	/** Get the result of an earlier call.  Return null if there isn't one. */
+	Value get(Key key) {
+		Value result = results.get(key);
+		if (result == null)
+			misses++;
+		else
+			hits++;
+		return result;
+	}
+
+	/** Remember the result of a call. */
+	void put(Key key, Value result) {
+		results.put(key, result);
+	}
+
+	/** Get the number of calls answered from earlier results. */
+	long getHitCount() {
+		return hits;
+	}
+
+	/** Get the number of calls that had to be executed. */
+	long getMissCount() {
+		return misses;
+	}
+
+	/** Get the number of results dropped to make room for others. */
+	long getEvictionCount() {
+		return evictions;
+	}
+
+	// Hash an argument consistently with same()
+	private static int hash(Value value) {
+		if (value instanceof ValueInteger)
+			return Long.hashCode(value.longValue());
+		if (value instanceof ValueRational)
+			return Double.hashCode(value.doubleValue());
+		if (value instanceof ValueBoolean)
+			return Boolean.hashCode(value.booleanValue());
+		return value.stringValue().hashCode();
+	}
+
+	// True if two arguments are the same type and value.  An integer is not the same as the
+	// equal rational, nor 0.0 as -0.0, since they behave differently.
+	private static boolean same(Value a, Value b) {
+		if (a.getClass() != b.getClass())
+			return false;
+		if (a instanceof ValueInteger)
+			return a.longValue() == b.longValue();
+		if (a instanceof ValueRational)
+			return Double.doubleToLongBits(a.doubleValue()) == Double.doubleToLongBits(b.doubleValue());
+		if (a instanceof ValueBoolean)
+			return a.booleanValue() == b.booleanValue();
+		return a.stringValue().equals(b.stringValue());
+	}
+
+}
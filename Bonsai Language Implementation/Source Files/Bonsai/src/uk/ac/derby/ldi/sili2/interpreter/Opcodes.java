@@ -0,0 +1,121 @@
+package uk.ac.derby.ldi.sili2.interpreter;
+
+/** Instruction set of the VirtualMachine.
+ *
+ * Each instruction is an opcode followed by zero or more int operands, as noted
+ * against each opcode.  Stack effects are given as (popped -> pushed).
+ */
+final class Opcodes {
+
+	private Opcodes() {}
+
+	// Stop executing.  Ends the main program.
+	static final int HALT = 0;
+	// literal -- push literals[literal]  ( -> v)
+	static final int LITERAL = 1;
+	// Discard top of stack  (v -> )
+	static final int POP = 2;
+	// depth slot name -- push value of variable names[name], at slot in the display at depth.
+	// Slot is -1 if the variable is undefined.  ( -> v)
+	static final int LOAD = 3;
+	// depth slot -- store into the variable at slot in the display at depth  (v -> )
+	static final int STORE = 5;
+	// depth slot name literal -- add literals[literal] to the variable at slot in the display at
+	// depth, called names[name], as LOAD, LITERAL, ADD and STORE would
+	static final int INCREMENT = 6;
+	// depth slot name literal -- as INCREMENT, but subtract
+	static final int DECREMENT = 7;
+
+	// Binary operators  (v1 v2 -> v)
+	static final int OR = 10;
+	static final int AND = 11;
+	static final int EQ = 12;
+	static final int NEQ = 13;
+	static final int GTE = 14;
+	static final int LTE = 15;
+	static final int GT = 16;
+	static final int LT = 17;
+	static final int ADD = 18;
+	static final int SUBTRACT = 19;
+	static final int MULT = 20;
+	static final int DIV = 21;
+	static final int POWER = 22;
+
+	// Unary operators and math functions  (v -> v)
+	static final int NOT = 30;
+	static final int UNARY_PLUS = 31;
+	static final int UNARY_MINUS = 32;
+	static final int SQRT = 33;
+	static final int CEIL = 34;
+	static final int FLOOR = 35;
+	static final int ABS = 36;
+	static final int FACTORIAL = 37;
+	static final int SINE = 38;
+	static final int COSINE = 39;
+	static final int TANGENT = 40;
+	static final int DEGREES = 41;
+	static final int RADIANS = 42;
+
+	// target -- unconditional jump
+	static final int JUMP = 50;
+	// target message -- jump if false; fail with names[message] if not boolean  (v -> )
+	static final int JUMP_FALSE = 51;
+	// target -- jump if false, leaving it as the result of an AND.  Otherwise continue  (v -> v)
+	static final int AND_JUMP = 52;
+	// target -- jump if true, leaving it as the result of an OR.  Otherwise continue  (v -> v)
+	static final int OR_JUMP = 53;
+	// target message -- jump if true; fail with names[message] if not boolean  (v -> )
+	static final int JUMP_TRUE = 54;
+	// target -- jump if the comparison of the top two values holds, as the comparison
+	// operator followed by JUMP_TRUE would  (v1 v2 -> )
+	static final int JUMP_LT = 55;
+	static final int JUMP_LTE = 56;
+	static final int JUMP_GT = 57;
+	static final int JUMP_GTE = 58;
+	// jump subtract depth slot name literal limitDepth limitSlot limitName target -- the end of an
+	// iteration of a FOR loop whose update is an INCREMENT, or a DECREMENT if subtract is 1, and
+	// whose test compares the variable with a literal or a variable.  Update the variable, then
+	// take the comparison jump with the limit.  If limitDepth is -1, the limit is
+	// literals[limitSlot].  Otherwise it is loaded as LOAD would.
+	static final int NEXT = 59;
+
+	// function duplicate -- make functions[function] callable.  If duplicate is 1, functions[function]
+	// is an earlier function of the same name instead, and it is an error if that is callable.
+	static final int FNDEF = 60;
+	// function name needsReturn -- start a new invocation of functions[function], which is
+	// called names[name].  It is an error if function is -1 or the function is not callable.
+	static final int FRAME = 61;
+	// Pass an argument to the invocation started by FRAME  (v -> )
+	static final int ARGUMENT = 62;
+	// Execute the invocation started by FRAME  ( -> v), where v is null if there is no return value
+	static final int CALL = 63;
+	// As CALL, in a return expression.  If the function is no deeper in the display than the
+	// current one, its invocation replaces the current one, and returns to the current caller.
+	// Otherwise it is a CALL, and the RETURN_VALUE that follows returns its value.
+	static final int TAIL_CALL = 66;
+	// Return from a function without a return value
+	static final int RETURN = 64;
+	// Return from a function with the value on top of the stack  (v -> )
+	static final int RETURN_VALUE = 65;
+
+	// Print top of stack  (v -> )
+	static final int PRINT = 70;
+	// Terminate the program
+	static final int EXIT = 72;
+
+	// depth slot name -- fail if the variable at slot in the display at depth, called
+	// names[name], already holds an array
+	static final int ARRAY_UNDEFINED = 80;
+	// count -- make an array of the top count values  (v1 ... vn -> a)
+	static final int ARRAY_DEFINE = 81;
+	// depth slot name -- push the array in variable names[name], as for LOAD, or fail
+	// if it doesn't hold an array  ( -> a)
+	static final int ARRAY = 82;
+	// Check an index into an array prior to assignment  (a i -> a i)
+	static final int ARRAY_INDEX = 83;
+	// Assign an array element  (a i v -> )
+	static final int ARRAY_SET = 84;
+	// Obtain an array element  (a i -> v)
+	static final int ARRAY_GET = 85;
+
+}
@@ -0,0 +1,205 @@
+package uk.ac.derby.ldi.sili2.interpreter;
+
+import uk.ac.derby.ldi.sili2.parser.ast.*;
+import uk.ac.derby.ldi.sili2.values.*;
+
+/** Rewrites a parsed program before it runs.
+ *
+ * Operators and maths functions whose operands are all literals are replaced by a literal
+ * holding their result, which is computed by the Value classes, so it is exactly what
+ * executing them would produce.  An expression that would fail is left alone, so that it
+ * fails when it runs.
+ *
+ * An IF or WHILE whose test folds to a boolean literal is replaced by the statement that
+ * would run, if any.  A branch that is never taken is only removed if it assigns no variable
+ * and defines no array or function, because those affect how names are resolved.  An AND
+ * whose left operand is false, or an OR whose left operand is true, is replaced by it.
+ */
+class Optimiser {
+
+	/** Optimise a program in place. */
+	void optimise(ASTCode program) {
+		optimiseChildren(program);
+	}
+
+	/** Optimise a top-level statement, for a program that runs as it is parsed.  Return the
+	 * statement that replaces it, or the statement itself.
+	 */
+	SimpleNode optimiseStatement(SimpleNode statement) {
+		SimpleNode optimised = optimise(statement);
+		if (optimised != statement)
+			optimised.jjtSetParent(null);
+		return optimised;
+	}
+
+	// Get the ith child of a given node.
+	private static SimpleNode getChild(SimpleNode node, int childIndex) {
+		return (SimpleNode)node.jjtGetChild(childIndex);
+	}
+
+	// Optimise the children of a node, replacing any that change
+	private void optimiseChildren(SimpleNode node) {
+		for (int i=0; i<node.jjtGetNumChildren(); i++) {
+			SimpleNode child = optimise(getChild(node, i));
+			if (child != getChild(node, i)) {
+				node.jjtAddChild(child, i);
+				child.jjtSetParent(node);
+			}
+		}
+	}
+
+	// Optimise a node.  Return the node that replaces it, or the node itself.
+	private SimpleNode optimise(SimpleNode node) {
+		optimiseChildren(node);
+		if (node instanceof ASTIfStatement)
+			return eliminate(node, getChild(node, 1), node.hasElse() ? getChild(node, 2) : null);
+		if (node instanceof ASTWhileLoop)
+			return eliminate(node, getChild(node, 1), null);
+		// The right operand isn't evaluated if the left one decides
+		if ((node instanceof ASTAnd && getChild(node, 0) instanceof ASTFalse) || (node instanceof ASTOr && getChild(node, 0) instanceof ASTTrue))
+			return getChild(node, 0);
+		Value value;
+		try {
+			value = evaluate(node);
+		} catch (ExceptionSemantic | RuntimeException e) {
+			// Leave it to fail at run-time
+			return node;
+		}
+		if (value == null || isLiteral(node))
+			return node;
+		SimpleNode literal = literal(value);
+		return (literal == null) ? node : literal;
+	}
+
+	// Replace an IF or WHILE whose test is constant with the statement that runs when the test is
+	// true, or when it is false.  Either may be null for no statement.
+	private SimpleNode eliminate(SimpleNode node, SimpleNode whenTrue, SimpleNode whenFalse) {
+		SimpleNode test = getChild(node, 0);
+		if (!(test instanceof ASTTrue) && !(test instanceof ASTFalse))
+			return node;
+		boolean taken = test instanceof ASTTrue;
+		// A true WHILE loops for ever
+		if (taken && node instanceof ASTWhileLoop)
+			return node;
+		SimpleNode dead = taken ? whenFalse : whenTrue;
+		if (dead != null && declares(dead))
+			return node;
+		SimpleNode live = taken ? whenTrue : whenFalse;
+		return (live == null) ? new ASTBlock(SiliTreeConstants.JJTBLOCK) : live;
+	}
+
+	// True if a subtree assigns a variable or defines an array or function
+	private static boolean declares(SimpleNode node) {
+		if (node instanceof ASTAssignment || node instanceof ASTArrayDefine || node instanceof ASTFnDef)
+			return true;
+		for (int i=0; i<node.jjtGetNumChildren(); i++)
+			if (declares(getChild(node, i)))
+				return true;
+		return false;
+	}
+
+	// True if a node is a literal
+	private static boolean isLiteral(SimpleNode node) {
+		return node instanceof ASTInteger || node instanceof ASTRational || node instanceof ASTCharacter
+				|| node instanceof ASTTrue || node instanceof ASTFalse;
+	}
+
+	// Return the value of a node if it is a literal, or an operator or maths function whose
+	// operands are literals.  Otherwise return null.
+	private static Value evaluate(SimpleNode node) {
+		if (node instanceof ASTInteger)
+			return new ValueInteger(Long.parseLong(node.tokenValue));
+		if (node instanceof ASTRational)
+			return new ValueRational(Double.parseDouble(node.tokenValue));
+		if (node instanceof ASTCharacter)
+			return ValueString.stripDelimited(node.tokenValue);
+		if (node instanceof ASTTrue)
+			return ValueBoolean.TRUE;
+		if (node instanceof ASTFalse)
+			return ValueBoolean.FALSE;
+		if (node instanceof ASTPi)
+			return new ValueRational(0).pi();
+		if (node.jjtGetNumChildren() == 1) {
+			if (!isLiteral(getChild(node, 0)))
+				return null;
+			Value x = evaluate(getChild(node, 0));
+			if (node instanceof ASTUnaryNot)
+				return x.not();
+			if (node instanceof ASTUnaryPlus)
+				return x.unary_plus();
+			if (node instanceof ASTUnaryMinus)
+				return x.unary_minus();
+			if (node instanceof ASTSquareRoot)
+				return x.sqrt();
+			if (node instanceof ASTCeil)
+				return x.ceil();
+			if (node instanceof ASTFloor)
+				return x.floor();
+			if (node instanceof ASTAbsoluteValue)
+				return x.abs();
+			if (node instanceof ASTFactorial)
+				return x.factorial();
+			if (node instanceof ASTSine)
+				return x.sine();
+			if (node instanceof ASTCosine)
+				return x.cosine();
+			if (node instanceof ASTTangent)
+				return x.tangent();
+			if (node instanceof ASTDegrees)
+				return x.degrees();
+			if (node instanceof ASTRadians)
+				return x.radians();
+			return null;
+		}
+		if (node.jjtGetNumChildren() == 2) {
+			if (!isLiteral(getChild(node, 0)) || !isLiteral(getChild(node, 1)))
+				return null;
+			Value x = evaluate(getChild(node, 0));
+			Value y = evaluate(getChild(node, 1));
+			if (node instanceof ASTOr)
+				return x.or(y);
+			if (node instanceof ASTAnd)
+				return x.and(y);
+			if (node instanceof ASTCompEqual)
+				return x.eq(y);
+			if (node instanceof ASTCompNequal)
+				return x.neq(y);
+			if (node instanceof ASTCompGTE)
+				return x.gte(y);
+			if (node instanceof ASTCompLTE)
+				return x.lte(y);
+			if (node instanceof ASTCompGT)
+				return x.gt(y);
+			if (node instanceof ASTCompLT)
+				return x.lt(y);
+			if (node instanceof ASTAdd)
+				return x.add(y);
+			if (node instanceof ASTSubtract)
+				return x.subtract(y);
+			if (node instanceof ASTTimes)
+				return x.mult(y);
+			if (node instanceof ASTDivide)
+				return x.div(y);
+			return null;
+		}
+		return null;
+	}
+
+	// Make a literal node for a value, or return null if it has no literal form
+	private static SimpleNode literal(Value value) {
+		SimpleNode node;
+		if (value instanceof ValueInteger)
+			node = new ASTInteger(SiliTreeConstants.JJTINTEGER);
+		else if (value instanceof ValueRational)
+			node = new ASTRational(SiliTreeConstants.JJTRATIONAL);
+		else if (value instanceof ValueString)
+			node = new ASTCharacter(SiliTreeConstants.JJTCHARACTER);
+		else if (value instanceof ValueBoolean)
+			return value.booleanValue() ? new ASTTrue(SiliTreeConstants.JJTTRUE) : new ASTFalse(SiliTreeConstants.JJTFALSE);
+		else
+			return null;
+		node.tokenValue = (value instanceof ValueString) ? "\"" + value.stringValue() + "\"" : value.toString();
+		return node;
+	}
+
+}
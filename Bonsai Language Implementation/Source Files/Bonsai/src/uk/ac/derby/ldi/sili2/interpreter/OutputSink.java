@@ -0,0 +1,274 @@
+package uk.ac.derby.ldi.sili2.interpreter;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+import uk.ac.derby.ldi.sili2.values.*;
+
+/** Where PRINT and EXIT write.
+ *
+ * Output is put in a byte array that is written to a channel when it is full, when the
+ * program ends or reaches EXIT, and, if lines are flushed, after each line.  Integers,
+ * and rationals that are whole numbers, are written as digits straight into the array,
+ * and ASCII characters are copied into it; other characters are encoded by the charset.
+ * An array is written element by element, rather than made into one String first.
+ *
+ * A sink is not safe to use from more than one thread at once.  Like PrintStream, it
+ * drops its output if the channel fails.  Each string is encoded by itself, so a charset
+ * that starts with a byte order mark, such as UTF-16, marks every string.
+ */
+final class OutputSink {
+
+	private static final int defaultCapacity = 1 << 16;
+
+	// Room for the digits of any long, and its sign
+	private static final int longLength = 20;
+
+	// Where standard output goes, and the System.out it writes to
+	private static volatile OutputSink standardOutput = null;
+	private static Boolean standardFlushLines = null;
+
+	private final WritableByteChannel channel;
+	private final OutputStream stream;
+	private final byte[] buffer;
+	private final ByteBuffer wrapped;
+	private final CharsetEncoder encoder;
+	private final boolean asciiCompatible;
+	private final byte[] lineSeparator;
+	private boolean flushLines;
+	private boolean failed = false;
+	private int count = 0;
+
+	/** Ctor, given a channel, the charset to encode characters in, the size of the buffer in
+	 * bytes, and whether to write each line as soon as it is complete.
+	 */
+	OutputSink(WritableByteChannel channel, Charset charset, int capacity, boolean flushLines) {
+		this(channel, null, charset, capacity, flushLines);
+	}
+
+	/** Ctor, given a stream that is flushed whenever the sink is. */
+	OutputSink(OutputStream stream, Charset charset, int capacity, boolean flushLines) {
+		this(Channels.newChannel(stream), stream, charset, capacity, flushLines);
+	}
+
+	private OutputSink(WritableByteChannel channel, OutputStream stream, Charset charset, int capacity, boolean flushLines) {
+		this.channel = channel;
+		this.stream = stream;
+		this.flushLines = flushLines;
+		buffer = new byte[Math.max(capacity, longLength)];
+		wrapped = ByteBuffer.wrap(buffer);
+		encoder = charset.newEncoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+		asciiCompatible = isAsciiCompatible(charset);
+		lineSeparator = System.lineSeparator().getBytes(charset);
+	}
+
+	/** Get the sink for standard output, which writes to System.out.  If System.out has been
+	 * replaced since the sink was made, what the old sink holds is written, and a new sink is made.
+	 */
+	static OutputSink getStandardOutput() {
+		OutputSink sink = standardOutput;
+		if (sink != null && sink.stream == System.out)
+			return sink;
+		return newStandardOutput();
+	}
+
+	private static synchronized OutputSink newStandardOutput() {
+		OutputSink sink = standardOutput;
+		if (sink != null) {
+			if (sink.stream == System.out)
+				return sink;
+			sink.flush();
+		}
+		PrintStream out = System.out;
+		boolean flushLines = (standardFlushLines != null) ? standardFlushLines.booleanValue() : isTerminal();
+		sink = new OutputSink(out, getStandardCharset(), defaultCapacity, flushLines);
+		standardOutput = sink;
+		return sink;
+	}
+
+	/** Set whether standard output is written after each line, rather than when the buffer is
+	 * full.  By default it is if the program has a console.
+	 */
+	static synchronized void setStandardFlushLines(boolean flushLines) {
+		standardFlushLines = Boolean.valueOf(flushLines);
+		if (standardOutput != null)
+			standardOutput.flushLines = flushLines;
+	}
+
+	// True if the program has a console, so output should appear a line at a time
+	private static boolean isTerminal() {
+		return System.console() != null;
+	}
+
+	// Get the charset System.out encodes characters in
+	private static Charset getStandardCharset() {
+		for (String property: new String[] {"stdout.encoding", "sun.stdout.encoding"}) {
+			String name = System.getProperty(property);
+			if (name != null && Charset.isSupported(name))
+				return Charset.forName(name);
+		}
+		return Charset.defaultCharset();
+	}
+
+	// True if a charset encodes each ASCII character as the same single byte
+	private static boolean isAsciiCompatible(Charset charset) {
+		char[] ascii = new char[128];
+		for (int c=0; c<ascii.length; c++)
+			ascii[c] = (char)c;
+		byte[] bytes = new String(ascii).getBytes(charset);
+		if (bytes.length != ascii.length)
+			return false;
+		for (int c=0; c<bytes.length; c++)
+			if (bytes[c] != c)
+				return false;
+		return true;
+	}
+
+	/** Write a value and a line separator, as PRINT does. */
+	void println(Value value) {
+		print(value);
+		endLine();
+	}
+
+	/** Write a message and a line separator. */
+	void println(String message) {
+		write(String.valueOf(message));
+		endLine();
+	}
+
+	// End a line, and write it if lines are flushed
+	private void endLine() {
+		write(lineSeparator);
+		if (flushLines)
+			flush();
+	}
+
+	// Write a value as its toString() would show it
+	private void print(Value value) {
+		if (value instanceof ValueInteger)
+			write(value.longValue());
+		else if (value instanceof ValueRational)
+			write(value.doubleValue());
+		else if (value instanceof ValueBoolean)
+			write(value.booleanValue() ? "true" : "false");
+		else if (value instanceof ValueArray)
+			write((ValueArray)value);
+		else
+			write(String.valueOf(value));
+	}
+
+	// Write an array an element at a time
+	private void write(ValueArray array) {
+		write("[ ");
+		for (int index = 0; index < array.size(); index++) {
+			if (index > 0)
+				write(", ");
+			print(array.get(index));
+		}
+		write(" ]");
+	}
+
+	// Write the digits of a long, working with its negative so that Long.MIN_VALUE needs no special case
+	private void write(long n) {
+		if (buffer.length - count < longLength)
+			drain();
+		if (n < 0)
+			buffer[count++] = '-';
+		else
+			n = -n;
+		int length = 1;
+		for (long rest = n / 10; rest != 0; rest /= 10)
+			length++;
+		for (int i = count + length - 1; i >= count; i--) {
+			buffer[i] = (byte)('0' - (int)(n % 10));
+			n /= 10;
+		}
+		count += length;
+	}
+
+	// Write a double as Double.toString() would.  A whole number that it shows without an
+	// exponent is written as digits; anything else uses Double.toString().
+	private void write(double d) {
+		if (d == Math.rint(d) && Math.abs(d) < 1e7) {
+			if (d == 0 && Double.doubleToRawLongBits(d) != 0)
+				write("-");
+			write((long)d);
+			write(".0");
+		} else
+			write(Double.toString(d));
+	}
+
+	// Write the characters of a string, copying ASCII and encoding the rest
+	private void write(String s) {
+		int length = s.length();
+		for (int i=0; i<length; i++) {
+			char c = s.charAt(i);
+			if (c >= 0x80 || !asciiCompatible) {
+				encode(s, i);
+				return;
+			}
+			if (count == buffer.length)
+				drain();
+			buffer[count++] = (byte)c;
+		}
+	}
+
+	// Encode the characters of a string from an index on
+	private void encode(String s, int from) {
+		CharBuffer chars = CharBuffer.wrap(s, from, s.length());
+		encoder.reset();
+		while (true) {
+			wrapped.limit(buffer.length).position(count);
+			CoderResult result = encoder.encode(chars, wrapped, true);
+			if (!result.isOverflow())
+				result = encoder.flush(wrapped);
+			count = wrapped.position();
+			if (!result.isOverflow())
+				return;
+			drain();
+		}
+	}
+
+	private void write(byte[] bytes) {
+		if (buffer.length - count < bytes.length)
+			drain();
+		System.arraycopy(bytes, 0, buffer, count, bytes.length);
+		count += bytes.length;
+	}
+
+	// Write what the buffer holds to the channel, and empty it
+	private void drain() {
+		if (count > 0 && !failed) {
+			try {
+				wrapped.limit(count).position(0);
+				while (wrapped.hasRemaining())
+					channel.write(wrapped);
+			} catch (IOException e) {
+				failed = true;
+			}
+		}
+		count = 0;
+	}
+
+	/** Write everything printed so far. */
+	void flush() {
+		drain();
+		if (stream != null && !failed) {
+			try {
+				stream.flush();
+			} catch (IOException e) {
+				failed = true;
+			}
+		}
+	}
+
+}
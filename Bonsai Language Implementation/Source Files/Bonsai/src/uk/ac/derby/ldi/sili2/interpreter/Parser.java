@@ -1,15 +1,59 @@
 package uk.ac.derby.ldi.sili2.interpreter;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import uk.ac.derby.ldi.sili2.parser.ast.*;
 import uk.ac.derby.ldi.sili2.values.*;
 
 public class Parser implements SiliVisitor {
 	
-	// Scope display handler
-	private Display scope = new Display();
-	private HashMap<String, ArrayList<Value>> arrayStore = new HashMap<String, ArrayList<Value>>();
+	// Static scopes, and the display that manages them at run-time
+	private Resolver resolver;
+	private Display scope;
+	
+	// Invocation contexts for reuse
+	private FramePool frames = new FramePool();
+	
+	// Type specialisation of arithmetic and comparison nodes
+	private Specialiser specialiser = new Specialiser(this);
+	
+	// How often each conditional goes each way
+	private BranchProfile branches = new BranchProfile();
+	
+	// Compiler for hot functions.  Null unless tiered execution is enabled.
+	private TieredCompiler tier = null;
+	
+	// Results of pure functions.  Null unless memoisation is enabled.
+	private Memoiser memoiser = null;
+	
+	// Where PRINT writes
+	private OutputSink out = OutputSink.getStandardOutput();
+	
+	/** Send the output of PRINT and EXIT to a sink instead of standard output. */
+	void setOutput(OutputSink out) {
+		this.out = out;
+	}
+	
+	/** Get where PRINT and EXIT write, for the functions TieredCompiler compiles. */
+	OutputSink getOutput() {
+		return out;
+	}
+	
+	/** Compile functions to the JVM once they have been invoked, or have looped, threshold times,
+	 * in the background unless wait is true.
+	 */
+	void enableTiers(int threshold, boolean trace, boolean wait) {
+		tier = new TieredCompiler(this, threshold, trace, wait);
+	}
+	
+	/** Remember the results of calls to pure functions in a Memoiser. */
+	void enableMemoisation(Memoiser memoiser) {
+		this.memoiser = memoiser;
+	}
+	
+	/** True if calls to a function are looked up in the memoiser. */
+	boolean isMemoised(FunctionDefinition fndef) {
+		return memoiser != null && fndef.isPure();
+	}
 	
 	// Get the ith child of a given node.
 	private static SimpleNode getChild(SimpleNode node, int childIndex) {
@@ -29,7 +73,14 @@ public class Parser implements SiliVisitor {
 	// Execute a given child of a given node, and return its value as a Value.
 	// This is used by the expression evaluation nodes.
 	Value doChild(SimpleNode node, int childIndex) {
-		return (Value)doChild(node, childIndex, null);
+		return (Value)node.jjtGetChild(childIndex).jjtAccept(this, null);
+	}
+	
+	/** Evaluate a loop invariant expression once per run of its loop. */
+	Value invariant(LoopOptimiser.Invariant invariant) {
+		if (invariant.value == null)
+			invariant.value = (Value)invariant.getExpression().jjtAccept(this, null);
+		return invariant.value;
 	}
 	
 	// Execute all children of the given node
@@ -37,57 +88,233 @@ public class Parser implements SiliVisitor {
 		return node.childrenAccept(this, data);
 	}
 	
+	/** Get the specialiser of arithmetic and comparison nodes, for its counters. */
+	Specialiser getSpecialiser() {
+		return specialiser;
+	}
+	
+	/** Get the counts of how often each conditional has gone each way. */
+	BranchProfile getBranchProfile() {
+		return branches;
+	}
+	
+	// Get the counts of a conditional
+	private BranchProfile.Branch branch(ConditionalNode node) {
+		BranchProfile.Branch branch = BranchProfile.getBranch(node);
+		return (branch == null) ? branches.get(node, scope.getCurrentDefinition()) : branch;
+	}
+	
+	// Execute a function invocation, using the compiled function if there is one.
+	// The invocation's context goes back to the pool afterwards.
+	//
+	// If the return expression is itself a call, to a function no deeper in the display
+	// than this one, this function's scope is no longer needed once the arguments have
+	// been evaluated.  The call then replaces this invocation in the same Java frame,
+	// so chains of tail calls run in constant Java stack.
+	//
+	// A call to a pure function is looked up in the memoiser first, and its result is
+	// remembered after.  It doesn't make tail calls, since its own result is needed.
+	private Value execute(FunctionInvocation invocation) {
+		int callerLevel = scope.getLevel();
+		while (true) {
+			FunctionDefinition fndef = invocation.getFunctionDefinition();
+			Memoiser.Key key = null;
+			if (isMemoised(fndef)) {
+				key = memoiser.getKey(invocation);
+				Value remembered = (key == null) ? null : memoiser.get(key);
+				if (remembered != null) {
+					frames.release(invocation);
+					return remembered;
+				}
+			}
+			if (tier != null) {
+				CompiledFunction compiled = fndef.getCompiled();
+				if (compiled != null) {
+					Value[] arguments = invocation.getArguments();
+					frames.release(invocation);
+					Value result = compiled.invoke(arguments);
+					if (key != null)
+						memoiser.put(key, result);
+					return result;
+				}
+				tier.heat(fndef);
+			}
+			FunctionInvocation displaced = scope.enter(invocation);
+			doChildren(fndef.getFunctionBody(), null);
+			Value result = null;
+			if (fndef.hasReturn()) {
+				SimpleNode expression = getChild(fndef.getFunctionReturnExpression(), 0);
+				if (expression instanceof ASTFnInvoke) {
+					FunctionInvocation tail = prepare(expression);
+					if (key == null && tail.getLevel() <= invocation.getLevel()) {
+						scope.leave(invocation, displaced, callerLevel);
+						frames.release(invocation);
+						invocation = tail;
+						continue;
+					}
+					result = execute(tail);
+				} else
+					result = doChild(fndef.getFunctionReturnExpression(), 0);
+			}
+			scope.leave(invocation, displaced, callerLevel);
+			frames.release(invocation);
+			if (key != null)
+				memoiser.put(key, result);
+			return result;
+		}
+	}
+	
+	// Get the invocation for an ASTFnInvoke, with its arguments evaluated
+	private FunctionInvocation prepare(SimpleNode node) {
+		// Child 0 - identifier (fn name)
+		FunctionDefinition fndef = getCallee(node);
+		if (!fndef.hasReturn())
+			throw new ExceptionSemantic("Function " + fndef.getName() + " is being invoked in an expression but does not have a return value.");
+		FunctionInvocation newInvocation = frames.acquire(fndef);
+		// Child 1 - arglist
+		doChild(node, 1, newInvocation);
+		return newInvocation;
+	}
+	
+	/** Invoke a function with arguments that have already been checked.  Used by compiled functions. */
+	Value invoke(FunctionDefinition fndef, Value[] arguments) {
+		FunctionInvocation newInvocation = frames.acquire(fndef);
+		for (Value argument: arguments)
+			newInvocation.setArgument(argument);
+		return execute(newInvocation);
+	}
+	
+	// Count an iteration of a loop, for tiered execution
+	private void loopIteration() {
+		if (tier != null)
+			tier.heat(scope.getCurrentDefinition());
+	}
+	
 	// Called if one of the following methods is missing...
 	public Object visit(SimpleNode node, Object data) {
 		System.out.println(node + ": acceptor not implemented in subclass?");
 		return data;
 	}
 	
+	// Bind the variables and calls in a subtree to what the Resolver found, so that
+	// no names are looked up during execution.
+	private void bind(SimpleNode node) {
+		bindNode(node);
+		for (int i=0; i<node.jjtGetNumChildren(); i++)
+			bind(getChild(node, i));
+	}
+	
+	// Bind a node, but not its children
+	private void bindNode(SimpleNode node) {
+		if (node instanceof ASTDereference || node instanceof ASTAssignment || node instanceof ASTArrayDefine
+				|| node instanceof ASTArrayAssignment || node instanceof ASTArrayInvoke) {
+			SlotReference reference = resolver.getReference(node);
+			node.optimised = (reference == null) ? null : scope.getReference(reference);
+		}
+		else if (node instanceof ASTCall || node instanceof ASTFnInvoke)
+			node.optimised = resolver.getCallee(node);
+		else if (node instanceof ASTFnDef)
+			node.optimised = resolver.getDefinition((ASTFnDef)node);
+	}
+	
+	// Get the function invoked by an ASTCall or ASTFnInvoke.  Throw if it has not been defined yet.
+	private FunctionDefinition getCallee(SimpleNode node) {
+		FunctionDefinition fndef = (FunctionDefinition)node.optimised;
+		if (fndef == null || !fndef.isDefined())
+			throw new ExceptionSemantic("Function " + getTokenOfChild(node, 0) + " is undefined.");
+		return fndef;
+	}
+	
 	// Execute a Sili program
 	public Object visit(ASTCode node, Object data) {
+		resolver = new Resolver(node);
+		resolver.checkReferences();
+		scope = new Display(resolver.getMain());
+		bind(node);
+		new LoopBounds(resolver).apply(node);
+		new LoopOptimiser(resolver).apply(node);
 		return doChildren(node, data);	
 	}
 	
-	// Execute a statement
-	public Object visit(ASTStatement node, Object data) {
-		return doChildren(node, data);	
+	/** Execute a program one top-level statement at a time, as each is parsed, rather than
+	 * parsing it all first.  A statement that has run is dropped, unless it defines functions.
+	 * See Resolver for how names are resolved when a program is given a statement at a time.
+	 */
+	void execute(Sili source, boolean optimise) throws ParseException {
+		FunctionInvocation main = beginStatements();
+		SimpleNode statement;
+		while ((statement = source.topStatement()) != null) {
+			if (optimise)
+				statement = new Optimiser().optimiseStatement(statement);
+			executeStatement(statement, main);
+		}
 	}
-
+	
+	/** Execute a program held in a FlatTree.  It is resolved as a whole first, as the tree of
+	 * nodes it came from would be.  Each top-level statement that doesn't define functions is
+	 * then made into nodes again just before it runs, and they are dropped after it.
+	 */
+	void execute(FlatTree program) {
+		resolver = new Resolver(program);
+		resolver.checkReferences();
+		scope = new Display(resolver.getMain());
+		for (int statement = 0; statement < program.size(); statement = program.getNext(statement)) {
+			SimpleNode node = resolver.getStatement(statement);
+			boolean inflated = (node == null);
+			if (inflated) {
+				node = program.inflate(statement);
+				resolver.bindStatement(node);
+			}
+			bind(node);
+			new LoopBounds(resolver).apply(node);
+			new LoopOptimiser(resolver).apply(node);
+			node.jjtAccept(this, null);
+			if (inflated)
+				resolver.forget(node);
+		}
+	}
+	
+	// Start resolving and running a program a top-level statement at a time.  Return the invocation of the main program.
+	private FunctionInvocation beginStatements() {
+		resolver = new Resolver();
+		FunctionInvocation main = new FunctionInvocation(resolver.getMain());
+		scope = new Display(main);
+		return main;
+	}
+	
+	// Resolve, bind and execute a top-level statement
+	private void executeStatement(SimpleNode statement, FunctionInvocation main) {
+		ArrayList<SimpleNode> bound = resolver.resolveStatement(statement);
+		main.grow();
+		bind(statement);
+		for (SimpleNode node: bound)
+			bindNode(node);
+		new LoopBounds(resolver).apply(statement);
+		new LoopOptimiser(resolver).apply(statement);
+		statement.jjtAccept(this, null);
+	}
+	
 	// Execute a block
 	public Object visit(ASTBlock node, Object data) {
 		return doChildren(node, data);	
 	}
 
-	// Function definition
+	// Function definition.  The Resolver has already built the definition, so this
+	// just makes it callable.
 	public Object visit(ASTFnDef node, Object data) {
-		// Already defined?
-		if (node.optimised != null)
+		// Another function of the same name in the same scope?
+		FunctionDefinition existing = resolver.getDuplicate(node);
+		if (existing != null) {
+			if (existing.isDefined())
+				throw new ExceptionSemantic("Function " + getTokenOfChild(node, 0) + " already exists.");
 			return data;
-		// Child 0 - identifier (fn name)
-		String fnname = getTokenOfChild(node, 0);
-		if (scope.findFunctionInCurrentLevel(fnname) != null)
-			throw new ExceptionSemantic("Function " + fnname + " already exists.");
-		FunctionDefinition currentFunctionDefinition = new FunctionDefinition(fnname, scope.getLevel() + 1);
-		// Child 1 - function definition parameter list
-		doChild(node, 1, currentFunctionDefinition);
-		// Add to available functions
-		scope.addFunction(currentFunctionDefinition);
-		// Child 2 - function body
-		currentFunctionDefinition.setFunctionBody(getChild(node, 2));
-		// Child 3 - optional return expression
-		if (node.fnHasReturn)
-			currentFunctionDefinition.setFunctionReturnExpression(getChild(node, 3));
-		// Preserve this definition for future reference, and so we don't define
-		// it every time this node is processed.
-		node.optimised = currentFunctionDefinition;
+		}
+		((FunctionDefinition)node.optimised).setDefined();
 		return data;
 	}
 	
 	// Function definition parameter list
 	public Object visit(ASTParmlist node, Object data) {
-		FunctionDefinition currentDefinition = (FunctionDefinition)data;
-		for (int i=0; i<node.jjtGetNumChildren(); i++)
-			currentDefinition.defineParameter(getTokenOfChild(node, i));
 		return data;
 	}
 	
@@ -103,45 +330,19 @@ public class Parser implements SiliVisitor {
 	
 	// Function call
 	public Object visit(ASTCall node, Object data) {
-		FunctionDefinition fndef;
-		if (node.optimised == null) { 
-			// Child 0 - identifier (fn name)
-			String fnname = getTokenOfChild(node, 0);
-			fndef = scope.findFunction(fnname);
-			if (fndef == null)
-				throw new ExceptionSemantic("Function " + fnname + " is undefined.");
-			// Save it for next time
-			node.optimised = fndef;
-		} else
-			fndef = (FunctionDefinition)node.optimised;
-		FunctionInvocation newInvocation = new FunctionInvocation(fndef);
+		// Child 0 - identifier (fn name)
+		FunctionDefinition fndef = getCallee(node);
+		FunctionInvocation newInvocation = frames.acquire(fndef);
 		// Child 1 - arglist
 		doChild(node, 1, newInvocation);
 		// Execute
-		scope.execute(newInvocation, this);
+		execute(newInvocation);
 		return data;
 	}
 	
 	// Function invocation in an expression
 	public Object visit(ASTFnInvoke node, Object data) {
-		FunctionDefinition fndef;
-		if (node.optimised == null) { 
-			// Child 0 - identifier (fn name)
-			String fnname = getTokenOfChild(node, 0);
-			fndef = scope.findFunction(fnname);
-			if (fndef == null)
-				throw new ExceptionSemantic("Function " + fnname + " is undefined.");
-			if (!fndef.hasReturn())
-				throw new ExceptionSemantic("Function " + fnname + " is being invoked in an expression but does not have a return value.");
-			// Save it for next time
-			node.optimised = fndef;
-		} else
-			fndef = (FunctionDefinition)node.optimised;
-		FunctionInvocation newInvocation = new FunctionInvocation(fndef);
-		// Child 1 - arglist
-		doChild(node, 1, newInvocation);
-		// Execute
-		return scope.execute(newInvocation, this);
+		return execute(prepare(node));
 	}
 
 	// Function invocation argument list.
@@ -159,9 +360,11 @@ public class Parser implements SiliVisitor {
 		Value hopefullyValueBoolean = doChild(node, 0);
 		if (!(hopefullyValueBoolean instanceof ValueBoolean))
 			throw new ExceptionSemantic("The test expression of an if statement must be boolean.");
-		if (((ValueBoolean)hopefullyValueBoolean).booleanValue())
+		boolean taken = ((ValueBoolean)hopefullyValueBoolean).booleanValue();
+		branch(node).count(taken);
+		if (taken)
 			doChild(node, 1);							// if(true), therefore do 'if' statement
-		else if (node.ifHasElse)						// does it have an else statement?
+		else if (node.hasElse())						// does it have an else statement?
 			doChild(node, 2);							// if(false), therefore do 'else' statement
 		return data;
 	}
@@ -170,21 +373,78 @@ public class Parser implements SiliVisitor {
 	public Object visit(ASTForLoop node, Object data) {
 		// loop initialisation
 		doChild(node, 0);
+		LoopOptimiser.Loop loop = (LoopOptimiser.Loop)node.optimised;
+		if (loop == null)
+			return loop(node, data);
+		// if the loop's array accesses are in range, they needn't be checked
+		LoopBounds.Guard guard = loop.guard;
+		boolean outerProven = false;
+		if (guard != null) {
+			outerProven = guard.proven;
+			guard.proven = guard.check();
+		}
+		Value[] outerInvariants = loop.enter();
+		try {
+			if (!counted(node, loop, getChild(node, 1)))
+				loop(node, data);
+			return data;
+		} finally {
+			loop.exit(outerInvariants);
+			if (guard != null)
+				guard.proven = outerProven;
+		}
+	}
+	
+	// Execute the test, body and increment of a FOR loop
+	private Object loop(ASTForLoop node, Object data) {
+		BranchProfile.Branch branch = branch(node);
 		while (true) {
 			// evaluate loop test
 			Value hopefullyValueBoolean = doChild(node, 1);
 			if (!(hopefullyValueBoolean instanceof ValueBoolean))
 				throw new ExceptionSemantic("The test expression of a for loop must be boolean.");
-			if (!((ValueBoolean)hopefullyValueBoolean).booleanValue())
+			boolean taken = ((ValueBoolean)hopefullyValueBoolean).booleanValue();
+			branch.count(taken);
+			if (!taken)
 				break;
 			// do loop statement
 			doChild(node, 3);
 			// assign loop increment
 			doChild(node, 2);
+			loopIteration();
 		}
 		return data;
 	}
 	
+	// Execute a counted loop node with its counter in a long, if the counter and the limit in its
+	// test are integers.  Otherwise, return false without changing anything.
+	private boolean counted(ConditionalNode node, LoopOptimiser.Loop loop, SimpleNode test) {
+		Display.Reference counter = loop.getCounter();
+		if (counter == null)
+			return false;
+		Value start = counter.getValue();
+		if (!(start instanceof ValueInteger))
+			return false;
+		Value limit = doChild(test, 1);
+		if (!(limit instanceof ValueInteger))
+			return false;
+		long i = start.longValue();
+		long end = limit.longValue();
+		long step = loop.getStep();
+		SimpleNode[] statements = loop.getStatements();
+		BranchProfile.Branch branch = branch(node);
+		while (loop.test(i, end)) {
+			branch.taken++;
+			for (SimpleNode statement: statements)
+				statement.jjtAccept(this, null);
+			i += step;
+			counter.setValue(ValueInteger.valueOf(i));
+			loopIteration();
+		}
+		branch.notTaken++;
+		return true;
+	}
+	
 	// Process an identifier
 	// This doesn't do anything, but needs to be here because we need an ASTIdentifier node.
 	public Object visit(ASTIdentifier node, Object data) {
@@ -193,91 +453,83 @@ public class Parser implements SiliVisitor {
 	
 	// Dereference a variable or parameter, and return its value.
 	public Object visit(ASTDereference node, Object data) {
-		Display.Reference reference;
-		if (node.optimised == null) {
-			String name = node.tokenValue;
-			reference = scope.findReference(name);
-			if (reference == null)
-				throw new ExceptionSemantic("Variable or parameter " + name + " is undefined.");
-			node.optimised = reference;
-		} else
-			reference = (Display.Reference)node.optimised;
-		return reference.getValue();
+		Display.Reference reference = (Display.Reference)node.optimised;
+		Value value = (reference == null) ? null : reference.getValue();
+		if (value == null)
+			throw new ExceptionSemantic("Variable or parameter " + node.tokenValue + " is undefined.");
+		return value;
 	}
 	
 	// Execute an assignment statement.
 	public Object visit(ASTAssignment node, Object data) {
-		Display.Reference reference;
-		if (node.optimised == null) {
-			String name = getTokenOfChild(node, 0);
-			reference = scope.findReference(name);
-			if (reference == null)
-				reference = scope.defineVariable(name);
-			node.optimised = reference;
-		} else
-			reference = (Display.Reference)node.optimised;
-		reference.setValue(doChild(node, 1));
+		((Display.Reference)node.optimised).setValue(doChild(node, 1));
 		return data;
 	}
 
-	// OR
+	// OR.  The right operand is only evaluated if the left one isn't true.
 	public Object visit(ASTOr node, Object data) {
-		return doChild(node, 0).or(doChild(node, 1));
+		Value left = doChild(node, 0);
+		boolean decided = left == ValueBoolean.TRUE;
+		branch(node).count(decided);
+		return decided ? left : left.or(doChild(node, 1));
 	}
 
-	// AND
+	// AND.  The right operand is only evaluated if the left one isn't false.
 	public Object visit(ASTAnd node, Object data) {
-		return doChild(node, 0).and(doChild(node, 1));
+		Value left = doChild(node, 0);
+		boolean decided = left == ValueBoolean.FALSE;
+		branch(node).count(decided);
+		return decided ? left : left.and(doChild(node, 1));
 	}
 
 	// ==
 	public Object visit(ASTCompEqual node, Object data) {
-		return doChild(node, 0).eq(doChild(node, 1));
+		return specialiser.apply(node, Specialiser.EQ);
 	}
 
 	// !=
 	public Object visit(ASTCompNequal node, Object data) {
-		return doChild(node, 0).neq(doChild(node, 1));
+		return specialiser.apply(node, Specialiser.NEQ);
 	}
 
 	// >=
 	public Object visit(ASTCompGTE node, Object data) {
-		return doChild(node, 0).gte(doChild(node, 1));
+		return specialiser.apply(node, Specialiser.GTE);
 	}
 
 	// <=
 	public Object visit(ASTCompLTE node, Object data) {
-		return doChild(node, 0).lte(doChild(node, 1));
+		return specialiser.apply(node, Specialiser.LTE);
 	}
 
 	// >
 	public Object visit(ASTCompGT node, Object data) {
-		return doChild(node, 0).gt(doChild(node, 1));
+		return specialiser.apply(node, Specialiser.GT);
 	}
 
 	// <
 	public Object visit(ASTCompLT node, Object data) {
-		return doChild(node, 0).lt(doChild(node, 1));
+		return specialiser.apply(node, Specialiser.LT);
 	}
 
 	// +
 	public Object visit(ASTAdd node, Object data) {
-		return doChild(node, 0).add(doChild(node, 1));
+		return specialiser.apply(node, Specialiser.ADD);
 	}
 
 	// -
 	public Object visit(ASTSubtract node, Object data) {
-		return doChild(node, 0).subtract(doChild(node, 1));
+		return specialiser.apply(node, Specialiser.SUBTRACT);
 	}
 
 	// *
 	public Object visit(ASTTimes node, Object data) {
-		return doChild(node, 0).mult(doChild(node, 1));
+		return specialiser.apply(node, Specialiser.MULT);
 	}
 
 	// /
 	public Object visit(ASTDivide node, Object data) {
-		return doChild(node, 0).div(doChild(node, 1));
+		return specialiser.apply(node, Specialiser.DIV);
 	}
 
 	// NOT
@@ -319,40 +571,57 @@ public class Parser implements SiliVisitor {
 	// Return true literal
 	public Object visit(ASTTrue node, Object data) {
 		if (node.optimised == null)
-			node.optimised = new ValueBoolean(true);
+			node.optimised = ValueBoolean.TRUE;
 		return node.optimised;
 	}
 
 	// Return false literal
 	public Object visit(ASTFalse node, Object data) {
 		if (node.optimised == null)
-			node.optimised = new ValueBoolean(false);
+			node.optimised = ValueBoolean.FALSE;
 		return node.optimised;
 	}
 
 	// While loop
 	public Object visit(ASTWhileLoop node, Object data) {
+		LoopOptimiser.Loop loop = (LoopOptimiser.Loop)node.optimised;
+		if (loop == null)
+			return loop(node, data);
+		Value[] outerInvariants = loop.enter();
+		try {
+			if (!counted(node, loop, getChild(node, 0)))
+				loop(node, data);
+			return data;
+		} finally {
+			loop.exit(outerInvariants);
+		}
+	}
+	
+	// Execute the test and body of a WHILE loop
+	private Object loop(ASTWhileLoop node, Object data) {
+		BranchProfile.Branch branch = branch(node);
 		while (true) {
 			Value hopefullyBoolean = doChild(node, 0);
 			if (!(hopefullyBoolean instanceof ValueBoolean))
 				throw new ExceptionSemantic("While loop expects boolean condition.");
-			if (!((ValueBoolean) hopefullyBoolean).booleanValue())
+			boolean taken = ((ValueBoolean) hopefullyBoolean).booleanValue();
+			branch.count(taken);
+			if (!taken)
 				break;
 			doChild(node, 1);
+			loopIteration();
 		}
 		return data;
 	}
 		
 	// Array definition
 	public Object visit(ASTArrayDefine node, Object data) {
-		if (node.optimised != null)
-			return data;
-		String identifier = getTokenOfChild(node, 0);
-		if (arrayStore.get(identifier) != null)
-			throw new ExceptionSemantic("Array " + identifier + " is already defined.");
-		ArrayList<Value> array = new ArrayList<Value>();
-		doChild(node, 1, array);
-		arrayStore.put(identifier, array);
+		Display.Reference reference = (Display.Reference)node.optimised;
+		if (reference.getValue() instanceof ValueArray)
+			throw new ExceptionSemantic("Array " + getTokenOfChild(node, 0) + " is already defined.");
+		ArrayList<Value> elements = new ArrayList<Value>();
+		doChild(node, 1, elements);
+		reference.setValue(new ValueArray(elements.toArray(new Value[elements.size()])));
 		return data;
 	}
 
@@ -366,69 +635,65 @@ public class Parser implements SiliVisitor {
 		return data;
 	}
 	
-	// Array assignment
-	public Object visit(ASTArrayAssignment node, Object data) {
-		String identifier = getTokenOfChild(node, 0);
-		ArrayList<Value> array = arrayStore.get(identifier);
-		if (array == null) {
-			throw new ExceptionSemantic("Array " + identifier + " is undefined.");
-		}
-		Value index = doChild(node, 1);
+	// Get the array an array assignment or invocation refers to
+	private ValueArray getArray(SimpleNode node) {
+		Display.Reference reference = LoopBounds.getReference(node);
+		Value value = (reference == null) ? null : reference.getValue();
+		if (!(value instanceof ValueArray))
+			throw new ExceptionSemantic("Array " + getTokenOfChild(node, 0) + " is undefined.");
+		return (ValueArray)value;
+	}
+	
+	// Check an array index
+	private static int getIndex(ValueArray array, Value index) {
 		if (!(index instanceof ValueInteger))
 			throw new ExceptionSemantic("Array index must be integer value.");
-		int indexValue = (int) index.longValue();
-		if (indexValue >= array.size()) {
+		long indexValue = index.longValue();
+		if (indexValue < 0 || indexValue >= array.size())
 			throw new ExceptionSemantic("Array out of bounds " + indexValue);
+		return (int)indexValue;
+	}
+	
+	// True if an array access is in a loop that has proven it in range
+	private static boolean isProven(SimpleNode node) {
+		return node.optimised instanceof LoopBounds.Access && ((LoopBounds.Access)node.optimised).guard.proven;
+	}
+	
+	// Array assignment
+	public Object visit(ASTArrayAssignment node, Object data) {
+		if (isProven(node)) {
+			ValueArray array = (ValueArray)((LoopBounds.Access)node.optimised).array.getValue();
+			array.set((int)doChild(node, 1).longValue(), doChild(node, 2));
+			return data;
 		}
-		array.set(indexValue, doChild(node, 2));
+		ValueArray array = getArray(node);
+		int index = getIndex(array, doChild(node, 1));
+		array.set(index, doChild(node, 2));
 		return data;
 	}
 
 	// Array invocation
 	public Object visit(ASTArrayInvoke node, Object data) {
-		String identifier = getTokenOfChild(node, 0);
-		ArrayList<Value> array = arrayStore.get(identifier);
-		if (array == null) {
-			throw new ExceptionSemantic("Array " + identifier + " is undefined.");
-		}
-		Value index = doChild(node, 1);
-		if (!(index instanceof ValueInteger))
-			throw new ExceptionSemantic("Array index must be integer value.");
-		int indexValue = (int) index.longValue();
-
-		if (indexValue >= array.size()) {
-			throw new ExceptionSemantic("Array out of bounds " + indexValue);
+		if (isProven(node)) {
+			ValueArray array = (ValueArray)((LoopBounds.Access)node.optimised).array.getValue();
+			return array.get((int)doChild(node, 1).longValue());
 		}
-		Value element = array.get(indexValue);
-		return element;
+		ValueArray array = getArray(node);
+		return array.get(getIndex(array, doChild(node, 1)));
 	}
 	
 	// Execute the PRINT statement
 	public Object visit(ASTPrint node, Object data) {
-		String identifier = getTokenOfChild(node, 0);
-		ArrayList<Value> array = arrayStore.get(identifier);
-		if (array == null) {
-			System.out.println(doChild(node, 0));
-		} else {
-			int arraySize = array.size();
-			String listValues = "[ ";
-			for (int index = 0; index < arraySize; index++) {     				
-				if (index == arraySize - 1) {
-					listValues += array.get(index);       
-				} else {				
-					listValues += array.get(index) + ", ";       
-				}
-			}  
-			System.out.println(listValues + " ]");      
-		}
+		out.println(doChild(node, 0));
 		return data;
 	}
 		
 	// Terminate program
 	public Object visit(ASTExit node, Object data) {
-		System.out.println("Program has been terminated ...");
-		System.exit(0);
-		return true;
+		ExceptionExit exit = new ExceptionExit();
+		out.println(exit.getMessage());
+		out.flush();
+		throw exit;
 	}
 
 	// Square Root
@@ -500,7 +765,8 @@ public class Parser implements SiliVisitor {
 
 	// PI - Mathematical constant, the ratio of circumference of a circle to it's diameter (3.14159...)
 	public Object visit(ASTPi node, Object data) {
-		Value pi = new ValueRational(0);
-		return pi.pi();
+		if (node.optimised == null)
+			node.optimised = new ValueRational(0).pi();
+		return node.optimised;
 	}
 }
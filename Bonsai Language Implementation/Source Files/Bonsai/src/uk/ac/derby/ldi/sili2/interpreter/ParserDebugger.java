@@ -1,5 +1,7 @@
 package uk.ac.derby.ldi.sili2.interpreter;
 
+import java.util.Arrays;
+
 import uk.ac.derby.ldi.sili2.parser.ast.*;
 
 public class ParserDebugger implements SiliVisitor {
@@ -23,6 +25,25 @@ public class ParserDebugger implements SiliVisitor {
 		return data;		
 	}
 	
+	/** Debugging dump of a program held in a FlatTree, the same as that of its nodes.  The
+	 * nodes are read in order, keeping the ends of the nodes around each to find its depth.
+	 */
+	public void dump(FlatTree tree) {
+		System.out.println("Code");
+		int[] ends = new int[16];
+		int depth = 0;
+		for (int node = 0; node < tree.size(); node++) {
+			while (depth > 0 && ends[depth - 1] <= node)
+				depth--;
+			indent = depth + 1;
+			System.out.println(indentString() + SiliTreeConstants.jjtNodeName[tree.getKind(node)]);
+			if (depth == ends.length)
+				ends = Arrays.copyOf(ends, depth * 2);
+			ends[depth++] = tree.getNext(node);
+		}
+		indent = 0;
+	}
+
 	public Object visit(SimpleNode node, Object data) {
 		System.out.println(node + ": acceptor not implemented in subclass?");
 		return data;
@@ -34,12 +55,6 @@ public class ParserDebugger implements SiliVisitor {
 		return data;
 	}
 	
-	// Execute a statement
-	public Object visit(ASTStatement node, Object data) {
-		dump(node, data);
-		return data;
-	}
-
 	// Execute a block
 	public Object visit(ASTBlock node, Object data) {
 		dump(node, data);
@@ -113,12 +128,6 @@ public class ParserDebugger implements SiliVisitor {
 		return data;
 	}
 	
-	// Execute the WRITE statement
-	public Object visit(ASTWrite node, Object data) {
-		dump(node, data);
-		return data;
-	}
-	
 	// Execute an assignment statement, by popping a value off the stack and assigning it
 	// to a variable.
 	public Object visit(ASTAssignment node, Object data) {
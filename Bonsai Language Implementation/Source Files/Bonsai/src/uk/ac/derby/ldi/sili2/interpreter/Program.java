@@ -0,0 +1,98 @@
+package uk.ac.derby.ldi.sili2.interpreter;
+
+import java.io.PrintStream;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.Map;
+
+import uk.ac.derby.ldi.sili2.parser.ast.ASTCode;
+import uk.ac.derby.ldi.sili2.parser.ast.ParseException;
+import uk.ac.derby.ldi.sili2.parser.ast.Sili;
+import uk.ac.derby.ldi.sili2.values.Value;
+
+/** A Sili program that has been parsed and compiled once, and may then be executed any
+ * number of times, by any number of threads at once.
+ *
+ * The program is compiled by VMCompiler and its syntax tree is dropped, since the Parser
+ * keeps the state of an execution in the tree.  Execution doesn't change the CodeBlocks or
+ * FunctionDefinitions: each one has its own VirtualMachine, which holds its display, its
+ * stacks and the functions it has defined.
+ *
+ * A program compiled with host variables may use variables it never assigns.  They are
+ * given values by execute(), which fails if one without a value is used.
+ */
+public final class Program {
+
+	// The size of the buffer of output for a stream, in bytes
+	private static final int outputCapacity = 8192;
+
+	private final FunctionDefinition main;
+	private final String[] variables;
+
+	private Program(FunctionDefinition main) {
+		this.main = main;
+		variables = main.getVariableNames();
+	}
+
+	/** Parse and compile a program, optionally folding constants first. */
+	public static Program compile(Reader source, boolean optimise) throws ParseException {
+		return compile(source, optimise, false);
+	}
+
+	/** Parse and compile a program, optionally folding constants first and allowing host variables. */
+	public static Program compile(Reader source, boolean optimise, boolean hostVariables) throws ParseException {
+		ASTCode program = new Sili(source).code();
+		if (optimise)
+			new Optimiser().optimise(program);
+		return new Program(new VMCompiler().compile(program, hostVariables));
+	}
+
+	/** Get the names of the variables of the main program. */
+	public String[] getVariables() {
+		return variables.clone();
+	}
+
+	/** Execute the program, writing its output to a stream.  EXIT ends the execution normally.
+	 * Other errors are thrown as ExceptionSemantic.
+	 */
+	public void execute(PrintStream out) {
+		execute(out, Interpreter.getDefaultStackSize());
+	}
+
+	/** Execute the program with a given memory for nested function calls, in bytes. */
+	public void execute(PrintStream out, long stackSize) {
+		execute(out, stackSize, null);
+	}
+
+	/** Execute the program, starting its variables with the values given for them in a map.
+	 * When it ends, put the value of each of its variables that has one in the map.
+	 */
+	public void execute(PrintStream out, long stackSize, Map<String, Value> values) {
+		OutputSink sink = new OutputSink(out, Charset.defaultCharset(), outputCapacity, false);
+		try {
+			execute(sink, stackSize, values);
+		} finally {
+			sink.flush();
+		}
+	}
+
+	/** Execute the program, writing its output to a sink, which is not flushed. */
+	void execute(OutputSink out, long stackSize, Map<String, Value> values) {
+		FunctionInvocation globals = new FunctionInvocation(main);
+		if (values != null)
+			for (int slot=0; slot<variables.length; slot++)
+				globals.setValue(slot, values.get(variables[slot]));
+		VirtualMachine vm = new VirtualMachine(stackSize, null);
+		vm.setOutput(out);
+		try {
+			vm.execute(globals);
+		} catch (ExceptionExit e) {
+			// EXIT has ended the program
+		}
+		if (values != null)
+			for (int slot=0; slot<variables.length; slot++)
+				if (globals.getValue(slot) != null)
+					values.put(variables[slot], globals.getValue(slot));
+	}
+
+}
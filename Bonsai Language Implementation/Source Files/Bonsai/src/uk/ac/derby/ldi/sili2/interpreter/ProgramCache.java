@@ -0,0 +1,89 @@
+package uk.ac.derby.ldi.sili2.interpreter;
+
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import uk.ac.derby.ldi.sili2.parser.ast.ParseException;
+
+/** Programs compiled from source, kept for reuse when the same source is given again.
+ *
+ * A program is found by the SHA-256 hash of its source, so the cache doesn't keep the
+ * source itself.  At most a given number of programs are kept, and the least recently
+ * used is dropped to make room for a new one.  Threads may share a cache.
+ */
+class ProgramCache {
+
+	private final LinkedHashMap<String, Program> programs;
+
+	private long hits = 0;
+	private long misses = 0;
+
+	/** Ctor, given the most programs to keep. */
+	ProgramCache(final int capacity) {
+		programs = new LinkedHashMap<String, Program>(16, 0.75f, true) {
+			private static final long serialVersionUID = 0;
+
+			protected boolean removeEldestEntry(Map.Entry<String, Program> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+
+	/** Return the SHA-256 hash of a source, in hexadecimal. */
+	static String hash(String source) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(source.getBytes(StandardCharsets.UTF_8));
+			StringBuilder hex = new StringBuilder(digest.length * 2);
+			for (byte b: digest)
+				hex.append(String.format("%02x", b));
+			return hex.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new ExceptionSemantic(e.getMessage());
+		}
+	}
+
+	/** Get the program compiled from a source, with host variables, compiling it if it isn't kept. */
+	Program get(String source) throws ParseException {
+		String key = hash(source);
+		synchronized (this) {
+			Program program = programs.get(key);
+			if (program != null) {
+				hits++;
+				return program;
+			}
+			misses++;
+		}
+		// Compile outside the lock, so other threads can use the cache meanwhile.  If two
+		// threads compile the same source, both programs work and the second one is kept.
+		Program program = Program.compile(new StringReader(source), false, true);
+		synchronized (this) {
+			programs.put(key, program);
+		}
+		return program;
+	}
+
+	/** Get the number of programs kept. */
+	synchronized int size() {
+		return programs.size();
+	}
+
+	/** Get the number of times a program was found. */
+	synchronized long getHits() {
+		return hits;
+	}
+
+	/** Get the number of times a program had to be compiled. */
+	synchronized long getMisses() {
+		return misses;
+	}
+
+	/** Drop every program. */
+	synchronized void clear() {
+		programs.clear();
+	}
+
+}
@@ -0,0 +1,223 @@
+package uk.ac.derby.ldi.sili2.interpreter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+
+import uk.ac.derby.ldi.sili2.values.*;
+
+/** The binary form of a program compiled by VMCompiler, so that it can be run again
+ * without being parsed and compiled.
+ *
+ * The form starts with a pool of every string the program uses: names of functions and
+ * variables, messages and string literals, each once.  Then come every FunctionDefinition
+ * the program's code refers to, with its variables in slot order, and the CodeBlock of
+ * each.  Other literals, including folded constants, are kept by type.  Strings are
+ * referred to by their position in the pool.  Integers are written in as few bytes as
+ * their size needs, seven bits to a byte, and a string is its length followed by its UTF-8.
+ */
+class ProgramFile {
+
+	/** Writes the body of a program, collecting its strings into the pool. */
+	private static final class Writer {
+		final ByteArrayOutputStream body = new ByteArrayOutputStream();
+		final DataOutputStream out = new DataOutputStream(body);
+		final ArrayList<String> pool = new ArrayList<String>();
+		final HashMap<String, Integer> poolIndex = new HashMap<String, Integer>();
+
+		void writeNumber(int n) throws IOException {
+			ProgramFile.writeNumber(out, n);
+		}
+
+		void writeString(String s) throws IOException {
+			Integer index = poolIndex.get(s);
+			if (index == null) {
+				index = Integer.valueOf(pool.size());
+				pool.add(s);
+				poolIndex.put(s, index);
+			}
+			writeNumber(index.intValue());
+		}
+	}
+
+	// "SILI", and the version of the format.  Change the version when the form or the opcodes change.
+	private static final int magic = 0x53494c49;
+	static final int formatVersion = 2;
+
+	private static final int literalInteger = 0;
+	private static final int literalRational = 1;
+	private static final int literalBoolean = 2;
+	private static final int literalString = 3;
+
+	private static final int flagReturns = 1;
+	private static final int flagPure = 2;
+
+	/** Write the compiled form of a program, given its main definition. */
+	static void write(FunctionDefinition main, OutputStream stream) throws IOException {
+		// Number the definitions in the order they are reached from the main program
+		ArrayList<FunctionDefinition> definitions = new ArrayList<FunctionDefinition>();
+		IdentityHashMap<FunctionDefinition, Integer> index = new IdentityHashMap<FunctionDefinition, Integer>();
+		definitions.add(main);
+		index.put(main, Integer.valueOf(0));
+		for (int i=0; i<definitions.size(); i++)
+			for (FunctionDefinition definition: definitions.get(i).getCode().functions)
+				if (!index.containsKey(definition)) {
+					index.put(definition, Integer.valueOf(definitions.size()));
+					definitions.add(definition);
+				}
+		Writer writer = new Writer();
+		writer.writeNumber(definitions.size());
+		for (FunctionDefinition definition: definitions) {
+			writer.writeString(definition.getName());
+			writer.writeNumber(definition.getLevel());
+			writer.writeNumber(definition.getNumber());
+			writer.writeNumber((definition.hasReturn() ? flagReturns : 0) | (definition.isPure() ? flagPure : 0));
+			writer.writeNumber(definition.getParameterCount());
+			String[] variables = definition.getVariableNames();
+			writer.writeNumber(variables.length);
+			for (String variable: variables)
+				writer.writeString(variable);
+		}
+		for (FunctionDefinition definition: definitions) {
+			CodeBlock block = definition.getCode();
+			writer.writeString(block.name);
+			writer.writeNumber(block.maxStack);
+			writer.writeNumber(block.code.length);
+			// Operands may be -1, so words are zigzag encoded to keep small negatives small
+			for (int word: block.code)
+				writer.writeNumber((word << 1) ^ (word >> 31));
+			writer.writeNumber(block.literals.length);
+			for (Value literal: block.literals)
+				writeLiteral(writer, literal);
+			writer.writeNumber(block.names.length);
+			for (String name: block.names)
+				writer.writeString(name);
+			writer.writeNumber(block.functions.length);
+			for (FunctionDefinition function: block.functions)
+				writer.writeNumber(index.get(function).intValue());
+		}
+		writer.out.flush();
+		DataOutputStream out = new DataOutputStream(stream);
+		out.writeInt(magic);
+		out.writeInt(formatVersion);
+		writeNumber(out, writer.pool.size());
+		for (String string: writer.pool) {
+			byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+			writeNumber(out, bytes.length);
+			out.write(bytes);
+		}
+		writer.body.writeTo(out);
+		out.flush();
+	}
+
+	/** Read a program written by write().  Return its main definition, ready to execute.
+	 * Throw IOException if the buffer doesn't hold a program in this version of the form.
+	 */
+	static FunctionDefinition read(ByteBuffer in) throws IOException {
+		try {
+			if (in.getInt() != magic || in.getInt() != formatVersion)
+				throw new IOException("Not a compiled Sili program of format version " + formatVersion + ".");
+			String[] pool = new String[readNumber(in)];
+			for (int i=0; i<pool.length; i++) {
+				byte[] bytes = new byte[readNumber(in)];
+				in.get(bytes);
+				pool[i] = new String(bytes, StandardCharsets.UTF_8);
+			}
+			FunctionDefinition[] definitions = new FunctionDefinition[readNumber(in)];
+			for (int i=0; i<definitions.length; i++) {
+				String name = pool[readNumber(in)];
+				int level = readNumber(in);
+				FunctionDefinition definition = new FunctionDefinition(name, level, readNumber(in));
+				int flags = readNumber(in);
+				if ((flags & flagReturns) != 0)
+					definition.setHasReturn();
+				definition.setPure((flags & flagPure) != 0);
+				int parameterCount = readNumber(in);
+				int variableCount = readNumber(in);
+				for (int slot=0; slot<variableCount; slot++) {
+					if (slot < parameterCount)
+						definition.defineParameter(pool[readNumber(in)]);
+					else
+						definition.defineVariable(pool[readNumber(in)]);
+				}
+				definitions[i] = definition;
+			}
+			for (FunctionDefinition definition: definitions) {
+				String name = pool[readNumber(in)];
+				int maxStack = readNumber(in);
+				int[] code = new int[readNumber(in)];
+				for (int i=0; i<code.length; i++) {
+					int word = readNumber(in);
+					code[i] = (word >>> 1) ^ -(word & 1);
+				}
+				Value[] literals = new Value[readNumber(in)];
+				for (int i=0; i<literals.length; i++)
+					literals[i] = readLiteral(in, pool);
+				String[] names = new String[readNumber(in)];
+				for (int i=0; i<names.length; i++)
+					names[i] = pool[readNumber(in)];
+				FunctionDefinition[] functions = new FunctionDefinition[readNumber(in)];
+				for (int i=0; i<functions.length; i++)
+					functions[i] = definitions[readNumber(in)];
+				definition.setCode(new CodeBlock(name, code, literals, names, functions, maxStack));
+			}
+			return definitions[0];
+		} catch (RuntimeException | ExceptionSemantic e) {
+			// A truncated or damaged file
+			throw new IOException("Damaged compiled Sili program: " + e);
+		}
+	}
+
+	// Write a number that isn't negative, seven bits to a byte, low bits first
+	private static void writeNumber(DataOutputStream out, int n) throws IOException {
+		while ((n & ~0x7f) != 0) {
+			out.writeByte((n & 0x7f) | 0x80);
+			n >>>= 7;
+		}
+		out.writeByte(n);
+	}
+
+	private static int readNumber(ByteBuffer in) {
+		int n = 0;
+		for (int shift = 0; ; shift += 7) {
+			byte b = in.get();
+			n |= (b & 0x7f) << shift;
+			if (b >= 0)
+				return n;
+		}
+	}
+
+	private static void writeLiteral(Writer writer, Value literal) throws IOException {
+		if (literal instanceof ValueInteger) {
+			writer.out.writeByte(literalInteger);
+			writer.out.writeLong(literal.longValue());
+		} else if (literal instanceof ValueRational) {
+			writer.out.writeByte(literalRational);
+			writer.out.writeDouble(literal.doubleValue());
+		} else if (literal instanceof ValueBoolean) {
+			writer.out.writeByte(literalBoolean);
+			writer.out.writeBoolean(literal.booleanValue());
+		} else if (literal instanceof ValueString) {
+			writer.out.writeByte(literalString);
+			writer.writeString(literal.stringValue());
+		} else
+			throw new IOException("A " + literal.getName() + " literal cannot be written.");
+	}
+
+	private static Value readLiteral(ByteBuffer in, String[] pool) throws IOException {
+		switch (in.get()) {
+		case literalInteger: return ValueInteger.valueOf(in.getLong());
+		case literalRational: return new ValueRational(in.getDouble());
+		case literalBoolean: return ValueBoolean.valueOf(in.get() != 0);
+		case literalString: return new ValueString(pool[readNumber(in)]);
+		default: throw new IOException("Unknown literal type.");
+		}
+	}
+
+}
@@ -0,0 +1,478 @@
+package uk.ac.derby.ldi.sili2.interpreter;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+
+import uk.ac.derby.ldi.sili2.parser.ast.*;
+
+/** Static scope resolution.
+ *
+ * Builds a FunctionDefinition for the main program and for every function, and binds
+ * every variable reference and function call to its definition, without executing
+ * anything.  The rules follow the Parser's run-time lookup as closely as a static
+ * analysis can:
+ *
+ * - A function's variables are its parameters plus every name assigned, or defined as
+ *   an array, in its body that is not already a variable of an enclosing function.  Enclosing functions are
+ *   resolved first, but a function only assigns the variables that an enclosing function has
+ *   assigned before the first call that can run the function, as the Parser would have found
+ *   them when the function first ran.  It can use any variable of the functions around it.
+ * - A function can call any function defined in its own body or in the body of an
+ *   enclosing function, regardless of the order of the definitions.
+ *
+ * A program can also be resolved one top-level statement at a time, as it is parsed.  A
+ * statement is then resolved knowing only the statements before it, and the nodes of
+ * earlier statements are forgotten.  A variable assigned by a function is the main
+ * program's only if the main program has assigned it before the function's definition.
+ * A function's use of a function, or of a variable, that the main program defines later
+ * is bound when it does.  Until then, calling the function fails with the error for an
+ * undefined function or variable.
+ *
+ * A program held in a FlatTree is resolved as a whole, the same as its tree of nodes would
+ * be, by making its top-level statements into nodes one at a time.  Only the statements that
+ * define functions are kept as nodes.  Any other statement is made into nodes again when it
+ * runs, and bindStatement() binds it then.
+ *
+ * Given hostVariables, a variable that is used but never defined anywhere becomes a
+ * variable of the main program instead of an error, so that a host can give it a value.
+ *
+ * A function with a return value is pure if it only uses its own variables, and calls
+ * only pure functions, and doesn't print, exit, use arrays or define functions.  Its
+ * result then only depends on its arguments.
+ */
+class Resolver {
+
+	private final int maximumFunctionNesting = 64;
+	private FunctionDefinition[] chain = new FunctionDefinition[maximumFunctionNesting];
+	// The number of each enclosing function's variables that the function being resolved can assign
+	private int[] assignable = new int[maximumFunctionNesting];
+
+	private FunctionDefinition main;
+	private IdentityHashMap<SimpleNode, SlotReference> references = new IdentityHashMap<SimpleNode, SlotReference>();
+	private IdentityHashMap<SimpleNode, FunctionDefinition> callees = new IdentityHashMap<SimpleNode, FunctionDefinition>();
+	private IdentityHashMap<ASTFnDef, FunctionDefinition> definitions = new IdentityHashMap<ASTFnDef, FunctionDefinition>();
+	private IdentityHashMap<ASTFnDef, FunctionDefinition> duplicates = new IdentityHashMap<ASTFnDef, FunctionDefinition>();
+	private IdentityHashMap<FunctionDefinition, BitSet> captured = new IdentityHashMap<FunctionDefinition, BitSet>();
+	private ArrayList<SimpleNode> undefined = new ArrayList<SimpleNode>();
+	private int functionCount = 0;
+	private final boolean hostVariables;
+
+	// When resolving a FlatTree, its top-level statements that define functions, by their node numbers
+	private HashMap<Integer, SimpleNode> kept = new HashMap<Integer, SimpleNode>();
+
+	// When resolving one statement at a time, the nodes in functions whose variable or function wasn't found
+	private final boolean statements;
+	private ArrayList<SimpleNode> pending = new ArrayList<SimpleNode>();
+
+	/** Resolve a program. */
+	Resolver(ASTCode program) {
+		this(program, false);
+	}
+
+	/** Resolve a program, optionally making its undefined variables variables of the main program. */
+	Resolver(ASTCode program, boolean hostVariables) {
+		this.hostVariables = hostVariables;
+		statements = false;
+		main = new FunctionDefinition("%main", 0, functionCount++);
+		resolve(main, program, null);
+		findPureFunctions();
+	}
+
+	/** Resolve a program held in a FlatTree. */
+	Resolver(FlatTree program) {
+		hostVariables = false;
+		statements = false;
+		main = new FunctionDefinition("%main", 0, functionCount++);
+		chain[0] = main;
+		ArrayList<ASTFnDef> nested = new ArrayList<ASTFnDef>();
+		IdentityHashMap<ASTFnDef, Integer> places = new IdentityHashMap<ASTFnDef, Integer>();
+		HashMap<String, Integer> firstRuns = new HashMap<String, Integer>();
+		for (int statement = 0; statement < program.size(); statement = program.getNext(statement)) {
+			SimpleNode node = program.inflate(statement);
+			int count = nested.size();
+			declare(main, node, nested, places, firstRuns);
+			if (nested.size() > count)
+				kept.put(Integer.valueOf(statement), node);
+		}
+		findFirstRuns(nested, places, firstRuns);
+		for (ASTFnDef node: nested)
+			define(main, node);
+		for (int statement = 0; statement < program.size(); statement = program.getNext(statement)) {
+			SimpleNode node = getStatement(statement);
+			if (node != null)
+				bind(0, node);
+			else {
+				node = program.inflate(statement);
+				bind(0, node);
+				forget(node);
+			}
+		}
+		for (ASTFnDef node: nested) {
+			FunctionDefinition inner = definitions.get(node);
+			assignable[0] = firstRuns.get(getTokenOfChild(node, 0)).intValue();
+			resolve(inner, inner.getFunctionBody(), inner.getFunctionReturnExpression());
+		}
+		findPureFunctions();
+	}
+
+	/** Begin resolving a program one top-level statement at a time, with resolveStatement(). */
+	Resolver() {
+		hostVariables = false;
+		statements = true;
+		main = new FunctionDefinition("%main", 0, functionCount++);
+	}
+
+	/** Resolve the next top-level statement, forgetting the nodes of earlier ones.  Throw
+	 * ExceptionSemantic if it uses a variable that isn't defined outside a function.  Return
+	 * the nodes in the functions of earlier statements that are now bound.
+	 */
+	ArrayList<SimpleNode> resolveStatement(SimpleNode statement) {
+		references.clear();
+		callees.clear();
+		definitions.clear();
+		captured.clear();
+		undefined.clear();
+		resolve(main, statement, null);
+		findPureFunctions();
+		ArrayList<SimpleNode> bound = new ArrayList<SimpleNode>();
+		ArrayList<SimpleNode> unbound = new ArrayList<SimpleNode>();
+		for (SimpleNode node: pending) {
+			String name = (node instanceof ASTDereference) ? node.tokenValue : getTokenOfChild(node, 0);
+			if (node instanceof ASTCall || node instanceof ASTFnInvoke) {
+				FunctionDefinition callee = main.findFunction(name);
+				if (callee != null)
+					callees.put(node, callee);
+			} else {
+				int slot = main.getLocalSlotNumber(name);
+				if (slot >= 0)
+					references.put(node, new SlotReference(0, slot));
+			}
+			if (references.containsKey(node) || callees.containsKey(node))
+				bound.add(node);
+			else
+				unbound.add(node);
+		}
+		pending = unbound;
+		checkReferences();
+		return bound;
+	}
+
+	/** Get the nodes of a top-level statement of a FlatTree, by its node number, if it defines
+	 * functions.  Otherwise, return null.
+	 */
+	SimpleNode getStatement(int statement) {
+		return kept.get(Integer.valueOf(statement));
+	}
+
+	/** Bind a top-level statement of a FlatTree that doesn't define functions, made into nodes
+	 * again to run it.  forget() drops the bindings once it has run.
+	 */
+	void bindStatement(SimpleNode statement) {
+		bind(0, statement);
+	}
+
+	/** Drop the bindings of the nodes of a statement. */
+	void forget(SimpleNode node) {
+		references.remove(node);
+		callees.remove(node);
+		for (int i=0; i<node.jjtGetNumChildren(); i++)
+			forget(getChild(node, i));
+	}
+
+	/** Throw ExceptionSemantic if any variable or parameter is used but never defined. */
+	void checkReferences() {
+		if (!undefined.isEmpty())
+			throw new ExceptionSemantic("Variable or parameter " + undefined.get(0).tokenValue + " is undefined.");
+	}
+
+	/** Get the definition of the main program. */
+	FunctionDefinition getMain() {
+		return main;
+	}
+
+	/** Get the definition created for a function definition node. */
+	FunctionDefinition getDefinition(ASTFnDef node) {
+		return definitions.get(node);
+	}
+
+	/** If a function definition node defines a function that already exists in the
+	 * same scope, return the existing definition.  Otherwise, return null.
+	 */
+	FunctionDefinition getDuplicate(ASTFnDef node) {
+		return duplicates.get(node);
+	}
+
+	/** Get the variable referenced by an ASTDereference, ASTAssignment or array node.  Return null
+	 * if it is undefined.  checkReferences() reports that, except for an array access, which fails
+	 * when it runs.
+	 */
+	SlotReference getReference(SimpleNode node) {
+		return references.get(node);
+	}
+
+	/** Get the function invoked by an ASTCall or ASTFnInvoke.  Return null if it is undefined. */
+	FunctionDefinition getCallee(SimpleNode node) {
+		return callees.get(node);
+	}
+
+	/** True if a variable is referenced by a function nested inside the one that owns it. */
+	boolean isCaptured(FunctionDefinition definition, int slot) {
+		BitSet slots = captured.get(definition);
+		return slots != null && slots.get(slot);
+	}
+
+	/** True if the variable a node refers to is a local of the given function that no
+	 * nested function references, so only that function's own statements can assign it.
+	 */
+	boolean isPrivate(FunctionDefinition definition, SimpleNode node) {
+		SlotReference reference = getReference(node);
+		return reference != null && definition.getLevel() > 0 && reference.depth == definition.getLevel()
+				&& !isCaptured(definition, reference.slot);
+	}
+
+	// Get the ith child of a given node.
+	private static SimpleNode getChild(SimpleNode node, int childIndex) {
+		return (SimpleNode)node.jjtGetChild(childIndex);
+	}
+
+	// Get the token value of the ith child of a given node.
+	private static String getTokenOfChild(SimpleNode node, int childIndex) {
+		return getChild(node, childIndex).tokenValue;
+	}
+
+	// Resolve a function, then the functions nested inside it
+	private void resolve(FunctionDefinition definition, SimpleNode body, SimpleNode returnExpression) {
+		int level = definition.getLevel();
+		if (level >= maximumFunctionNesting)
+			throw new ExceptionSemantic("Function " + definition.getName() + " is nested too deeply.");
+		chain[level] = definition;
+		ArrayList<ASTFnDef> nested = new ArrayList<ASTFnDef>();
+		IdentityHashMap<ASTFnDef, Integer> places = new IdentityHashMap<ASTFnDef, Integer>();
+		HashMap<String, Integer> firstRuns = new HashMap<String, Integer>();
+		declare(definition, body, nested, places, firstRuns);
+		if (returnExpression != null)
+			declare(definition, returnExpression, nested, places, firstRuns);
+		findFirstRuns(nested, places, firstRuns);
+		for (ASTFnDef node: nested)
+			define(definition, node);
+		bind(level, body);
+		if (returnExpression != null)
+			bind(level, returnExpression);
+		for (ASTFnDef node: nested) {
+			FunctionDefinition inner = definitions.get(node);
+			assignable[level] = firstRuns.get(getTokenOfChild(node, 0)).intValue();
+			resolve(inner, inner.getFunctionBody(), inner.getFunctionReturnExpression());
+		}
+	}
+
+	// Work out when each nested function can first run, as the number of variables the function
+	// around it has assigned by then.  That is at its first call, or at the first run of a
+	// nested function that calls it.  A function that is never called gets its definition's place.
+	private void findFirstRuns(ArrayList<ASTFnDef> nested, IdentityHashMap<ASTFnDef, Integer> places, HashMap<String, Integer> firstRuns) {
+		ArrayList<HashSet<String>> calls = new ArrayList<HashSet<String>>();
+		for (ASTFnDef node: nested) {
+			HashSet<String> called = new HashSet<String>();
+			findCalls(getChild(node, 2), called);
+			if (node.hasReturn())
+				findCalls(getChild(node, 3), called);
+			calls.add(called);
+		}
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (int i=0; i<nested.size(); i++) {
+				Integer caller = firstRuns.get(getTokenOfChild(nested.get(i), 0));
+				if (caller == null)
+					continue;
+				for (String name: calls.get(i)) {
+					Integer callee = firstRuns.get(name);
+					if (callee == null || caller.intValue() < callee.intValue()) {
+						firstRuns.put(name, caller);
+						changed = true;
+					}
+				}
+			}
+		}
+		for (ASTFnDef node: nested)
+			if (!firstRuns.containsKey(getTokenOfChild(node, 0)))
+				firstRuns.put(getTokenOfChild(node, 0), places.get(node));
+	}
+
+	// Collect the names of the functions called anywhere in part of a function
+	private void findCalls(SimpleNode node, HashSet<String> called) {
+		if (node instanceof ASTCall || node instanceof ASTFnInvoke)
+			called.add(getTokenOfChild(node, 0));
+		for (int i=0; i<node.jjtGetNumChildren(); i++)
+			findCalls(getChild(node, i), called);
+	}
+
+	// Find a variable visible at a given level.  Return null if there isn't one.
+	private SlotReference findReference(String name, int level) {
+		while (level >= 0) {
+			int offset = chain[level].getLocalSlotNumber(name);
+			if (offset >= 0)
+				return new SlotReference(level, offset);
+			level--;
+		}
+		return null;
+	}
+
+	// True if a function at a given level can assign a variable of its own or of an enclosing function
+	private boolean isAssignable(String name, int level) {
+		if (chain[level].getLocalSlotNumber(name) >= 0)
+			return true;
+		while (--level >= 0) {
+			int offset = chain[level].getLocalSlotNumber(name);
+			if (offset >= 0 && offset < assignable[level])
+				return true;
+		}
+		return false;
+	}
+
+	// Find a function visible at a given level.  Return null if there isn't one.
+	private FunctionDefinition findFunction(String name, int level) {
+		while (level >= 0) {
+			FunctionDefinition definition = chain[level].findFunction(name);
+			if (definition != null)
+				return definition;
+			level--;
+		}
+		return null;
+	}
+
+	// Declare the variables assigned in a function body, in the order they are assigned, and
+	// collect its nested function definitions.  Note how many variables are assigned by each
+	// definition and by the first call of each function.
+	private void declare(FunctionDefinition definition, SimpleNode node, ArrayList<ASTFnDef> nested,
+			IdentityHashMap<ASTFnDef, Integer> places, HashMap<String, Integer> firstRuns) {
+		if (node instanceof ASTFnDef) {
+			nested.add((ASTFnDef)node);
+			places.put((ASTFnDef)node, Integer.valueOf(definition.getLocalCount()));
+			return;
+		}
+		if (node instanceof ASTCall || node instanceof ASTFnInvoke) {
+			String name = getTokenOfChild(node, 0);
+			if (!firstRuns.containsKey(name))
+				firstRuns.put(name, Integer.valueOf(definition.getLocalCount()));
+		}
+		for (int i=0; i<node.jjtGetNumChildren(); i++)
+			declare(definition, getChild(node, i), nested, places, firstRuns);
+		if (node instanceof ASTAssignment || node instanceof ASTArrayDefine) {
+			String name = getTokenOfChild(node, 0);
+			if (!isAssignable(name, definition.getLevel()))
+				definition.defineVariable(name);
+		}
+	}
+
+	// Create the definition of a nested function
+	private void define(FunctionDefinition definition, ASTFnDef node) {
+		String fnname = getTokenOfChild(node, 0);
+		FunctionDefinition inner = new FunctionDefinition(fnname, definition.getLevel() + 1, functionCount++);
+		SimpleNode parmlist = getChild(node, 1);
+		for (int i=0; i<parmlist.jjtGetNumChildren(); i++)
+			inner.defineParameter(getTokenOfChild(parmlist, i));
+		inner.setFunctionBody(getChild(node, 2));
+		if (node.hasReturn())
+			inner.setFunctionReturnExpression(getChild(node, 3));
+		FunctionDefinition existing = definition.findFunction(fnname);
+		if (existing != null)
+			duplicates.put(node, existing);
+		else
+			definition.addFunction(inner);
+		definitions.put(node, inner);
+	}
+
+	// Bind the variable references and calls in a function body
+	private void bind(int level, SimpleNode node) {
+		if (node instanceof ASTFnDef)
+			return;
+		if (node instanceof ASTDereference)
+			bindReference(level, node, node.tokenValue, true);
+		else if (node instanceof ASTAssignment || node instanceof ASTArrayDefine)
+			bindReference(level, node, getTokenOfChild(node, 0), true);
+		else if (node instanceof ASTArrayAssignment || node instanceof ASTArrayInvoke)
+			bindReference(level, node, getTokenOfChild(node, 0), false);
+		else if (node instanceof ASTCall || node instanceof ASTFnInvoke) {
+			FunctionDefinition callee = findFunction(getTokenOfChild(node, 0), level);
+			if (callee != null)
+				callees.put(node, callee);
+			else if (statements && level > 0)
+				pending.add(node);
+		}
+		for (int i=0; i<node.jjtGetNumChildren(); i++)
+			bind(level, getChild(node, i));
+	}
+
+	// Mark the pure functions.  A function is taken to be pure until it calls one that isn't.
+	private void findPureFunctions() {
+		IdentityHashMap<FunctionDefinition, ArrayList<FunctionDefinition>> calls = new IdentityHashMap<FunctionDefinition, ArrayList<FunctionDefinition>>();
+		for (FunctionDefinition definition: definitions.values()) {
+			ArrayList<FunctionDefinition> called = new ArrayList<FunctionDefinition>();
+			if (definition.hasReturn() && isPure(definition, definition.getFunctionBody(), called)
+					&& isPure(definition, definition.getFunctionReturnExpression(), called)) {
+				definition.setPure(true);
+				calls.put(definition, called);
+			}
+		}
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (FunctionDefinition definition: calls.keySet())
+				if (definition.isPure())
+					for (FunctionDefinition callee: calls.get(definition))
+						if (!callee.isPure()) {
+							definition.setPure(false);
+							changed = true;
+							break;
+						}
+		}
+	}
+
+	// True if part of a function only uses the function's own variables, and does nothing but
+	// compute a value.  Collect the functions it calls.
+	private boolean isPure(FunctionDefinition definition, SimpleNode node, ArrayList<FunctionDefinition> called) {
+		if (node instanceof ASTPrint || node instanceof ASTExit || node instanceof ASTFnDef || node instanceof ASTArrayDefine
+				|| node instanceof ASTArrayAssignment || node instanceof ASTArrayInvoke)
+			return false;
+		if (node instanceof ASTDereference || node instanceof ASTAssignment) {
+			SlotReference reference = references.get(node);
+			if (reference == null || reference.depth != definition.getLevel())
+				return false;
+		} else if (node instanceof ASTCall || node instanceof ASTFnInvoke) {
+			FunctionDefinition callee = callees.get(node);
+			if (callee == null)
+				return false;
+			called.add(callee);
+		}
+		for (int i=0; i<node.jjtGetNumChildren(); i++)
+			if (!isPure(definition, getChild(node, i), called))
+				return false;
+		return true;
+	}
+
+	private void bindReference(int level, SimpleNode node, String name, boolean required) {
+		SlotReference reference = findReference(name, level);
+		if (reference == null && hostVariables)
+			reference = new SlotReference(0, main.defineVariable(name));
+		if (reference == null) {
+			if (statements && level > 0)
+				pending.add(node);
+			else if (required)
+				undefined.add(node);
+			return;
+		}
+		references.put(node, reference);
+		if (reference.depth > 0 && reference.depth < level) {
+			BitSet slots = captured.get(chain[reference.depth]);
+			if (slots == null) {
+				slots = new BitSet();
+				captured.put(chain[reference.depth], slots);
+			}
+			slots.set(reference.slot);
+		}
+	}
+
+}
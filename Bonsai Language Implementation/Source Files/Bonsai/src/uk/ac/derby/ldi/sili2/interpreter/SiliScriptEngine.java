@@ -0,0 +1,264 @@
+package uk.ac.derby.ldi.sili2.interpreter;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.script.AbstractScriptEngine;
+import javax.script.Bindings;
+import javax.script.Compilable;
+import javax.script.CompiledScript;
+import javax.script.ScriptContext;
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineFactory;
+import javax.script.ScriptException;
+import javax.script.SimpleBindings;
+
+import uk.ac.derby.ldi.sili2.parser.ast.ParseException;
+import uk.ac.derby.ldi.sili2.parser.ast.TokenMgrError;
+import uk.ac.derby.ldi.sili2.values.*;
+
+/** A javax.script engine for Sili, so that a Java program can run Sili scripts.
+ *
+ * Scripts are compiled to Programs and run on the virtual machine.  eval() finds the
+ * Program for a source in its factory's cache, so a script is only parsed the first time
+ * it is run.  compile() returns a CompiledScript, which runs its Program directly.
+ *
+ * A variable that a script uses but never assigns takes its value from the bindings of
+ * the context.  Longs, Integers, Shorts and Bytes become integers, other Numbers become
+ * rationals, and Booleans, Strings and Lists or arrays of any of these become Sili values;
+ * a Value is used as it is.  When the script ends, each variable it assigned, and each
+ * array, is put in the engine bindings as a Long, Double, Boolean, String or List.
+ * eval() returns null.  PRINT writes to the writer of the context.  EXIT ends the script,
+ * and other errors are thrown as ScriptException.
+ *
+ * Executions don't share any state, so an engine may run scripts on many threads at once.
+ */
+public class SiliScriptEngine extends AbstractScriptEngine implements Compilable {
+
+	/** A script compiled by compile(). */
+	private static final class SiliCompiledScript extends CompiledScript {
+		private final SiliScriptEngine engine;
+		private final Program program;
+
+		SiliCompiledScript(SiliScriptEngine engine, Program program) {
+			this.engine = engine;
+			this.program = program;
+		}
+
+		public Object eval(ScriptContext context) throws ScriptException {
+			return engine.execute(program, context);
+		}
+
+		public ScriptEngine getEngine() {
+			return engine;
+		}
+	}
+
+	/** Decodes the UTF-8 that an OutputSink writes, and writes it to a Writer. */
+	private static final class WriterOutputStream extends OutputStream {
+		private final Writer writer;
+		private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+				.onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+		private final ByteBuffer bytes = ByteBuffer.allocate(1024);
+		private final CharBuffer chars = CharBuffer.allocate(1024);
+
+		WriterOutputStream(Writer writer) {
+			this.writer = writer;
+		}
+
+		public void write(int b) throws IOException {
+			write(new byte[] {(byte)b}, 0, 1);
+		}
+
+		public void write(byte[] b, int offset, int length) throws IOException {
+			while (length > 0) {
+				int count = Math.min(length, bytes.remaining());
+				bytes.put(b, offset, count);
+				offset += count;
+				length -= count;
+				decode();
+			}
+		}
+
+		// Decode the bytes written so far, leaving the start of a character split between writes
+		private void decode() throws IOException {
+			bytes.flip();
+			CoderResult result;
+			do {
+				result = decoder.decode(bytes, chars, false);
+				chars.flip();
+				writer.write(chars.array(), 0, chars.limit());
+				chars.clear();
+			} while (result.isOverflow());
+			bytes.compact();
+		}
+
+		public void flush() throws IOException {
+			writer.flush();
+		}
+	}
+
+	// The size of the buffer of output for a script, in bytes
+	private static final int outputCapacity = 8192;
+
+	private final SiliScriptEngineFactory factory;
+
+	/** Ctor, given the factory whose cache holds the engine's programs. */
+	SiliScriptEngine(SiliScriptEngineFactory factory) {
+		this.factory = factory;
+	}
+
+	public ScriptEngineFactory getFactory() {
+		return factory;
+	}
+
+	public Bindings createBindings() {
+		return new SimpleBindings();
+	}
+
+	public Object eval(String script, ScriptContext context) throws ScriptException {
+		Program program;
+		try {
+			program = factory.getCache().get(script);
+		} catch (ParseException | TokenMgrError | ExceptionSemantic e) {
+			throw compileError(e, context);
+		}
+		return execute(program, context);
+	}
+
+	public Object eval(Reader reader, ScriptContext context) throws ScriptException {
+		return eval(read(reader), context);
+	}
+
+	public CompiledScript compile(String script) throws ScriptException {
+		try {
+			return new SiliCompiledScript(this, factory.getCache().get(script));
+		} catch (ParseException | TokenMgrError | ExceptionSemantic e) {
+			throw compileError(e, getContext());
+		}
+	}
+
+	public CompiledScript compile(Reader script) throws ScriptException {
+		return compile(read(script));
+	}
+
+	// Read all of a script
+	private static String read(Reader reader) throws ScriptException {
+		StringBuilder script = new StringBuilder();
+		char[] buffer = new char[8192];
+		try {
+			int count;
+			while ((count = reader.read(buffer)) >= 0)
+				script.append(buffer, 0, count);
+		} catch (IOException e) {
+			throw new ScriptException(e);
+		}
+		return script.toString();
+	}
+
+	// Return a ScriptException for a script that could not be compiled, with its position if known
+	private static ScriptException compileError(Throwable e, ScriptContext context) {
+		Object file = context.getAttribute(ScriptEngine.FILENAME);
+		String fileName = (file == null) ? null : file.toString();
+		ScriptException error;
+		if (e instanceof ParseException && ((ParseException)e).currentToken != null && ((ParseException)e).currentToken.next != null) {
+			ParseException parseError = (ParseException)e;
+			error = new ScriptException(e.getMessage(), fileName, parseError.currentToken.next.beginLine, parseError.currentToken.next.beginColumn);
+		} else
+			error = new ScriptException(e.getMessage(), fileName, -1);
+		error.initCause(e);
+		return error;
+	}
+
+	// Run a program with the variables, writer and bindings of a context
+	private Object execute(Program program, ScriptContext context) throws ScriptException {
+		HashMap<String, Value> values = new HashMap<String, Value>();
+		for (String name: program.getVariables()) {
+			Object value = context.getAttribute(name);
+			if (value != null)
+				values.put(name, toValue(name, value));
+		}
+		HashMap<String, Value> given = new HashMap<String, Value>(values);
+		Writer writer = context.getWriter();
+		OutputSink out = new OutputSink(new WriterOutputStream(writer), StandardCharsets.UTF_8, outputCapacity, false);
+		try {
+			program.execute(out, Interpreter.getDefaultStackSize(), values);
+		} catch (ExceptionSemantic | RuntimeException e) {
+			ScriptException error = new ScriptException(e.getMessage());
+			error.initCause(e);
+			throw error;
+		} finally {
+			out.flush();
+		}
+		Bindings bindings = context.getBindings(ScriptContext.ENGINE_SCOPE);
+		for (Map.Entry<String, Value> variable: values.entrySet()) {
+			Value value = variable.getValue();
+			if (value != given.get(variable.getKey()) || value instanceof ValueArray)
+				bindings.put(variable.getKey(), toObject(value));
+		}
+		return null;
+	}
+
+	/** Convert a Java object to a Sili value. */
+	static Value toValue(String name, Object object) throws ScriptException {
+		if (object instanceof Value)
+			return (Value)object;
+		if (object instanceof Long || object instanceof Integer || object instanceof Short || object instanceof Byte)
+			return ValueInteger.valueOf(((Number)object).longValue());
+		if (object instanceof Number)
+			return new ValueRational(((Number)object).doubleValue());
+		if (object instanceof Boolean)
+			return ValueBoolean.valueOf(((Boolean)object).booleanValue());
+		if (object instanceof CharSequence || object instanceof Character)
+			return new ValueString(object.toString());
+		if (object instanceof List<?>)
+			return toArray(name, ((List<?>)object).toArray());
+		if (object instanceof Object[])
+			return toArray(name, (Object[])object);
+		throw new ScriptException("Variable " + name + " cannot be given a " + object.getClass().getName() + ".");
+	}
+
+	// Convert the elements of a List or array to a Sili array
+	private static Value toArray(String name, Object[] elements) throws ScriptException {
+		Value[] values = new Value[elements.length];
+		for (int i=0; i<elements.length; i++) {
+			if (elements[i] == null)
+				throw new ScriptException("Variable " + name + " cannot be given an array with a null element.");
+			values[i] = toValue(name, elements[i]);
+		}
+		return new ValueArray(values);
+	}
+
+	/** Convert a Sili value to a Java object. */
+	static Object toObject(Value value) {
+		if (value == null)
+			return null;
+		if (value instanceof ValueInteger)
+			return Long.valueOf(value.longValue());
+		if (value instanceof ValueRational)
+			return Double.valueOf(value.doubleValue());
+		if (value instanceof ValueBoolean)
+			return Boolean.valueOf(value.booleanValue());
+		if (value instanceof ValueArray) {
+			ValueArray array = (ValueArray)value;
+			ArrayList<Object> elements = new ArrayList<Object>(array.size());
+			for (int i=0; i<array.size(); i++)
+				elements.add(toObject(array.get(i)));
+			return elements;
+		}
+		return value.stringValue();
+	}
+
+}
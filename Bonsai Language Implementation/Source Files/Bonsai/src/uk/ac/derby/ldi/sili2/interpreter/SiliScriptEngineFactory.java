@@ -0,0 +1,108 @@
+package uk.ac.derby.ldi.sili2.interpreter;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineFactory;
+
+/** Creates SiliScriptEngines for javax.script.  A ScriptEngineManager finds it by its
+ * entry in META-INF/services.
+ *
+ * The engines a factory creates share a cache of compiled programs, so a script that any
+ * of them has run before is not parsed again.
+ */
+public class SiliScriptEngineFactory implements ScriptEngineFactory {
+
+	private static final int defaultCacheSize = 256;
+
+	private static final List<String> names = Collections.unmodifiableList(Arrays.asList("sili", "Sili", "bonsai"));
+	private static final List<String> extensions = Collections.unmodifiableList(Arrays.asList("sil"));
+	private static final List<String> mimeTypes = Collections.unmodifiableList(Arrays.asList("text/x-sili"));
+
+	private final ProgramCache cache;
+
+	/** Ctor.  Keep up to 256 compiled programs. */
+	public SiliScriptEngineFactory() {
+		this(defaultCacheSize);
+	}
+
+	/** Ctor, given the most compiled programs to keep. */
+	public SiliScriptEngineFactory(int cacheSize) {
+		cache = new ProgramCache(cacheSize);
+	}
+
+	/** Get the cache of compiled programs. */
+	ProgramCache getCache() {
+		return cache;
+	}
+
+	public String getEngineName() {
+		return "Sili";
+	}
+
+	public String getEngineVersion() {
+		return "2.0";
+	}
+
+	public List<String> getExtensions() {
+		return extensions;
+	}
+
+	public List<String> getMimeTypes() {
+		return mimeTypes;
+	}
+
+	public List<String> getNames() {
+		return names;
+	}
+
+	public String getLanguageName() {
+		return "Sili";
+	}
+
+	public String getLanguageVersion() {
+		return "2.0";
+	}
+
+	public Object getParameter(String key) {
+		if (key.equals(ScriptEngine.ENGINE))
+			return getEngineName();
+		if (key.equals(ScriptEngine.ENGINE_VERSION))
+			return getEngineVersion();
+		if (key.equals(ScriptEngine.NAME))
+			return names.get(0);
+		if (key.equals(ScriptEngine.LANGUAGE))
+			return getLanguageName();
+		if (key.equals(ScriptEngine.LANGUAGE_VERSION))
+			return getLanguageVersion();
+		if (key.equals("THREADING"))
+			return "MULTITHREADED";
+		return null;
+	}
+
+	// Sili has no methods, so a method call is a call of a function given the object first
+	public String getMethodCallSyntax(String obj, String m, String... args) {
+		StringBuilder call = new StringBuilder(m + "(" + obj);
+		for (String arg: args)
+			call.append(", " + arg);
+		return call.append(")").toString();
+	}
+
+	public String getOutputStatement(String toDisplay) {
+		return "print(\"" + toDisplay.replace("\"", "'") + "\")";
+	}
+
+	public String getProgram(String... statements) {
+		StringBuilder program = new StringBuilder();
+		for (String statement: statements)
+			program.append(statement).append('\n');
+		return program.toString();
+	}
+
+	public ScriptEngine getScriptEngine() {
+		return new SiliScriptEngine(this);
+	}
+
+}
@@ -0,0 +1,17 @@
+package uk.ac.derby.ldi.sili2.interpreter;
+
+/** A statically resolved variable or parameter: the display depth (i.e., the level
+ * of the function that owns it) and the slot number within that function's frame.
+ */
+final class SlotReference {
+
+	final int depth;
+	final int slot;
+
+	/** Ctor */
+	SlotReference(int depth, int slot) {
+		this.depth = depth;
+		this.slot = slot;
+	}
+
+}
@@ -0,0 +1,266 @@
+package uk.ac.derby.ldi.sili2.interpreter;
+
+import uk.ac.derby.ldi.sili2.parser.ast.SimpleNode;
+import uk.ac.derby.ldi.sili2.values.*;
+
+/** Self-specialising arithmetic and comparison for the Parser.
+ *
+ * The first time a binary operator node runs, the types of its operands decide its
+ * specialisation, which is kept in the node's optimised slot.  Later executions check
+ * the operand types against it and compute the result directly on longs or doubles,
+ * rather than through the Value interface.  If the check fails, the node is rewritten
+ * to GENERIC, which always uses the Value interface.  The results, and the errors, are
+ * the same as those of the Value classes.
+ *
+ * A specialised arithmetic node whose operand is itself a specialised arithmetic node
+ * takes that operand's result as a primitive, so an expression such as a + b * 2 - 1
+ * only boxes its final result.  Comparisons return the shared ValueBoolean instances.
+ */
+class Specialiser {
+
+	/** Operand types a node has been specialised for. */
+	enum Specialisation {
+		INTEGER,		// integer, integer
+		RATIONAL,		// rational, rational
+		MIXED,			// rational, integer
+		GENERIC			// anything
+	}
+
+	/** The state of an operator node, kept in its optimised slot. */
+	static final class Site {
+		final int operator;
+		Specialisation state;
+
+		Site(int operator, Specialisation state) {
+			this.operator = operator;
+			this.state = state;
+		}
+	}
+
+	static final int ADD = 0;
+	static final int SUBTRACT = 1;
+	static final int MULT = 2;
+	static final int DIV = 3;
+	static final int EQ = 4;
+	static final int NEQ = 5;
+	static final int GTE = 6;
+	static final int LTE = 7;
+	static final int GT = 8;
+	static final int LT = 9;
+
+	private Parser parser;
+
+	private int specialised = 0;
+	private int deoptimised = 0;
+	private int generic = 0;
+
+	// Results of the unboxed evaluation methods.  When one returns false, the Value
+	// it got instead is in valueResult.
+	private long longResult;
+	private double doubleResult;
+	private Value valueResult;
+
+	/** Ctor */
+	Specialiser(Parser parser) {
+		this.parser = parser;
+	}
+
+	/** Evaluate a binary operator node. */
+	Value apply(SimpleNode node, int operator) {
+		Site site = (Site)node.optimised;
+		if (site == null) {
+			Value left = parser.doChild(node, 0);
+			Value right = parser.doChild(node, 1);
+			site = new Site(operator, specialise(left, right));
+			node.optimised = site;
+			if (site.state == Specialisation.GENERIC)
+				generic++;
+			else
+				specialised++;
+			return generic(operator, left, right);
+		}
+		switch (site.state) {
+		case INTEGER:
+			if (operator <= DIV)
+				return integer(node, site) ? ValueInteger.valueOf(longResult) : valueResult;
+			if (!integerOperand(node, 0))
+				return deoptimise(node, site, valueResult, parser.doChild(node, 1));
+			long x = longResult;
+			if (!integerOperand(node, 1))
+				return deoptimise(node, site, ValueInteger.valueOf(x), valueResult);
+			return compare(operator, (x == longResult) ? 0 : (x > longResult) ? 1 : -1);
+		case RATIONAL:
+		case MIXED:
+			if (operator <= DIV)
+				return rational(node, site) ? new ValueRational(doubleResult) : valueResult;
+			if (!rationalOperand(node, 0, false))
+				return deoptimise(node, site, valueResult, parser.doChild(node, 1));
+			double d = doubleResult;
+			if (!rationalOperand(node, 1, true))
+				return deoptimise(node, site, new ValueRational(d), valueResult);
+			return compare(operator, (d == doubleResult) ? 0 : (d > doubleResult) ? 1 : -1);
+		default:
+			return generic(operator, parser.doChild(node, 0), parser.doChild(node, 1));
+		}
+	}
+
+	/** Get the number of nodes specialised to operand types. */
+	int getSpecialisedCount() {
+		return specialised;
+	}
+
+	/** Get the number of specialised nodes rewritten to GENERIC because a guard failed. */
+	int getDeoptimisedCount() {
+		return deoptimised;
+	}
+
+	/** Get the number of nodes that were GENERIC from the start. */
+	int getGenericCount() {
+		return generic;
+	}
+
+	// Choose a specialisation for a pair of operands
+	private static Specialisation specialise(Value left, Value right) {
+		if (left instanceof ValueInteger && right instanceof ValueInteger)
+			return Specialisation.INTEGER;
+		if (left instanceof ValueRational && right instanceof ValueRational)
+			return Specialisation.RATIONAL;
+		if (left instanceof ValueRational && right instanceof ValueInteger)
+			return Specialisation.MIXED;
+		return Specialisation.GENERIC;
+	}
+
+	// Evaluate an INTEGER arithmetic node into longResult
+	private boolean integer(SimpleNode node, Site site) {
+		if (!integerOperand(node, 0)) {
+			Value left = valueResult;
+			valueResult = deoptimise(node, site, left, parser.doChild(node, 1));
+			return false;
+		}
+		long x = longResult;
+		if (!integerOperand(node, 1)) {
+			valueResult = deoptimise(node, site, ValueInteger.valueOf(x), valueResult);
+			return false;
+		}
+		switch (site.operator) {
+		case ADD: longResult = x + longResult; break;
+		case SUBTRACT: longResult = x - longResult; break;
+		case MULT: longResult = x * longResult; break;
+		default: longResult = x / longResult;
+		}
+		return true;
+	}
+
+	// Evaluate a RATIONAL or MIXED arithmetic node into doubleResult.  As ValueRational,
+	// the right operand may also be an integer.
+	private boolean rational(SimpleNode node, Site site) {
+		if (!rationalOperand(node, 0, false)) {
+			Value left = valueResult;
+			valueResult = deoptimise(node, site, left, parser.doChild(node, 1));
+			return false;
+		}
+		double x = doubleResult;
+		if (!rationalOperand(node, 1, true)) {
+			valueResult = deoptimise(node, site, new ValueRational(x), valueResult);
+			return false;
+		}
+		switch (site.operator) {
+		case ADD: doubleResult = x + doubleResult; break;
+		case SUBTRACT: doubleResult = x - doubleResult; break;
+		case MULT: doubleResult = x * doubleResult; break;
+		default: doubleResult = x / doubleResult;
+		}
+		return true;
+	}
+
+	// Evaluate an operand that should be an integer into longResult
+	private boolean integerOperand(SimpleNode node, int index) {
+		SimpleNode operand = (SimpleNode)node.jjtGetChild(index);
+		Value value;
+		Site site = arithmetic(operand);
+		if (site != null && site.state == Specialisation.INTEGER) {
+			if (integer(operand, site))
+				return true;
+			value = valueResult;
+		} else
+			value = parser.doChild(node, index);
+		if (value instanceof ValueInteger) {
+			longResult = value.longValue();
+			return true;
+		}
+		valueResult = value;
+		return false;
+	}
+
+	// Evaluate an operand that should be a rational, or optionally an integer, into doubleResult
+	private boolean rationalOperand(SimpleNode node, int index, boolean integerAllowed) {
+		SimpleNode operand = (SimpleNode)node.jjtGetChild(index);
+		Value value;
+		Site site = arithmetic(operand);
+		if (site != null && (site.state == Specialisation.RATIONAL || site.state == Specialisation.MIXED)) {
+			if (rational(operand, site))
+				return true;
+			value = valueResult;
+		} else if (site != null && site.state == Specialisation.INTEGER && integerAllowed) {
+			if (integer(operand, site)) {
+				doubleResult = longResult;
+				return true;
+			}
+			value = valueResult;
+		} else
+			value = parser.doChild(node, index);
+		if (value instanceof ValueRational || (integerAllowed && value instanceof ValueInteger)) {
+			doubleResult = value.doubleValue();
+			return true;
+		}
+		valueResult = value;
+		return false;
+	}
+
+	// Get the state of an arithmetic node that has run, or null.  A loop invariant isn't
+	// one, so it is left to the Parser, which keeps its value.
+	private static Site arithmetic(SimpleNode node) {
+		if (node.optimised instanceof Site) {
+			Site site = (Site)node.optimised;
+			if (site.operator <= DIV)
+				return site;
+		}
+		return null;
+	}
+
+	// Rewrite a node to GENERIC after its operands failed a guard, and return its result
+	private Value deoptimise(SimpleNode node, Site site, Value left, Value right) {
+		site.state = Specialisation.GENERIC;
+		deoptimised++;
+		return generic(site.operator, left, right);
+	}
+
+	// As ValueAbstract, given the result of compare()
+	private static Value compare(int operator, int comparison) {
+		switch (operator) {
+		case EQ: return ValueBoolean.valueOf(comparison == 0);
+		case NEQ: return ValueBoolean.valueOf(comparison != 0);
+		case GTE: return ValueBoolean.valueOf(comparison >= 0);
+		case LTE: return ValueBoolean.valueOf(comparison <= 0);
+		case GT: return ValueBoolean.valueOf(comparison > 0);
+		default: return ValueBoolean.valueOf(comparison < 0);
+		}
+	}
+
+	// Through the Value interface
+	private static Value generic(int operator, Value left, Value right) {
+		switch (operator) {
+		case ADD: return left.add(right);
+		case SUBTRACT: return left.subtract(right);
+		case MULT: return left.mult(right);
+		case DIV: return left.div(right);
+		case EQ: return left.eq(right);
+		case NEQ: return left.neq(right);
+		case GTE: return left.gte(right);
+		case LTE: return left.lte(right);
+		case GT: return left.gt(right);
+		default: return left.lt(right);
+		}
+	}
+
+}
@@ -0,0 +1,162 @@
+package uk.ac.derby.ldi.sili2.interpreter;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+
+import uk.ac.derby.ldi.sili2.parser.ast.*;
+
+/** Translates one hot function, which the Parser has already run, into the Java source
+ * of a class implementing CompiledFunction.
+ *
+ * Instead of resolving scopes itself, it uses the references and functions the Parser
+ * has bound to the function's nodes.  Variables of the function become Java locals.
+ * Variables of enclosing functions are reached through their Display.Reference, and
+ * other functions are called through Parser.invoke(), so the compiled function shares
+ * all its state with the Parser.  Those objects are passed to the class as class data.
+ */
+class TierGenerator extends JavaGenerator {
+
+	// Objects passed to the class as class data.  The first is the Parser.
+	private ArrayList<Object> classData = new ArrayList<Object>();
+	private IdentityHashMap<Object, String> constants = new IdentityHashMap<Object, String>();
+	private Parser parser;
+
+	/** Ctor */
+	TierGenerator(String className) {
+		super(className);
+	}
+
+	/** If a function cannot be compiled, say why.  Otherwise return null. */
+	static String getIneligibility(FunctionDefinition definition) {
+		String reason = getIneligibility(definition.getFunctionBody());
+		if (reason == null && definition.hasReturn())
+			reason = getIneligibility(definition.getFunctionReturnExpression());
+		return reason;
+	}
+
+	// Check the nodes of a function
+	private static String getIneligibility(SimpleNode node) {
+		if (node instanceof ASTFnDef)
+			return "it defines function " + getTokenOfChild(node, 0);
+		if ((node instanceof ASTCall || node instanceof ASTFnInvoke) && (node.optimised == null || !((FunctionDefinition)node.optimised).isDefined()))
+			return "it calls " + getTokenOfChild(node, 0) + ", which is not defined yet";
+		for (int i=0; i<node.jjtGetNumChildren(); i++) {
+			String reason = getIneligibility(getChild(node, i));
+			if (reason != null)
+				return reason;
+		}
+		return null;
+	}
+
+	/** Generate a class for a function that getIneligibility() accepts.  Return its source. */
+	String generate(FunctionDefinition definition, Parser parser) {
+		this.parser = parser;
+		classData.add(parser);
+		fields.append("\tprivate static final Object[] data = TieredCompiler.classData(MethodHandles.lookup());\n");
+		fields.append("\tprivate static final Parser parser = (Parser)data[0];\n");
+		function = definition;
+		generateFunction(definition);
+		StringBuilder source = new StringBuilder();
+		source.append("package uk.ac.derby.ldi.sili2.interpreter;\n\n");
+		source.append("import java.lang.invoke.MethodHandles;\n");
+		source.append("import uk.ac.derby.ldi.sili2.values.*;\n");
+		source.append("import static uk.ac.derby.ldi.sili2.interpreter.CompiledRuntime.*;\n\n");
+		source.append("/** Compiled Sili function " + definition.getName() + ". */\n");
+		source.append("final class " + className + " implements CompiledFunction {\n\n");
+		source.append(fields);
+		source.append("\n\tpublic Value invoke(Value[] a) {\n");
+		StringBuilder arguments = new StringBuilder();
+		for (int i=0; i<definition.getParameterCount(); i++)
+			arguments.append((i > 0 ? ", " : "") + "a[" + i + "]");
+		source.append("\t\treturn " + methodName(definition) + "(" + arguments + ");\n");
+		source.append("\t}\n");
+		source.append(methods);
+		source.append("\n}\n");
+		return source.toString();
+	}
+
+	/** Get the class data for the class returned by generate(). */
+	Object[] getClassData() {
+		return classData.toArray();
+	}
+
+	// Return the name of a static field holding an object passed as class data
+	private String constant(String type, Object value) {
+		String name = constants.get(value);
+		if (name == null) {
+			name = "K" + classData.size();
+			fields.append("\tprivate static final " + type + " " + name + " = (" + type + ")data[" + classData.size() + "];\n");
+			classData.add(value);
+			constants.put(value, name);
+		}
+		return name;
+	}
+
+	// PRINT writes where the Parser does
+	public Object visit(ASTPrint node, Object data) {
+		line("print(parser.getOutput(), " + expression(node, 0) + ");");
+		return data;
+	}
+
+	public Object visit(ASTExit node, Object data) {
+		line("exit(parser.getOutput());");
+		return data;
+	}
+
+	// No nested functions, so nothing is captured
+	boolean isCaptured(FunctionDefinition definition, int slot) {
+		return false;
+	}
+
+	// Return the Java lvalue for a variable, or null if it belongs to an enclosing function
+	private String local(Display.Reference reference) {
+		if (reference.getDepth() == function.getLevel())
+			return "l" + reference.getSlot();
+		return null;
+	}
+
+	// Read a variable through the reference the Parser bound to a node
+	String load(SimpleNode node) {
+		Display.Reference reference = LoopBounds.getReference(node);
+		if (reference == null)
+			return null;
+		String local = local(reference);
+		if (local == null)
+			return constant("Display.Reference", reference) + ".getValue()";
+		return local;
+	}
+
+	// Assign a variable through the reference the Parser bound to a node
+	String store(SimpleNode node, String value) {
+		Display.Reference reference = (Display.Reference)node.optimised;
+		String local = local(reference);
+		if (local == null)
+			return constant("Display.Reference", reference) + ".setValue(" + value + ");";
+		return local + " = " + value + ";";
+	}
+
+	// Calls to the function itself are direct, unless the Parser memoises it.  Other calls go through the Parser.
+	String invoke(SimpleNode node, boolean needsReturn) {
+		FunctionDefinition callee = (FunctionDefinition)node.optimised;
+		String method;
+		if (callee == function) {
+			if (!parser.isMemoised(callee))
+				return arguments(node, callee, methodName(callee));
+			// The function's own method is already named, so the call through the Parser needs another
+			method = "memoised";
+			if (constants.containsKey(callee))
+				return arguments(node, callee, method);
+		} else {
+			method = methodNames.get(callee);
+			if (method != null)
+				return arguments(node, callee, method);
+			method = methodName(callee);
+		}
+		String target = constant("FunctionDefinition", callee);
+		methods.append("\n\tprivate static Value " + method + "(Value... arguments) {\n");
+		methods.append("\t\treturn parser.invoke(" + target + ", arguments);\n");
+		methods.append("\t}\n");
+		return arguments(node, callee, method);
+	}
+
+}
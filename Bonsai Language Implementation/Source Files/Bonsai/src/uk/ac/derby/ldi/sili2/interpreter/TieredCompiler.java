@@ -0,0 +1,100 @@
+package uk.ac.derby.ldi.sili2.interpreter;
+
+import java.lang.constant.ConstantDescs;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/** Compiles hot functions to the JVM while the Parser runs a program.
+ *
+ * The Parser reports each function invocation and each loop iteration.  When a function's
+ * count reaches the threshold, its source is generated by TierGenerator and compiled on a
+ * background thread into a hidden class.  Once the class is ready it is installed in the
+ * FunctionDefinition, and later calls use it instead of walking the function's AST.  If the
+ * compiler waits, a function is compiled before the call that made it hot goes on, so
+ * that every later call uses the compiled function, as a test of it needs.
+ */
+class TieredCompiler {
+
+	private Parser parser;
+	private int threshold;
+	private boolean trace;
+	private boolean wait;
+	private int classCount = 0;
+
+	private ExecutorService background = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable task) {
+			Thread thread = new Thread(task, "Sili compiler");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	/** Ctor */
+	TieredCompiler(Parser parser, int threshold, boolean trace, boolean wait) {
+		this.parser = parser;
+		this.threshold = threshold;
+		this.trace = trace;
+		this.wait = wait;
+	}
+
+	/** Get the class data of a hidden class defined by this compiler. */
+	static Object[] classData(MethodHandles.Lookup lookup) {
+		try {
+			return MethodHandles.classData(lookup, ConstantDescs.DEFAULT_NAME, Object[].class);
+		} catch (IllegalAccessException e) {
+			throw new ExceptionSemantic("Compiled function has no class data: " + e.getMessage());
+		}
+	}
+
+	/** Count an invocation of a function, or an iteration of one of its loops. */
+	void heat(FunctionDefinition definition) {
+		if (definition.heat() == threshold && definition.getLevel() > 0)
+			promote(definition);
+	}
+
+	// Start compiling a function, unless it can't be compiled yet
+	private void promote(final FunctionDefinition definition) {
+		String reason = TierGenerator.getIneligibility(definition);
+		if (reason != null) {
+			// Try again after another threshold's worth of use
+			definition.cool();
+			log(definition.getName() + ": staying interpreted because " + reason + ".");
+			return;
+		}
+		final String className = "Compiled" + classCount++ + "_" + definition.getName().replaceAll("[^A-Za-z0-9]", "_");
+		TierGenerator generator = new TierGenerator(className);
+		final String source = generator.generate(definition, parser);
+		final Object[] classData = generator.getClassData();
+		log(definition.getName() + ": hot after " + threshold + " invocations and iterations; compiling.");
+		Runnable compilation = new Runnable() {
+			public void run() {
+				long start = System.nanoTime();
+				try {
+					Map<String, byte[]> classFiles = new JavaClassCompiler().compile(TieredCompiler.class.getPackage().getName() + "." + className, source);
+					byte[] classFile = classFiles.values().iterator().next();
+					MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClassWithClassData(classFile, classData, true);
+					CompiledFunction compiled = (CompiledFunction)lookup.findConstructor(lookup.lookupClass(), MethodType.methodType(void.class)).invoke();
+					definition.setCompiled(compiled);
+					log(definition.getName() + ": compiled in " + (System.nanoTime() - start) / 1000000 + "ms.");
+				} catch (Throwable e) {
+					log(definition.getName() + ": staying interpreted because compilation failed: " + e.getMessage());
+				}
+			}
+		};
+		if (wait)
+			compilation.run();
+		else
+			background.execute(compilation);
+	}
+
+	// Report a tier transition
+	private void log(String message) {
+		if (trace)
+			System.err.println("[tier] " + message);
+	}
+
+}
@@ -0,0 +1,660 @@
+package uk.ac.derby.ldi.sili2.interpreter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+
+import uk.ac.derby.ldi.sili2.parser.ast.*;
+import uk.ac.derby.ldi.sili2.values.*;
+
+/** Compiles an AST into CodeBlocks for the VirtualMachine.
+ *
+ * The generated code performs the same operations, in the same order, as the
+ * corresponding Parser visitor, so the two produce identical results.  Variables
+ * and functions are bound by a Resolver, as they are for the Parser.
+ */
+class VMCompiler implements SiliVisitor {
+
+	/** The block currently being emitted. */
+	private static class Emitter {
+		String name;
+		int[] code = new int[64];
+		int length = 0;
+		ArrayList<Value> literals = new ArrayList<Value>();
+		ArrayList<String> names = new ArrayList<String>();
+		HashMap<String, Integer> nameIndex = new HashMap<String, Integer>();
+		ArrayList<FunctionDefinition> functions = new ArrayList<FunctionDefinition>();
+		IdentityHashMap<FunctionDefinition, Integer> functionIndex = new IdentityHashMap<FunctionDefinition, Integer>();
+		int depth = 0;
+		int maxDepth = 0;
+
+		Emitter(String name) {
+			this.name = name;
+		}
+
+		CodeBlock toCodeBlock() {
+			return new CodeBlock(name, Arrays.copyOf(code, length),
+					literals.toArray(new Value[literals.size()]),
+					names.toArray(new String[names.size()]),
+					functions.toArray(new FunctionDefinition[functions.size()]),
+					maxDepth);
+		}
+	}
+
+	private Emitter block;
+	private Resolver resolver;
+
+	/** Compile a program.  Return the definition of the main program, with its code attached. */
+	FunctionDefinition compile(ASTCode program) {
+		return compile(program, false);
+	}
+
+	/** Compile a program, optionally letting a host define the variables it uses but doesn't define. */
+	FunctionDefinition compile(ASTCode program, boolean hostVariables) {
+		resolver = new Resolver(program, hostVariables);
+		resolver.checkReferences();
+		block = new Emitter("%main");
+		program.jjtAccept(this, null);
+		emit(Opcodes.HALT);
+		FunctionDefinition main = resolver.getMain();
+		main.setCode(block.toCodeBlock());
+		return main;
+	}
+
+	// Append a word to the current block
+	private void word(int w) {
+		if (block.length == block.code.length)
+			block.code = Arrays.copyOf(block.code, block.length * 2);
+		block.code[block.length++] = w;
+	}
+
+	// Track operand stack depth
+	private void stack(int effect) {
+		block.depth += effect;
+		if (block.depth > block.maxDepth)
+			block.maxDepth = block.depth;
+	}
+
+	private void emit(int opcode) {
+		word(opcode);
+	}
+
+	private void emit(int opcode, int operand) {
+		word(opcode);
+		word(operand);
+	}
+
+	private void emit(int opcode, int operand1, int operand2) {
+		word(opcode);
+		word(operand1);
+		word(operand2);
+	}
+
+	// Emit a jump whose target is not yet known.  Return the location of the target operand.
+	private int emitJump(int opcode) {
+		word(opcode);
+		int patch = block.length;
+		word(-1);
+		return patch;
+	}
+
+	// Point a jump emitted by emitJump() at the current location
+	private void patch(int location) {
+		block.code[location] = block.length;
+	}
+
+	private int name(String name) {
+		Integer index = block.nameIndex.get(name);
+		if (index == null) {
+			index = Integer.valueOf(block.names.size());
+			block.names.add(name);
+			block.nameIndex.put(name, index);
+		}
+		return index.intValue();
+	}
+
+	private int function(FunctionDefinition definition) {
+		Integer index = block.functionIndex.get(definition);
+		if (index == null) {
+			index = Integer.valueOf(block.functions.size());
+			block.functions.add(definition);
+			block.functionIndex.put(definition, index);
+		}
+		return index.intValue();
+	}
+
+	private int literal(Value v) {
+		block.literals.add(v);
+		return block.literals.size() - 1;
+	}
+
+	// Get the ith child of a given node.
+	private static SimpleNode getChild(SimpleNode node, int childIndex) {
+		return (SimpleNode)node.jjtGetChild(childIndex);
+	}
+
+	// Get the token value of the ith child of a given node.
+	private static String getTokenOfChild(SimpleNode node, int childIndex) {
+		return getChild(node, childIndex).tokenValue;
+	}
+
+	// Compile a given child of the given node
+	private void doChild(SimpleNode node, int childIndex) {
+		node.jjtGetChild(childIndex).jjtAccept(this, null);
+	}
+
+	// Compile all children of the given node
+	private void doChildren(SimpleNode node) {
+		node.childrenAccept(this, null);
+	}
+
+	// Compile a binary operator
+	private Object binary(SimpleNode node, int opcode) {
+		doChild(node, 0);
+		doChild(node, 1);
+		emit(opcode);
+		stack(-1);
+		return null;
+	}
+
+	// Compile an AND or OR, whose right operand is skipped if the left one decides the result
+	private Object shortCircuit(SimpleNode node, int jump, int opcode) {
+		doChild(node, 0);
+		int decided = emitJump(jump);
+		doChild(node, 1);
+		emit(opcode);
+		stack(-1);
+		patch(decided);
+		return null;
+	}
+
+	// Compile a unary operator
+	private Object unary(SimpleNode node, int opcode) {
+		doChild(node, 0);
+		emit(opcode);
+		return null;
+	}
+
+	// Compile a jump, taken if the ith child of a given node is false, whose target is not yet
+	// known.  Return the location of the target operand.  A comparison jumps by itself.
+	private int test(SimpleNode node, int childIndex, String message) {
+		SimpleNode test = getChild(node, childIndex);
+		int comparison = comparison(test);
+		if (comparison >= 0) {
+			doChild(test, 0);
+			doChild(test, 1);
+			stack(-2);
+			return emitJump(negate(comparison));
+		}
+		doChild(node, childIndex);
+		word(Opcodes.JUMP_FALSE);
+		int patch = block.length;
+		word(-1);
+		word(name(message));
+		stack(-1);
+		return patch;
+	}
+
+	// Compile a jump to a target, taken if the ith child of a given node is true
+	private void loop(SimpleNode node, int childIndex, String message, int target) {
+		SimpleNode test = getChild(node, childIndex);
+		int comparison = comparison(test);
+		if (comparison >= 0) {
+			doChild(test, 0);
+			doChild(test, 1);
+			stack(-2);
+			emit(comparison, target);
+			return;
+		}
+		doChild(node, childIndex);
+		emit(Opcodes.JUMP_TRUE, target, name(message));
+		stack(-1);
+	}
+
+	// True if two references are to the same variable
+	private static boolean isSame(SlotReference a, SlotReference b) {
+		return b != null && a.depth == b.depth && a.slot == b.slot;
+	}
+
+	// Get the jump that a comparison node can compile to, or -1
+	private static int comparison(SimpleNode node) {
+		if (node instanceof ASTCompLT)
+			return Opcodes.JUMP_LT;
+		if (node instanceof ASTCompLTE)
+			return Opcodes.JUMP_LTE;
+		if (node instanceof ASTCompGT)
+			return Opcodes.JUMP_GT;
+		if (node instanceof ASTCompGTE)
+			return Opcodes.JUMP_GTE;
+		return -1;
+	}
+
+	// Get the jump taken when a comparison jump isn't
+	private static int negate(int jump) {
+		switch (jump) {
+		case Opcodes.JUMP_LT: return Opcodes.JUMP_GTE;
+		case Opcodes.JUMP_LTE: return Opcodes.JUMP_GT;
+		case Opcodes.JUMP_GT: return Opcodes.JUMP_LTE;
+		default: return Opcodes.JUMP_LT;
+		}
+	}
+
+	// Compile an invocation of the function named by child 0, with arguments in child 1
+	private void invoke(SimpleNode node, boolean needsReturn) {
+		invoke(node, needsReturn, Opcodes.CALL);
+	}
+
+	// Compile an invocation, executed by a CALL or TAIL_CALL instruction
+	private void invoke(SimpleNode node, boolean needsReturn, int call) {
+		FunctionDefinition callee = resolver.getCallee(node);
+		word(Opcodes.FRAME);
+		word((callee == null) ? -1 : function(callee));
+		word(name(getTokenOfChild(node, 0)));
+		word(needsReturn ? 1 : 0);
+		doChild(node, 1);
+		emit(call);
+		stack(1);
+	}
+
+	public Object visit(SimpleNode node, Object data) {
+		throw new ExceptionSemantic(node + ": compiler not implemented for this node.");
+	}
+
+	public Object visit(ASTCode node, Object data) {
+		doChildren(node);
+		return data;
+	}
+
+	public Object visit(ASTBlock node, Object data) {
+		doChildren(node);
+		return data;
+	}
+
+	// Function definition.  The body is compiled into its own CodeBlock.
+	public Object visit(ASTFnDef node, Object data) {
+		FunctionDefinition existing = resolver.getDuplicate(node);
+		if (existing != null) {
+			emit(Opcodes.FNDEF, function(existing), 1);
+			return data;
+		}
+		FunctionDefinition definition = resolver.getDefinition(node);
+		Emitter outer = block;
+		block = new Emitter(getTokenOfChild(node, 0));
+		doChild(node, 2);
+		if (node.hasReturn()) {
+			SimpleNode expression = getChild(getChild(node, 3), 0);
+			if (expression instanceof ASTFnInvoke)
+				invoke(expression, true, Opcodes.TAIL_CALL);
+			else
+				doChild(node, 3);
+			emit(Opcodes.RETURN_VALUE);
+		} else
+			emit(Opcodes.RETURN);
+		definition.setCode(block.toCodeBlock());
+		block = outer;
+		emit(Opcodes.FNDEF, function(definition), 0);
+		return data;
+	}
+
+	public Object visit(ASTParmlist node, Object data) {
+		return data;
+	}
+
+	public Object visit(ASTFnBody node, Object data) {
+		doChildren(node);
+		return data;
+	}
+
+	public Object visit(ASTReturnExpression node, Object data) {
+		doChildren(node);
+		return data;
+	}
+
+	// Function call.  Any return value is discarded.
+	public Object visit(ASTCall node, Object data) {
+		invoke(node, false);
+		emit(Opcodes.POP);
+		stack(-1);
+		return data;
+	}
+
+	// Function invocation in an expression
+	public Object visit(ASTFnInvoke node, Object data) {
+		invoke(node, true);
+		return data;
+	}
+
+	// Function invocation argument list
+	public Object visit(ASTArgList node, Object data) {
+		for (int i=0; i<node.jjtGetNumChildren(); i++) {
+			doChild(node, i);
+			emit(Opcodes.ARGUMENT);
+			stack(-1);
+		}
+		return data;
+	}
+
+	// IF
+	public Object visit(ASTIfStatement node, Object data) {
+		int toElse = test(node, 0, "The test expression of an if statement must be boolean.");
+		doChild(node, 1);
+		if (node.hasElse()) {
+			int toEnd = emitJump(Opcodes.JUMP);
+			patch(toElse);
+			doChild(node, 2);
+			patch(toEnd);
+		} else
+			patch(toElse);
+		return data;
+	}
+
+	// FOR
+	// The test comes after the body, so that each iteration takes one jump.  In a counted loop,
+	// one NEXT updates the variable and tests it.
+	public Object visit(ASTForLoop node, Object data) {
+		doChild(node, 0);
+		if (isCounted(getChild(node, 1), getChild(node, 2))) {
+			int toEnd = test(node, 1, "The test expression of a for loop must be boolean.");
+			int top = block.length;
+			doChild(node, 3);
+			next(getChild(node, 1), getChild(node, 2), top);
+			patch(toEnd);
+			return data;
+		}
+		int toTest = emitJump(Opcodes.JUMP);
+		int top = block.length;
+		doChild(node, 3);
+		doChild(node, 2);
+		patch(toTest);
+		loop(node, 1, "The test expression of a for loop must be boolean.", top);
+		return data;
+	}
+
+	public Object visit(ASTIdentifier node, Object data) {
+		return data;
+	}
+
+	// Dereference a variable or parameter
+	public Object visit(ASTDereference node, Object data) {
+		SlotReference reference = resolver.getReference(node);
+		if (reference == null)
+			emit(Opcodes.LOAD, 0, -1);
+		else
+			emit(Opcodes.LOAD, reference.depth, reference.slot);
+		word(name(node.tokenValue));
+		stack(1);
+		return data;
+	}
+
+	// True if an assignment is x = x + n, or x = x - n, with an integer literal n
+	private boolean isIncrement(SimpleNode node) {
+		if (!(node instanceof ASTAssignment))
+			return false;
+		SimpleNode value = getChild(node, 1);
+		return (value instanceof ASTAdd || value instanceof ASTSubtract) && getChild(value, 0) instanceof ASTDereference
+				&& getChild(value, 1) instanceof ASTInteger
+				&& isSame(resolver.getReference(node), resolver.getReference(getChild(value, 0)));
+	}
+
+	// True if a FOR loop's update is an increment, and its test compares the same variable with
+	// an integer literal or a variable
+	private boolean isCounted(SimpleNode test, SimpleNode update) {
+		if (comparison(test) < 0 || !isIncrement(update) || !(getChild(test, 0) instanceof ASTDereference))
+			return false;
+		SimpleNode limit = getChild(test, 1);
+		return (limit instanceof ASTInteger || limit instanceof ASTDereference)
+				&& isSame(resolver.getReference(update), resolver.getReference(getChild(test, 0)));
+	}
+
+	// Compile the NEXT that ends an iteration of a loop isCounted() accepts
+	private void next(SimpleNode test, SimpleNode update, int top) {
+		SlotReference reference = resolver.getReference(update);
+		SimpleNode limit = getChild(test, 1);
+		emit(Opcodes.NEXT, comparison(test), (getChild(update, 1) instanceof ASTSubtract) ? 1 : 0);
+		word(reference.depth);
+		word(reference.slot);
+		word(name(getTokenOfChild(update, 0)));
+		word(literal(new ValueInteger(Long.parseLong(getTokenOfChild(getChild(update, 1), 1)))));
+		if (limit instanceof ASTInteger) {
+			word(-1);
+			word(literal(new ValueInteger(Long.parseLong(limit.tokenValue))));
+		} else {
+			SlotReference limitReference = resolver.getReference(limit);
+			word((limitReference == null) ? 0 : limitReference.depth);
+			word((limitReference == null) ? -1 : limitReference.slot);
+		}
+		word(name(limit.tokenValue));
+		word(top);
+	}
+
+	// Assignment
+	public Object visit(ASTAssignment node, Object data) {
+		SlotReference reference = resolver.getReference(node);
+		if (isIncrement(node)) {
+			SimpleNode value = getChild(node, 1);
+			emit((value instanceof ASTAdd) ? Opcodes.INCREMENT : Opcodes.DECREMENT, reference.depth, reference.slot);
+			word(name(getTokenOfChild(node, 0)));
+			word(literal(new ValueInteger(Long.parseLong(getTokenOfChild(value, 1)))));
+			return data;
+		}
+		doChild(node, 1);
+		emit(Opcodes.STORE, reference.depth, reference.slot);
+		stack(-1);
+		return data;
+	}
+
+	public Object visit(ASTOr node, Object data) {
+		return shortCircuit(node, Opcodes.OR_JUMP, Opcodes.OR);
+	}
+
+	public Object visit(ASTAnd node, Object data) {
+		return shortCircuit(node, Opcodes.AND_JUMP, Opcodes.AND);
+	}
+
+	public Object visit(ASTCompEqual node, Object data) {
+		return binary(node, Opcodes.EQ);
+	}
+
+	public Object visit(ASTCompNequal node, Object data) {
+		return binary(node, Opcodes.NEQ);
+	}
+
+	public Object visit(ASTCompGTE node, Object data) {
+		return binary(node, Opcodes.GTE);
+	}
+
+	public Object visit(ASTCompLTE node, Object data) {
+		return binary(node, Opcodes.LTE);
+	}
+
+	public Object visit(ASTCompGT node, Object data) {
+		return binary(node, Opcodes.GT);
+	}
+
+	public Object visit(ASTCompLT node, Object data) {
+		return binary(node, Opcodes.LT);
+	}
+
+	public Object visit(ASTAdd node, Object data) {
+		return binary(node, Opcodes.ADD);
+	}
+
+	public Object visit(ASTSubtract node, Object data) {
+		return binary(node, Opcodes.SUBTRACT);
+	}
+
+	public Object visit(ASTTimes node, Object data) {
+		return binary(node, Opcodes.MULT);
+	}
+
+	public Object visit(ASTDivide node, Object data) {
+		return binary(node, Opcodes.DIV);
+	}
+
+	public Object visit(ASTUnaryNot node, Object data) {
+		return unary(node, Opcodes.NOT);
+	}
+
+	public Object visit(ASTUnaryPlus node, Object data) {
+		return unary(node, Opcodes.UNARY_PLUS);
+	}
+
+	public Object visit(ASTUnaryMinus node, Object data) {
+		return unary(node, Opcodes.UNARY_MINUS);
+	}
+
+	public Object visit(ASTCharacter node, Object data) {
+		emit(Opcodes.LITERAL, literal(ValueString.stripDelimited(node.tokenValue)));
+		stack(1);
+		return data;
+	}
+
+	public Object visit(ASTInteger node, Object data) {
+		emit(Opcodes.LITERAL, literal(new ValueInteger(Long.parseLong(node.tokenValue))));
+		stack(1);
+		return data;
+	}
+
+	public Object visit(ASTRational node, Object data) {
+		emit(Opcodes.LITERAL, literal(new ValueRational(Double.parseDouble(node.tokenValue))));
+		stack(1);
+		return data;
+	}
+
+	public Object visit(ASTTrue node, Object data) {
+		emit(Opcodes.LITERAL, literal(ValueBoolean.TRUE));
+		stack(1);
+		return data;
+	}
+
+	public Object visit(ASTFalse node, Object data) {
+		emit(Opcodes.LITERAL, literal(ValueBoolean.FALSE));
+		stack(1);
+		return data;
+	}
+
+	// WHILE
+	public Object visit(ASTWhileLoop node, Object data) {
+		int toTest = emitJump(Opcodes.JUMP);
+		int top = block.length;
+		doChild(node, 1);
+		patch(toTest);
+		loop(node, 0, "While loop expects boolean condition.", top);
+		return data;
+	}
+
+	// Array definition
+	public Object visit(ASTArrayDefine node, Object data) {
+		SlotReference reference = resolver.getReference(node);
+		emit(Opcodes.ARRAY_UNDEFINED, reference.depth, reference.slot);
+		word(name(getTokenOfChild(node, 0)));
+		doChild(node, 1);
+		int count = getChild(node, 1).jjtGetNumChildren();
+		emit(Opcodes.ARRAY_DEFINE, count);
+		stack(1 - count);
+		emit(Opcodes.STORE, reference.depth, reference.slot);
+		stack(-1);
+		return data;
+	}
+
+	// Array parameters
+	public Object visit(ASTArrayParamList node, Object data) {
+		doChildren(node);
+		return data;
+	}
+
+	// Push the array an array assignment or invocation refers to
+	private void array(SimpleNode node) {
+		SlotReference reference = resolver.getReference(node);
+		if (reference == null)
+			emit(Opcodes.ARRAY, 0, -1);
+		else
+			emit(Opcodes.ARRAY, reference.depth, reference.slot);
+		word(name(getTokenOfChild(node, 0)));
+		stack(1);
+	}
+
+	// Array assignment
+	public Object visit(ASTArrayAssignment node, Object data) {
+		array(node);
+		doChild(node, 1);
+		emit(Opcodes.ARRAY_INDEX);
+		doChild(node, 2);
+		emit(Opcodes.ARRAY_SET);
+		stack(-3);
+		return data;
+	}
+
+	// Array invocation
+	public Object visit(ASTArrayInvoke node, Object data) {
+		array(node);
+		doChild(node, 1);
+		emit(Opcodes.ARRAY_GET);
+		stack(-1);
+		return data;
+	}
+
+	// PRINT
+	public Object visit(ASTPrint node, Object data) {
+		doChild(node, 0);
+		emit(Opcodes.PRINT);
+		stack(-1);
+		return data;
+	}
+
+	public Object visit(ASTExit node, Object data) {
+		emit(Opcodes.EXIT);
+		return data;
+	}
+
+	public Object visit(ASTSquareRoot node, Object data) {
+		return unary(node, Opcodes.SQRT);
+	}
+
+	public Object visit(ASTCeil node, Object data) {
+		return unary(node, Opcodes.CEIL);
+	}
+
+	public Object visit(ASTFloor node, Object data) {
+		return unary(node, Opcodes.FLOOR);
+	}
+
+	public Object visit(ASTAbsoluteValue node, Object data) {
+		return unary(node, Opcodes.ABS);
+	}
+
+	public Object visit(ASTFactorial node, Object data) {
+		return unary(node, Opcodes.FACTORIAL);
+	}
+
+	public Object visit(ASTPower node, Object data) {
+		return binary(node, Opcodes.POWER);
+	}
+
+	public Object visit(ASTSine node, Object data) {
+		return unary(node, Opcodes.SINE);
+	}
+
+	public Object visit(ASTCosine node, Object data) {
+		return unary(node, Opcodes.COSINE);
+	}
+
+	public Object visit(ASTTangent node, Object data) {
+		return unary(node, Opcodes.TANGENT);
+	}
+
+	public Object visit(ASTDegrees node, Object data) {
+		return unary(node, Opcodes.DEGREES);
+	}
+
+	public Object visit(ASTRadians node, Object data) {
+		return unary(node, Opcodes.RADIANS);
+	}
+
+	public Object visit(ASTPi node, Object data) {
+		emit(Opcodes.LITERAL, literal(new ValueRational(0).pi()));
+		stack(1);
+		return data;
+	}
+}
@@ -0,0 +1,509 @@
+package uk.ac.derby.ldi.sili2.interpreter;
+
+import java.util.Arrays;
+
+import uk.ac.derby.ldi.sili2.values.*;
+
+/** Executes CodeBlocks produced by VMCompiler.
+ *
+ * Sili function calls do not recurse on the Java stack.  Each call pushes a frame
+ * onto the machine's own call stack and continues in the same dispatch loop, so the
+ * depth of recursion is only limited by the memory the call stack may use.  A call in
+ * a return expression replaces the caller's frame where it can.
+ *
+ * Given a Memoiser, a call to a pure function is looked up in it before a frame is
+ * pushed, and its result is remembered when it returns.
+ */
+class VirtualMachine {
+
+	// Scope display handler
+	private Display scope;
+
+	// Operand stack
+	private Value[] stack = new Value[64];
+	private int sp = 0;
+
+	// Invocation contexts for reuse
+	private FramePool frames = new FramePool();
+
+	// Invocations whose arguments are being evaluated
+	private FunctionInvocation[] pending = new FunctionInvocation[16];
+	private int pendingCount = 0;
+
+	// Call stack.  For each active call: the caller's block and resume point, the
+	// invocation, what it displaced from the display, and its key in the memoiser, if any.
+	private CodeBlock[] callerBlock = new CodeBlock[16];
+	private int[] callerPc = new int[16];
+	private int[] callerLevel = new int[16];
+	private FunctionInvocation[] callee = new FunctionInvocation[16];
+	private FunctionInvocation[] displaced = new FunctionInvocation[16];
+	private Memoiser.Key[] callKey = new Memoiser.Key[16];
+	private int callDepth = 0;
+
+	// Estimated memory used by a call besides its slots: its context, and its entries in
+	// the call stack.  The call stack may use up to stackBudget bytes.
+	private static final int callOverhead = 96;
+	private final long stackBudget;
+	private long stackUsed = 0;
+
+	// Results of pure functions, or null
+	private final Memoiser memoiser;
+
+	// Where PRINT writes
+	private OutputSink out = OutputSink.getStandardOutput();
+
+	// Which functions' definitions have been executed, by number.  This is kept here rather
+	// than in the FunctionDefinitions, so that executions of a program don't share it.
+	private boolean[] defined = new boolean[16];
+
+	/** Ctor, given the memory the call stack may use, in bytes, and a Memoiser or null. */
+	VirtualMachine(long stackBudget, Memoiser memoiser) {
+		this.stackBudget = stackBudget;
+		this.memoiser = memoiser;
+	}
+
+	/** Send the output of PRINT and EXIT to a sink instead of standard output. */
+	void setOutput(OutputSink out) {
+		this.out = out;
+	}
+
+	// True if the definition of a function has been executed
+	private boolean isDefined(FunctionDefinition definition) {
+		int number = definition.getNumber();
+		return number < defined.length && defined[number];
+	}
+
+	// Note that the definition of a function has been executed
+	private void define(FunctionDefinition definition) {
+		int number = definition.getNumber();
+		if (number >= defined.length)
+			defined = Arrays.copyOf(defined, Math.max(defined.length * 2, number + 1));
+		defined[number] = true;
+	}
+
+	// Make room for a block's operands on top of the current stack
+	private void reserve(CodeBlock block) {
+		if (sp + block.maxStack > stack.length)
+			stack = Arrays.copyOf(stack, Math.max(stack.length * 2, sp + block.maxStack));
+	}
+
+	// Make room for another call
+	private void reserveCall() {
+		if (callDepth == callee.length) {
+			int size = callDepth * 2;
+			callerBlock = Arrays.copyOf(callerBlock, size);
+			callerPc = Arrays.copyOf(callerPc, size);
+			callerLevel = Arrays.copyOf(callerLevel, size);
+			callee = Arrays.copyOf(callee, size);
+			displaced = Arrays.copyOf(displaced, size);
+			callKey = Arrays.copyOf(callKey, size);
+		}
+	}
+
+	// Estimate the memory used by a call
+	private static long callSize(FunctionInvocation invocation) {
+		return callOverhead + 8L * invocation.getFunctionDefinition().getLocalCount();
+	}
+
+	// Push a call, and start executing it.  reserveCall() must have made room for it.
+	private void push(FunctionInvocation invocation, Memoiser.Key key) {
+		stackUsed += callSize(invocation);
+		if (stackUsed > stackBudget)
+			throw new ExceptionSemantic(Interpreter.getRecursionMessage(stackBudget));
+		callee[callDepth] = invocation;
+		callKey[callDepth] = key;
+		displaced[callDepth] = scope.enter(invocation);
+		callDepth++;
+	}
+
+	// Pop the current call, after it has returned
+	private void pop() {
+		callDepth--;
+		stackUsed -= callSize(callee[callDepth]);
+		scope.leave(callee[callDepth], displaced[callDepth], callerLevel[callDepth]);
+		frames.release(callee[callDepth]);
+		callee[callDepth] = null;
+		displaced[callDepth] = null;
+		callKey[callDepth] = null;
+	}
+
+	// Get the array on the stack below the top, which ARRAY has already checked
+	private ValueArray getArray() {
+		return (ValueArray)stack[sp - 2];
+	}
+
+	// Check an array index value
+	private static int getIndex(Value index, ValueArray array) {
+		if (!(index instanceof ValueInteger))
+			throw new ExceptionSemantic("Array index must be integer value.");
+		long indexValue = index.longValue();
+		if (indexValue < 0 || indexValue >= array.size())
+			throw new ExceptionSemantic("Array out of bounds " + indexValue);
+		return (int)indexValue;
+	}
+
+	// Pop the top two values and compare them
+	private int compare() {
+		Value left = stack[sp - 2];
+		Value right = stack[sp - 1];
+		stack[--sp] = null;
+		stack[--sp] = null;
+		return compare(left, right);
+	}
+
+	// Compare two values, as the comparison operators do.  Integers are compared directly.
+	private static int compare(Value left, Value right) {
+		if (left instanceof ValueInteger && right instanceof ValueInteger)
+			return Long.compare(left.longValue(), right.longValue());
+		return left.compare(right);
+	}
+
+	// True if the result of compare() satisfies the comparison of a comparison jump
+	private static boolean holds(int jump, int comparison) {
+		switch (jump) {
+		case Opcodes.JUMP_LT: return comparison < 0;
+		case Opcodes.JUMP_LTE: return comparison <= 0;
+		case Opcodes.JUMP_GT: return comparison > 0;
+		default: return comparison >= 0;
+		}
+	}
+
+	/** Run a program compiled by VMCompiler. */
+	void execute(FunctionDefinition main) {
+		execute(new FunctionInvocation(main));
+	}
+
+	/** Run a program compiled by VMCompiler, given an invocation holding its variables. */
+	void execute(FunctionInvocation main) {
+		scope = new Display(main);
+		CodeBlock block = main.getFunctionDefinition().getCode();
+		int[] code = block.code;
+		int pc = 0;
+		reserve(block);
+		while (true) {
+			switch (code[pc++]) {
+				case Opcodes.HALT:
+					return;
+				case Opcodes.LITERAL:
+					stack[sp++] = block.literals[code[pc++]];
+					break;
+				case Opcodes.POP:
+					stack[--sp] = null;
+					break;
+				case Opcodes.LOAD: {
+					Value value = (code[pc + 1] < 0) ? null : scope.getValue(code[pc], code[pc + 1]);
+					if (value == null)
+						throw new ExceptionSemantic("Variable or parameter " + block.names[code[pc + 2]] + " is undefined.");
+					stack[sp++] = value;
+					pc += 3;
+					break;
+				}
+				case Opcodes.STORE:
+					scope.setValue(code[pc], code[pc + 1], stack[--sp]);
+					stack[sp] = null;
+					pc += 2;
+					break;
+				case Opcodes.INCREMENT: {
+					Value value = scope.getValue(code[pc], code[pc + 1]);
+					if (value == null)
+						throw new ExceptionSemantic("Variable or parameter " + block.names[code[pc + 2]] + " is undefined.");
+					scope.setValue(code[pc], code[pc + 1], value.add(block.literals[code[pc + 3]]));
+					pc += 4;
+					break;
+				}
+				case Opcodes.DECREMENT: {
+					Value value = scope.getValue(code[pc], code[pc + 1]);
+					if (value == null)
+						throw new ExceptionSemantic("Variable or parameter " + block.names[code[pc + 2]] + " is undefined.");
+					scope.setValue(code[pc], code[pc + 1], value.subtract(block.literals[code[pc + 3]]));
+					pc += 4;
+					break;
+				}
+				case Opcodes.OR:
+					sp--;
+					stack[sp - 1] = stack[sp - 1].or(stack[sp]);
+					break;
+				case Opcodes.AND:
+					sp--;
+					stack[sp - 1] = stack[sp - 1].and(stack[sp]);
+					break;
+				case Opcodes.EQ:
+					sp--;
+					stack[sp - 1] = stack[sp - 1].eq(stack[sp]);
+					break;
+				case Opcodes.NEQ:
+					sp--;
+					stack[sp - 1] = stack[sp - 1].neq(stack[sp]);
+					break;
+				case Opcodes.GTE:
+					sp--;
+					stack[sp - 1] = stack[sp - 1].gte(stack[sp]);
+					break;
+				case Opcodes.LTE:
+					sp--;
+					stack[sp - 1] = stack[sp - 1].lte(stack[sp]);
+					break;
+				case Opcodes.GT:
+					sp--;
+					stack[sp - 1] = stack[sp - 1].gt(stack[sp]);
+					break;
+				case Opcodes.LT:
+					sp--;
+					stack[sp - 1] = stack[sp - 1].lt(stack[sp]);
+					break;
+				case Opcodes.ADD:
+					sp--;
+					stack[sp - 1] = stack[sp - 1].add(stack[sp]);
+					break;
+				case Opcodes.SUBTRACT:
+					sp--;
+					stack[sp - 1] = stack[sp - 1].subtract(stack[sp]);
+					break;
+				case Opcodes.MULT:
+					sp--;
+					stack[sp - 1] = stack[sp - 1].mult(stack[sp]);
+					break;
+				case Opcodes.DIV:
+					sp--;
+					stack[sp - 1] = stack[sp - 1].div(stack[sp]);
+					break;
+				case Opcodes.POWER:
+					sp--;
+					stack[sp - 1] = stack[sp - 1].power(stack[sp]);
+					break;
+				case Opcodes.NOT:
+					stack[sp - 1] = stack[sp - 1].not();
+					break;
+				case Opcodes.UNARY_PLUS:
+					stack[sp - 1] = stack[sp - 1].unary_plus();
+					break;
+				case Opcodes.UNARY_MINUS:
+					stack[sp - 1] = stack[sp - 1].unary_minus();
+					break;
+				case Opcodes.SQRT:
+					stack[sp - 1] = stack[sp - 1].sqrt();
+					break;
+				case Opcodes.CEIL:
+					stack[sp - 1] = stack[sp - 1].ceil();
+					break;
+				case Opcodes.FLOOR:
+					stack[sp - 1] = stack[sp - 1].floor();
+					break;
+				case Opcodes.ABS:
+					stack[sp - 1] = stack[sp - 1].abs();
+					break;
+				case Opcodes.FACTORIAL:
+					stack[sp - 1] = stack[sp - 1].factorial();
+					break;
+				case Opcodes.SINE:
+					stack[sp - 1] = stack[sp - 1].sine();
+					break;
+				case Opcodes.COSINE:
+					stack[sp - 1] = stack[sp - 1].cosine();
+					break;
+				case Opcodes.TANGENT:
+					stack[sp - 1] = stack[sp - 1].tangent();
+					break;
+				case Opcodes.DEGREES:
+					stack[sp - 1] = stack[sp - 1].degrees();
+					break;
+				case Opcodes.RADIANS:
+					stack[sp - 1] = stack[sp - 1].radians();
+					break;
+				case Opcodes.JUMP:
+					pc = code[pc];
+					break;
+				case Opcodes.AND_JUMP:
+					if (stack[sp - 1] == ValueBoolean.FALSE)
+						pc = code[pc];
+					else
+						pc++;
+					break;
+				case Opcodes.OR_JUMP:
+					if (stack[sp - 1] == ValueBoolean.TRUE)
+						pc = code[pc];
+					else
+						pc++;
+					break;
+				case Opcodes.JUMP_FALSE: {
+					Value hopefullyValueBoolean = stack[--sp];
+					stack[sp] = null;
+					if (!(hopefullyValueBoolean instanceof ValueBoolean))
+						throw new ExceptionSemantic(block.names[code[pc + 1]]);
+					if (((ValueBoolean)hopefullyValueBoolean).booleanValue())
+						pc += 2;
+					else
+						pc = code[pc];
+					break;
+				}
+				case Opcodes.JUMP_TRUE: {
+					Value hopefullyValueBoolean = stack[--sp];
+					stack[sp] = null;
+					if (!(hopefullyValueBoolean instanceof ValueBoolean))
+						throw new ExceptionSemantic(block.names[code[pc + 1]]);
+					if (((ValueBoolean)hopefullyValueBoolean).booleanValue())
+						pc = code[pc];
+					else
+						pc += 2;
+					break;
+				}
+				case Opcodes.JUMP_LT:
+					pc = (compare() < 0) ? code[pc] : pc + 1;
+					break;
+				case Opcodes.JUMP_LTE:
+					pc = (compare() <= 0) ? code[pc] : pc + 1;
+					break;
+				case Opcodes.JUMP_GT:
+					pc = (compare() > 0) ? code[pc] : pc + 1;
+					break;
+				case Opcodes.JUMP_GTE:
+					pc = (compare() >= 0) ? code[pc] : pc + 1;
+					break;
+				case Opcodes.NEXT: {
+					Value value = scope.getValue(code[pc + 2], code[pc + 3]);
+					if (value == null)
+						throw new ExceptionSemantic("Variable or parameter " + block.names[code[pc + 4]] + " is undefined.");
+					Value step = block.literals[code[pc + 5]];
+					value = (code[pc + 1] == 0) ? value.add(step) : value.subtract(step);
+					scope.setValue(code[pc + 2], code[pc + 3], value);
+					Value limit;
+					if (code[pc + 6] < 0)
+						limit = block.literals[code[pc + 7]];
+					else {
+						limit = (code[pc + 7] < 0) ? null : scope.getValue(code[pc + 6], code[pc + 7]);
+						if (limit == null)
+							throw new ExceptionSemantic("Variable or parameter " + block.names[code[pc + 8]] + " is undefined.");
+					}
+					pc = holds(code[pc], compare(value, limit)) ? code[pc + 9] : pc + 10;
+					break;
+				}
+				case Opcodes.FNDEF: {
+					FunctionDefinition definition = block.functions[code[pc++]];
+					if (code[pc++] == 0)
+						define(definition);
+					else if (isDefined(definition))
+						throw new ExceptionSemantic("Function " + definition.getName() + " already exists.");
+					break;
+				}
+				case Opcodes.FRAME: {
+					int function = code[pc++];
+					String fnname = block.names[code[pc++]];
+					boolean needsReturn = code[pc++] != 0;
+					FunctionDefinition fndef = (function < 0) ? null : block.functions[function];
+					if (fndef == null || !isDefined(fndef))
+						throw new ExceptionSemantic("Function " + fnname + " is undefined.");
+					if (needsReturn && !fndef.hasReturn())
+						throw new ExceptionSemantic("Function " + fnname + " is being invoked in an expression but does not have a return value.");
+					if (pendingCount == pending.length)
+						pending = Arrays.copyOf(pending, pendingCount * 2);
+					pending[pendingCount++] = frames.acquire(fndef);
+					break;
+				}
+				case Opcodes.ARGUMENT:
+					pending[pendingCount - 1].setArgument(stack[--sp]);
+					stack[sp] = null;
+					break;
+				case Opcodes.CALL:
+				case Opcodes.TAIL_CALL: {
+					FunctionInvocation invocation = pending[--pendingCount];
+					pending[pendingCount] = null;
+					invocation.checkArgumentCount();
+					Memoiser.Key key = null;
+					if (memoiser != null && invocation.getFunctionDefinition().isPure()) {
+						key = memoiser.getKey(invocation);
+						Value remembered = (key == null) ? null : memoiser.get(key);
+						if (remembered != null) {
+							frames.release(invocation);
+							stack[sp++] = remembered;
+							break;
+						}
+					}
+					// A memoised call's own result is needed, so it can't be replaced
+					if (code[pc - 1] == Opcodes.TAIL_CALL && callKey[callDepth - 1] == null
+							&& invocation.getLevel() <= callee[callDepth - 1].getLevel()) {
+						// Return to the current caller, keeping its block, resume point and level
+						pop();
+					} else {
+						reserveCall();
+						callerBlock[callDepth] = block;
+						callerPc[callDepth] = pc;
+						callerLevel[callDepth] = scope.getLevel();
+					}
+					push(invocation, key);
+					block = invocation.getFunctionDefinition().getCode();
+					code = block.code;
+					pc = 0;
+					reserve(block);
+					break;
+				}
+				case Opcodes.RETURN:
+				case Opcodes.RETURN_VALUE: {
+					if (code[pc - 1] == Opcodes.RETURN)
+						stack[sp++] = null;
+					else if (callKey[callDepth - 1] != null)
+						memoiser.put(callKey[callDepth - 1], stack[sp - 1]);
+					pop();
+					block = callerBlock[callDepth];
+					pc = callerPc[callDepth];
+					callerBlock[callDepth] = null;
+					code = block.code;
+					break;
+				}
+				case Opcodes.PRINT:
+					out.println(stack[--sp]);
+					stack[sp] = null;
+					break;
+				case Opcodes.EXIT: {
+					ExceptionExit exit = new ExceptionExit();
+					out.println(exit.getMessage());
+					out.flush();
+					throw exit;
+				}
+				case Opcodes.ARRAY_UNDEFINED:
+					if (scope.getValue(code[pc], code[pc + 1]) instanceof ValueArray)
+						throw new ExceptionSemantic("Array " + block.names[code[pc + 2]] + " is already defined.");
+					pc += 3;
+					break;
+				case Opcodes.ARRAY_DEFINE: {
+					int count = code[pc++];
+					Value[] elements = Arrays.copyOfRange(stack, sp - count, sp);
+					Arrays.fill(stack, sp - count, sp, null);
+					sp -= count;
+					stack[sp++] = new ValueArray(elements);
+					break;
+				}
+				case Opcodes.ARRAY: {
+					Value value = (code[pc + 1] < 0) ? null : scope.getValue(code[pc], code[pc + 1]);
+					if (!(value instanceof ValueArray))
+						throw new ExceptionSemantic("Array " + block.names[code[pc + 2]] + " is undefined.");
+					stack[sp++] = value;
+					pc += 3;
+					break;
+				}
+				case Opcodes.ARRAY_INDEX:
+					getIndex(stack[sp - 1], getArray());
+					break;
+				case Opcodes.ARRAY_SET: {
+					Value value = stack[--sp];
+					int index = (int)stack[--sp].longValue();
+					ValueArray array = (ValueArray)stack[--sp];
+					stack[sp] = null;
+					stack[sp + 1] = null;
+					stack[sp + 2] = null;
+					array.set(index, value);
+					break;
+				}
+				case Opcodes.ARRAY_GET: {
+					ValueArray array = getArray();
+					Value element = array.get(getIndex(stack[sp - 1], array));
+					stack[--sp] = null;
+					stack[sp - 1] = element;
+					break;
+				}
+				default:
+					throw new ExceptionSemantic("Invalid opcode " + code[pc - 1] + " in " + block.name + ".");
+			}
+		}
+	}
+
+}
@@ -0,0 +1,19 @@
+package uk.ac.derby.ldi.sili2.parser.ast;
+
+import uk.ac.derby.ldi.sili2.interpreter.ConditionalNode;
+
+/** Kept in the source tree, rather than generated by JJTree, to extend ConditionalNode. */
+public class ASTForLoop extends ConditionalNode {
+	public ASTForLoop(int id) {
+		super(id);
+	}
+
+	public ASTForLoop(Sili p, int id) {
+		super(p, id);
+	}
+
+	/** Accept the visitor. **/
+	public Object jjtAccept(SiliVisitor visitor, Object data) {
+		return visitor.visit(this, data);
+	}
+}
@@ -0,0 +1,19 @@
+package uk.ac.derby.ldi.sili2.parser.ast;
+
+import uk.ac.derby.ldi.sili2.interpreter.ConditionalNode;
+
+/** Kept in the source tree, rather than generated by JJTree, to extend ConditionalNode. */
+public class ASTWhileLoop extends ConditionalNode {
+	public ASTWhileLoop(int id) {
+		super(id);
+	}
+
+	public ASTWhileLoop(Sili p, int id) {
+		super(p, id);
+	}
+
+	/** Accept the visitor. **/
+	public Object jjtAccept(SiliVisitor visitor, Object data) {
+		return visitor.visit(this, data);
+	}
+}
@@ -0,0 +1,210 @@
+package uk.ac.derby.ldi.sili2.values;
+
+import uk.ac.derby.ldi.sili2.interpreter.ExceptionSemantic;
+
+/** A Sili array.  Arrays are values, so they live in variables, and are passed and
+ * returned by reference.
+ *
+ * An array whose elements are all integers, all rationals or all booleans keeps them
+ * in a long[], double[] or boolean[], and boxes an element only when it is read.  Any
+ * other array, or one that is assigned an element of a different type, keeps Values.
+ */
+public final class ValueArray extends ValueAbstract {
+
+	private static final int INTEGER = 0;
+	private static final int RATIONAL = 1;
+	private static final int BOOLEAN = 2;
+	private static final int GENERIC = 3;
+
+	private int kind;
+	private int size;
+	private long[] integers;
+	private double[] rationals;
+	private boolean[] booleans;
+	private Value[] values;
+
+	/** Ctor.  Choose the storage for the initial elements. */
+	public ValueArray(Value[] elements) {
+		size = elements.length;
+		kind = getKind(elements);
+		switch (kind) {
+		case INTEGER:
+			integers = new long[size];
+			for (int i=0; i<size; i++)
+				integers[i] = elements[i].longValue();
+			break;
+		case RATIONAL:
+			rationals = new double[size];
+			for (int i=0; i<size; i++)
+				rationals[i] = elements[i].doubleValue();
+			break;
+		case BOOLEAN:
+			booleans = new boolean[size];
+			for (int i=0; i<size; i++)
+				booleans[i] = elements[i].booleanValue();
+			break;
+		default:
+			values = elements.clone();
+		}
+	}
+
+	public String getName() {
+		return "array";
+	}
+
+	public int compare(Value v) {
+		throw new ExceptionSemantic("Cannot compare arrays.");
+	}
+
+	/** Get the number of elements. */
+	public int size() {
+		return size;
+	}
+
+	/** Get an element. */
+	public Value get(int index) {
+		switch (kind) {
+		case INTEGER: return ValueInteger.valueOf(integers[index]);
+		case RATIONAL: return new ValueRational(rationals[index]);
+		case BOOLEAN: return ValueBoolean.valueOf(booleans[index]);
+		default: return values[index];
+		}
+	}
+
+	/** Assign an element, changing to Value storage if it doesn't fit the current storage. */
+	public void set(int index, Value value) {
+		switch (kind) {
+		case INTEGER:
+			if (value instanceof ValueInteger) {
+				integers[index] = value.longValue();
+				return;
+			}
+			break;
+		case RATIONAL:
+			if (value instanceof ValueRational) {
+				rationals[index] = value.doubleValue();
+				return;
+			}
+			break;
+		case BOOLEAN:
+			if (value instanceof ValueBoolean) {
+				booleans[index] = value.booleanValue();
+				return;
+			}
+			break;
+		default:
+			values[index] = value;
+			return;
+		}
+		// Check the index before changing the storage, so a bad one leaves the array as it was
+		if (index < 0 || index >= size)
+			throw new ArrayIndexOutOfBoundsException(index);
+		generalise();
+		values[index] = value;
+	}
+
+	/** Return the elements as PRINT shows them. */
+	public String toString() {
+		StringBuilder listValues = new StringBuilder("[ ");
+		for (int index = 0; index < size; index++) {
+			if (index > 0)
+				listValues.append(", ");
+			listValues.append(get(index));
+		}
+		return listValues.append(" ]").toString();
+	}
+
+	private Value invalid() {
+		throw new ExceptionSemantic("Cannot perform arithmetic on arrays.");
+	}
+
+	@Override
+	public Value sqrt() {
+		return invalid();
+	}
+
+	@Override
+	public Value ceil() {
+		return invalid();
+	}
+
+	@Override
+	public Value floor() {
+		return invalid();
+	}
+
+	@Override
+	public Value abs() {
+		return invalid();
+	}
+
+	@Override
+	public Value factorial() {
+		return invalid();
+	}
+
+	@Override
+	public Value power(Value v) {
+		return invalid();
+	}
+
+	@Override
+	public Value sine() {
+		return invalid();
+	}
+
+	@Override
+	public Value cosine() {
+		return invalid();
+	}
+
+	@Override
+	public Value tangent() {
+		return invalid();
+	}
+
+	@Override
+	public Value degrees() {
+		return invalid();
+	}
+
+	@Override
+	public Value radians() {
+		return invalid();
+	}
+
+	@Override
+	public Value pi() {
+		return invalid();
+	}
+
+	// Choose the storage for a set of elements
+	private static int getKind(Value[] elements) {
+		if (elements.length == 0)
+			return GENERIC;
+		Class<?> type = elements[0].getClass();
+		for (Value element: elements)
+			if (element.getClass() != type)
+				return GENERIC;
+		if (type == ValueInteger.class)
+			return INTEGER;
+		if (type == ValueRational.class)
+			return RATIONAL;
+		if (type == ValueBoolean.class)
+			return BOOLEAN;
+		return GENERIC;
+	}
+
+	// Change to Value storage
+	private void generalise() {
+		Value[] elements = new Value[size];
+		for (int i=0; i<size; i++)
+			elements[i] = get(i);
+		values = elements;
+		integers = null;
+		rationals = null;
+		booleans = null;
+		kind = GENERIC;
+	}
+
+}
@@ -4,12 +4,21 @@ import uk.ac.derby.ldi.sili2.interpreter.ExceptionSemantic;
 
 public class ValueBoolean extends ValueAbstract {
 
+	/** The only two booleans.  Use valueOf() rather than creating more. */
+	public static final ValueBoolean TRUE = new ValueBoolean(true);
+	public static final ValueBoolean FALSE = new ValueBoolean(false);
+
 	private boolean internalValue;
 	
-	public ValueBoolean(boolean b) {
+	private ValueBoolean(boolean b) {
 		internalValue = b;
 	}
 	
+	/** Get the ValueBoolean for a primitive boolean. */
+	public static ValueBoolean valueOf(boolean b) {
+		return (b) ? TRUE : FALSE;
+	}
+	
 	public String getName() {
 		return "boolean";
 	}
@@ -25,15 +34,15 @@ public class ValueBoolean extends ValueAbstract {
 	}
 	
 	public Value or(Value v) {
-		return new ValueBoolean(internalValue || v.booleanValue());
+		return valueOf(internalValue || v.booleanValue());
 	}
 
 	public Value and(Value v) {
-		return new ValueBoolean(internalValue && v.booleanValue());
+		return valueOf(internalValue && v.booleanValue());
 	}
 
 	public Value not() {
-		return new ValueBoolean(!internalValue);
+		return valueOf(!internalValue);
 	}
 
 	public int compare(Value v) {
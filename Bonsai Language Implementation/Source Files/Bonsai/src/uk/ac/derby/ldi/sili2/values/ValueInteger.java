@@ -4,12 +4,29 @@ import uk.ac.derby.ldi.sili2.interpreter.ExceptionSemantic;
 
 public class ValueInteger extends ValueAbstract {
 
+	// Integers in this range are shared, rather than allocated by every operation
+	private static final int cacheLow = -128;
+	private static final int cacheHigh = 1023;
+	private static final ValueInteger[] cache = new ValueInteger[cacheHigh - cacheLow + 1];
+
+	static {
+		for (int i=0; i<cache.length; i++)
+			cache[i] = new ValueInteger(cacheLow + i);
+	}
+
 	private long internalValue;
 	
 	public ValueInteger(long b) {
 		internalValue = b;
 	}
 	
+	/** Get a ValueInteger for a primitive long, shared if it is small. */
+	public static ValueInteger valueOf(long b) {
+		if (b >= cacheLow && b <= cacheHigh)
+			return cache[(int)b - cacheLow];
+		return new ValueInteger(b);
+	}
+	
 	public String getName() {
 		return "integer";
 	}
@@ -39,27 +56,27 @@ public class ValueInteger extends ValueAbstract {
 	}
 	
 	public Value add(Value v) {
-		return new ValueInteger(internalValue + v.longValue());
+		return valueOf(internalValue + v.longValue());
 	}
 
 	public Value subtract(Value v) {
-		return new ValueInteger(internalValue - v.longValue());
+		return valueOf(internalValue - v.longValue());
 	}
 
 	public Value mult(Value v) {
-		return new ValueInteger(internalValue * v.longValue());
+		return valueOf(internalValue * v.longValue());
 	}
 
 	public Value div(Value v) {
-		return new ValueInteger(internalValue / v.longValue());
+		return valueOf(internalValue / v.longValue());
 	}
 
 	public Value unary_plus() {
-		return new ValueInteger(internalValue);
+		return this;
 	}
 
 	public Value unary_minus() {
-		return new ValueInteger(-internalValue);
+		return valueOf(-internalValue);
 	}
 	
 	public String toString() {